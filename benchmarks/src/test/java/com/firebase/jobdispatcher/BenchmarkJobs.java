@@ -0,0 +1,72 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.net.Uri;
+import android.os.Bundle;
+import com.firebase.jobdispatcher.ObservedUri.Flags;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Job fixtures shared by the benchmarks. */
+final class BenchmarkJobs {
+
+  private BenchmarkJobs() {}
+
+  /** Returns a realistic periodic job: a window trigger, a network constraint and a few extras. */
+  static Job newWindowJob() {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag("benchmark-job")
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.executionWindow(60, 300))
+        .setRecurring(true)
+        .setLifetime(Lifetime.FOREVER)
+        .setConstraints(Constraint.ON_UNMETERED_NETWORK, Constraint.DEVICE_CHARGING)
+        .setRetryStrategy(RetryStrategy.DEFAULT_LINEAR)
+        .setExtras(newExtras())
+        .build();
+  }
+
+  /** Returns a recurring content URI job that observes {@code uriCount} distinct URIs. */
+  static Job newContentUriJob(int uriCount) {
+    List<ObservedUri> uris = new ArrayList<>(uriCount);
+    for (int i = 0; i < uriCount; i++) {
+      uris.add(
+          new ObservedUri(
+              Uri.parse("content://com.example.provider/items/" + i),
+              i % 2 == 0 ? Flags.FLAG_NOTIFY_FOR_DESCENDANTS : 0));
+    }
+
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag("benchmark-uri-job")
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.contentUriTrigger(uris))
+        .setRecurring(true)
+        .setConstraints(Constraint.ON_ANY_NETWORK)
+        .setExtras(newExtras())
+        .build();
+  }
+
+  private static Bundle newExtras() {
+    Bundle extras = new Bundle();
+    extras.putString("account", "someone@example.com");
+    extras.putInt("attempt", 3);
+    extras.putLong("since", 1514764800000L);
+    extras.putBoolean("full_sync", false);
+    return extras;
+  }
+}
@@ -0,0 +1,47 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks for packing and unpacking {@link Constraint} arrays. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConstraintBenchmark {
+
+  private final int[] constraints = {
+    Constraint.ON_UNMETERED_NETWORK, Constraint.DEVICE_CHARGING, Constraint.DEVICE_IDLE
+  };
+  private final int compacted = Constraint.compact(constraints);
+
+  @Benchmark
+  public int compact() {
+    return Constraint.compact(constraints);
+  }
+
+  @Benchmark
+  public int[] uncompact() {
+    return Constraint.uncompact(compacted);
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static org.robolectric.Shadows.shadowOf;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.content.pm.ServiceInfo;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+
+/** Benchmarks for validating jobs with the {@link DefaultJobValidator}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DefaultJobValidatorBenchmark {
+
+  /** Zero means a window trigger, anything else a content URI trigger with that many URIs. */
+  @Param({"0", "10"})
+  public int uriCount;
+
+  private DefaultJobValidator validator;
+  private Job job;
+
+  @Setup
+  public void setUp() {
+    Context context = RuntimeEnvironment.application;
+
+    // Make the service resolvable so the PackageManager lookup succeeds, like it would in an app
+    ResolveInfo resolveInfo = new ResolveInfo();
+    resolveInfo.serviceInfo = new ServiceInfo();
+    resolveInfo.serviceInfo.enabled = true;
+    Intent executeIntent = new Intent(JobService.ACTION_EXECUTE);
+    executeIntent.setClassName(context, TestJobService.class.getName());
+    shadowOf(context.getPackageManager()).addResolveInfoForIntent(executeIntent, resolveInfo);
+
+    validator = new DefaultJobValidator(context);
+    job = uriCount == 0 ? BenchmarkJobs.newWindowJob() : BenchmarkJobs.newContentUriJob(uriCount);
+  }
+
+  @Benchmark
+  public List<String> validate() {
+    return validator.validate(job);
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.content.Context;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Measures what setting up the library typically costs in {@code Application.onCreate}: creating a
+ * GooglePlayDriver and a FirebaseJobDispatcher around it.
+ *
+ * <p>The {@code firstDriver} benchmarks drop the process-wide driver resources before every call,
+ * so they show the cost of the very first driver in a process. Under Robolectric getting the token
+ * PendingIntent isn't an IPC, so on a device the difference to the other benchmarks is larger.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DriverStartupBenchmark {
+
+  private Context context;
+
+  @Setup
+  public void setUp() {
+    context = RuntimeEnvironment.application;
+  }
+
+  @Benchmark
+  public Driver newDriver() {
+    return new GooglePlayDriver(context);
+  }
+
+  @Benchmark
+  public FirebaseJobDispatcher newDispatcher() {
+    return new FirebaseJobDispatcher(new GooglePlayDriver(context));
+  }
+
+  @Benchmark
+  public Driver firstDriver() {
+    GooglePlayDriver.clearSharedResources();
+    return new GooglePlayDriver(context);
+  }
+
+  @Benchmark
+  public FirebaseJobDispatcher firstDispatcher() {
+    GooglePlayDriver.clearSharedResources();
+    return new FirebaseJobDispatcher(new GooglePlayDriver(context));
+  }
+}
@@ -0,0 +1,66 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Bundle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks for measuring the size of job extras, as done on every validation. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExtrasSizeBenchmark {
+
+  /** The approximate parcelled size of the extras, in bytes. */
+  @Param({"100", "1024", "10240"})
+  public int extrasBytes;
+
+  private Bundle extras;
+
+  @Setup
+  public void setUp() {
+    // Mixes short strings and primitives until the extras reach the requested size
+    extras = new Bundle();
+    int i = 0;
+    while (DefaultJobValidator.estimateBundleSize(extras, extrasBytes) < extrasBytes) {
+      extras.putString("string" + i, "some value " + i);
+      extras.putInt("int" + i, i);
+      extras.putLong("long" + i, i);
+      extras.putBoolean("boolean" + i, i % 2 == 0);
+      i++;
+    }
+  }
+
+  @Benchmark
+  public int measureBundleSize() {
+    return DefaultJobValidator.measureBundleSize(extras);
+  }
+
+  @Benchmark
+  public int estimateBundleSize() {
+    return DefaultJobValidator.estimateBundleSize(
+        extras, DefaultJobValidator.MAX_EXTRAS_SIZE_BYTES);
+  }
+}
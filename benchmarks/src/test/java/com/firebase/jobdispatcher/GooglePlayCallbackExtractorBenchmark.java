@@ -0,0 +1,78 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.Pair;
+import com.firebase.jobdispatcher.TestUtil.InspectableBinder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks for pulling the callback out of a Google Play services execution request. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GooglePlayCallbackExtractorBenchmark {
+
+  /** The approximate size of the user-provided extras, in bytes. */
+  @Param({"1024", "10240"})
+  public int extrasBytes;
+
+  private final GooglePlayCallbackExtractor extractor = new GooglePlayCallbackExtractor();
+  private Bundle request;
+
+  @Setup
+  public void setUp() {
+    Job job = BenchmarkJobs.newWindowJob();
+    Bundle extras =
+        new JobCoder(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX).encode(job, new Bundle());
+    // Strings are parcelled as UTF-16, so every char takes two bytes
+    char[] payload = new char[extrasBytes / 2];
+    Arrays.fill(payload, 'x');
+    extras.putString("payload", new String(payload));
+
+    // Mirrors what Google Play services sends: the tag, the original extras and the callback
+    Bundle bundle = new Bundle();
+    bundle.putString("tag", job.getTag());
+    bundle.putBundle(GooglePlayJobWriter.REQUEST_PARAM_EXTRAS, extras);
+    bundle.putParcelable("callback", new InspectableBinder().toPendingCallback());
+
+    // Received Bundles are still parcelled, so do the same round trip
+    Parcel parcel = Parcel.obtain();
+    try {
+      bundle.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      request = parcel.readBundle();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  @Benchmark
+  public Pair<JobCallback, Bundle> extractCallback() {
+    return extractor.extractCallback(request);
+  }
+}
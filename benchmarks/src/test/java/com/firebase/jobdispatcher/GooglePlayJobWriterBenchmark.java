@@ -0,0 +1,52 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Bundle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks for turning jobs into Google Play services scheduling requests. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GooglePlayJobWriterBenchmark {
+
+  /** Zero means a window trigger, anything else a content URI trigger with that many URIs. */
+  @Param({"0", "1", "10", "100"})
+  public int uriCount;
+
+  private final GooglePlayJobWriter writer = new GooglePlayJobWriter();
+  private Job job;
+
+  @Setup
+  public void setUp() {
+    job = uriCount == 0 ? BenchmarkJobs.newWindowJob() : BenchmarkJobs.newContentUriJob(uriCount);
+  }
+
+  @Benchmark
+  public Bundle writeToBundle() {
+    return writer.writeToBundle(job, new Bundle());
+  }
+}
@@ -0,0 +1,91 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Measures the throughput of the running job callback bookkeeping in GooglePlayReceiver while
+ * several threads start and finish jobs, with a large number of other jobs already running.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class JobCallbackRegistryBenchmark {
+
+  private static final JobCallback CALLBACK =
+      new JobCallback() {
+        @Override
+        public void jobFinished(int status) {}
+      };
+
+  /** The registry, shared by all threads and filled with {@code runningJobs} callbacks. */
+  @State(Scope.Benchmark)
+  public static class Registry {
+    @Param({"5000"})
+    public int runningJobs;
+
+    final JobCallbackRegistry registry = new JobCallbackRegistry();
+    final AtomicInteger threadCount = new AtomicInteger();
+
+    @Setup
+    public void setUp() {
+      for (int i = 0; i < runningJobs; i++) {
+        registry.put(TestJobService.class.getName(), "running-job-" + i, CALLBACK);
+      }
+    }
+  }
+
+  /** The job each thread starts and finishes. Tags differ per thread, like real jobs would. */
+  @State(Scope.Thread)
+  public static class ThreadJob {
+    String service;
+    String tag;
+
+    @Setup
+    public void setUp(Registry registry) {
+      service = TestJobService.class.getName();
+      tag = "thread-job-" + registry.threadCount.getAndIncrement();
+    }
+  }
+
+  @Benchmark
+  public JobCallback startAndFinish(Registry registry, ThreadJob job) {
+    registry.registry.put(job.service, job.tag, CALLBACK);
+    return registry.registry.remove(job.service, job.tag);
+  }
+
+  @Benchmark
+  public boolean isRunning(Registry registry, ThreadJob job) {
+    return registry.registry.contains(job.service, job.tag);
+  }
+
+  @Benchmark
+  public boolean isEmpty(Registry registry) {
+    return registry.registry.isEmpty();
+  }
+}
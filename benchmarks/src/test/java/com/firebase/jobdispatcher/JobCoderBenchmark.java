@@ -0,0 +1,70 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Bundle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Benchmarks for encoding and decoding jobs with the {@link JobCoder}. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JobCoderBenchmark {
+
+  @Param({"KEY_PER_FIELD", "COMPACT"})
+  public String format;
+
+  @Param({"1", "10", "100"})
+  public int uriCount;
+
+  private JobCoder coder;
+  private Job job;
+  private Bundle encoded;
+
+  @Setup
+  public void setUp() {
+    coder =
+        new JobCoder(
+            BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX,
+            "COMPACT".equals(format) ? JobCoder.FORMAT_COMPACT : JobCoder.FORMAT_KEY_PER_FIELD);
+    job = BenchmarkJobs.newContentUriJob(uriCount);
+    encoded = coder.encode(job, new Bundle());
+  }
+
+  @Benchmark
+  public Bundle encode() {
+    return coder.encode(job, new Bundle());
+  }
+
+  @Benchmark
+  public JobParameters decode() {
+    return coder.decode(encoded).build();
+  }
+
+  @Benchmark
+  public JobParameters decodeLazily() {
+    return coder.decodeLazily(encoded);
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import java.io.File;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/**
+ * Runs the JMH benchmarks inside a Robolectric sandbox.
+ *
+ * <p>JMH normally forks a fresh JVM per benchmark, but a forked JVM wouldn't have Robolectric's
+ * Android implementations available. The benchmarks are run in-process instead, which makes the
+ * absolute numbers a little noisier but keeps them comparable between runs on the same machine.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class RunBenchmarksTest {
+
+  @Test
+  public void runBenchmarks() throws Exception {
+    ChainedOptionsBuilder options =
+        new OptionsBuilder()
+            .include(System.getProperty("jmh.include", ""))
+            .forks(0)
+            .warmupIterations(5)
+            .measurementIterations(10)
+            .shouldFailOnError(true);
+
+    String resultFile = System.getProperty("jmh.resultFile");
+    if (resultFile != null) {
+      File parent = new File(resultFile).getParentFile();
+      if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+        throw new IllegalStateException("Unable to create " + parent);
+      }
+      options.resultFormat(ResultFormatType.JSON).result(resultFile);
+    }
+
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,88 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.content.ContextWrapper;
+import android.content.Intent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Measures how the time it takes to schedule an app's jobs (e.g. at startup) scales with the number
+ * of jobs, one at a time versus in a single batch.
+ *
+ * <p>Broadcasts are dropped instead of delivered, so this only measures the library's side.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ScheduleBenchmark {
+
+  @Param({"1", "10", "40", "100"})
+  public int jobCount;
+
+  private FirebaseJobDispatcher dispatcher;
+  private List<Job> jobs;
+
+  @Setup
+  public void setUp() {
+    ContextWrapper context =
+        new ContextWrapper(RuntimeEnvironment.application) {
+          @Override
+          public void sendBroadcast(Intent intent) {}
+        };
+    dispatcher = new FirebaseJobDispatcher(new GooglePlayDriver(context));
+
+    jobs = new ArrayList<>(jobCount);
+    for (int i = 0; i < jobCount; i++) {
+      jobs.add(
+          TestUtil.getBuilderWithNoopValidator()
+              .setTag("startup-job-" + i)
+              .setService(TestJobService.class)
+              .setTrigger(Trigger.executionWindow(60, 300))
+              .setRecurring(true)
+              .setConstraints(Constraint.ON_ANY_NETWORK)
+              .build());
+    }
+  }
+
+  @Benchmark
+  public int scheduleIndividually() {
+    int failures = 0;
+    for (int i = 0; i < jobs.size(); i++) {
+      if (dispatcher.schedule(jobs.get(i)) != FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+        failures++;
+      }
+    }
+    return failures;
+  }
+
+  @Benchmark
+  public int[] scheduleAll() {
+    return dispatcher.scheduleAll(jobs);
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import android.os.Bundle;
+import android.support.test.runner.AndroidJUnit4;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Android test for {@link DefaultJobValidator#estimateBundleSize}, which has to agree with the
+ * platform's Parcel implementation. Robolectric's Parcel uses different sizes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DefaultJobValidatorAndroidTest {
+
+  @Test
+  public void estimateBundleSize_emptyBundle() {
+    assertMatchesParcelSize(new Bundle());
+  }
+
+  @Test
+  public void estimateBundleSize_primitives() {
+    Bundle bundle = new Bundle();
+    bundle.putInt("int", 42);
+    bundle.putLong("long", Long.MAX_VALUE);
+    bundle.putDouble("double", 0.5);
+    bundle.putBoolean("boolean", true);
+    bundle.putString("null", null);
+
+    assertMatchesParcelSize(bundle);
+  }
+
+  @Test
+  public void estimateBundleSize_stringPadding() {
+    // Strings of every length modulo 4, so every amount of padding is covered
+    for (int length = 0; length < 8; length++) {
+      Bundle bundle = new Bundle();
+      bundle.putString(repeat('k', length + 1), repeat('v', length));
+
+      assertMatchesParcelSize(bundle);
+    }
+  }
+
+  @Test
+  public void estimateBundleSize_unicode() {
+    Bundle bundle = new Bundle();
+    bundle.putString("ключ", "значение 😀");
+
+    assertMatchesParcelSize(bundle);
+  }
+
+  @Test
+  public void estimateBundleSize_unsupportedTypes() {
+    Bundle bundle = new Bundle();
+    bundle.putString("foo", "bar");
+    bundle.putIntArray("array", new int[] {1, 2, 3});
+    bundle.putBundle("bundle", new Bundle());
+
+    assertMatchesParcelSize(bundle);
+  }
+
+  @Test
+  public void estimateBundleSize_sizesAroundTheLimit() {
+    List<Bundle> bundles = new ArrayList<>();
+    for (int size : new int[] {100, 1024, DefaultJobValidator.MAX_EXTRAS_SIZE_BYTES}) {
+      Bundle bundle = new Bundle();
+      for (int i = 0; i * 100 < size; i++) {
+        bundle.putString("key" + i, repeat('x', 40));
+        bundle.putInt("int" + i, i);
+      }
+      bundles.add(bundle);
+    }
+
+    for (Bundle bundle : bundles) {
+      assertMatchesParcelSize(bundle);
+    }
+  }
+
+  @Test
+  public void estimateBundleSize_stopsOnceOverLimit() {
+    Bundle bundle = new Bundle();
+    for (int i = 0; i < 100; i++) {
+      bundle.putString("key" + i, repeat('x', 100));
+    }
+
+    int estimate = DefaultJobValidator.estimateBundleSize(bundle, 1024);
+    assertThat(estimate).isGreaterThan(1024);
+    assertThat(estimate).isLessThan(DefaultJobValidator.measureBundleSize(bundle));
+  }
+
+  private static void assertMatchesParcelSize(Bundle bundle) {
+    assertWithMessage(bundle.toString())
+        .that(DefaultJobValidator.estimateBundleSize(bundle, Integer.MAX_VALUE))
+        .isEqualTo(DefaultJobValidator.measureBundleSize(bundle));
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+}
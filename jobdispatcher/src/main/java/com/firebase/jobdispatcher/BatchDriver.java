@@ -0,0 +1,51 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.support.annotation.NonNull;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import java.util.List;
+
+/**
+ * An optional extension of {@link Driver} for backends that can schedule or cancel several Jobs
+ * more cheaply than by handling them one at a time.
+ *
+ * @see FirebaseJobDispatcher#scheduleAll(java.util.Collection)
+ * @see FirebaseJobDispatcher#cancelByPrefix(String)
+ * @see FirebaseJobDispatcher#cancelByService(Class)
+ */
+public interface BatchDriver extends Driver {
+
+  /**
+   * Schedules all the provided Jobs.
+   *
+   * @return one of the SCHEDULE_RESULT_ constants for each Job, in the same order as {@code jobs}
+   */
+  @NonNull
+  @ScheduleResult
+  int[] scheduleAll(@NonNull List<Job> jobs);
+
+  /**
+   * Cancels the Jobs with the provided tags.
+   *
+   * @return {@link FirebaseJobDispatcher#CANCEL_RESULT_SUCCESS} if all Jobs were cancelled,
+   *     otherwise one of the other CANCEL_RESULT_ constants
+   */
+  @CancelResult
+  int cancelAll(@NonNull List<String> tags);
+}
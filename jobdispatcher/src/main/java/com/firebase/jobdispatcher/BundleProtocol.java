@@ -42,6 +42,7 @@ final class BundleProtocol {
   static final String PACKED_PARAM_CONTENT_URI_ARRAY = "content_uri_array";
   static final String PACKED_PARAM_TRIGGERED_URIS = "triggered_uris";
   static final String PACKED_PARAM_OBSERVED_URI = "observed_uris";
+  static final String PACKED_PARAM_COMPACT_SPEC = "compact_spec";
 
   private BundleProtocol() {
      throw new AssertionError("No instance for you!");
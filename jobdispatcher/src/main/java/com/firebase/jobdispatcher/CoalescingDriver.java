@@ -0,0 +1,208 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v4.util.SimpleArrayMap;
+import android.util.Log;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Driver that wraps another Driver and debounces schedule requests per tag. The first request
+ * for a tag opens a window of {@code debounceMillis}; every request for the same tag within that
+ * window replaces the pending Job, and only the latest one is passed on when the window closes.
+ *
+ * <p>This is useful for tags that are rescheduled very frequently (e.g. after every local database
+ * write), where each request would otherwise cost a broadcast and possibly stop a running instance.
+ *
+ * <p>Since the actual scheduling is deferred, {@link #schedule(Job)} always reports {@link
+ * FirebaseJobDispatcher#SCHEDULE_RESULT_SUCCESS} (or {@link
+ * FirebaseJobDispatcher#SCHEDULE_RESULT_NO_DRIVER_AVAILABLE}). Failures of the deferred request are
+ * logged. Pending requests are lost if the process dies before the window closes, call {@link
+ * #flush()} to send them immediately.
+ *
+ * <p>If the wrapped Driver implements {@link BatchDriver}, cancelling several tags and flushing
+ * several pending Jobs each take a single call.
+ */
+public final class CoalescingDriver implements BatchDriver {
+
+  private static final String TAG = "FJD.CoalescingDriver";
+
+  private final Driver driver;
+  private final long debounceMillis;
+  private final Handler handler;
+
+  /** Maps the tags with an open debounce window to the window. */
+  // @GuardedBy("pendingJobs")
+  private final SimpleArrayMap<String, Window> pendingJobs = new SimpleArrayMap<>();
+
+  /**
+   * Instantiates a new CoalescingDriver. Pending Jobs are passed on from the main thread.
+   *
+   * @param driver the Driver that coalesced requests are forwarded to
+   * @param debounceMillis how long to wait for more requests for the same tag, in milliseconds
+   */
+  public CoalescingDriver(@NonNull Driver driver, long debounceMillis) {
+    if (debounceMillis < 0) {
+      throw new IllegalArgumentException("debounceMillis can't be negative");
+    }
+
+    this.driver = driver;
+    this.debounceMillis = debounceMillis;
+    handler = new Handler(Looper.getMainLooper());
+  }
+
+  @Override
+  @ScheduleResult
+  public int schedule(@NonNull Job job) {
+    if (!driver.isAvailable()) {
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    Window window;
+    synchronized (pendingJobs) {
+      window = pendingJobs.get(job.getTag());
+      if (window != null) {
+        // The window's pending flush will pick up the new Job
+        window.job = job;
+        return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+      }
+
+      window = new Window(job);
+      pendingJobs.put(job.getTag(), window);
+    }
+
+    handler.postDelayed(window, debounceMillis);
+    return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+  }
+
+  /** Same as {@link #schedule(Job)} for every Job, which only opens or updates its window. */
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    int[] results = new int[jobs.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = schedule(jobs.get(i));
+    }
+    return results;
+  }
+
+  @Override
+  @CancelResult
+  public int cancel(@NonNull String tag) {
+    synchronized (pendingJobs) {
+      pendingJobs.remove(tag);
+    }
+    return driver.cancel(tag);
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll(@NonNull List<String> tags) {
+    synchronized (pendingJobs) {
+      for (int i = 0; i < tags.size(); i++) {
+        pendingJobs.remove(tags.get(i));
+      }
+    }
+    return Drivers.cancelAll(driver, tags);
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll() {
+    synchronized (pendingJobs) {
+      pendingJobs.clear();
+    }
+    return driver.cancelAll();
+  }
+
+  /** Immediately passes on all pending Jobs, instead of waiting for their windows to close. */
+  public void flush() {
+    List<Job> jobs;
+    synchronized (pendingJobs) {
+      jobs = new ArrayList<>(pendingJobs.size());
+      for (int i = 0; i < pendingJobs.size(); i++) {
+        jobs.add(pendingJobs.valueAt(i).job);
+      }
+      pendingJobs.clear();
+    }
+
+    if (jobs.isEmpty()) {
+      return;
+    }
+    int[] results = Drivers.scheduleAll(driver, jobs);
+    for (int i = 0; i < results.length; i++) {
+      logFailure(jobs.get(i), results[i]);
+    }
+  }
+
+  @NonNull
+  @Override
+  public JobValidator getValidator() {
+    return driver.getValidator();
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return driver.isAvailable();
+  }
+
+  private void close(Window window) {
+    Job job;
+    synchronized (pendingJobs) {
+      job = window.job;
+      if (pendingJobs.get(job.getTag()) != window) {
+        // Cancelled or flushed in the meantime
+        return;
+      }
+      pendingJobs.remove(job.getTag());
+    }
+
+    forward(job);
+  }
+
+  private void forward(Job job) {
+    logFailure(job, driver.schedule(job));
+  }
+
+  private static void logFailure(Job job, @ScheduleResult int result) {
+    if (result != FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+      Log.e(TAG, "Failed to schedule coalesced job " + job.getTag() + ", result = " + result);
+    }
+  }
+
+  /** The debounce window for a single tag. Passes on the latest Job when run. */
+  private final class Window implements Runnable {
+    // @GuardedBy("pendingJobs")
+    private Job job;
+
+    Window(Job job) {
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      close(this);
+    }
+  }
+}
@@ -0,0 +1,332 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static com.firebase.jobdispatcher.Constraint.compact;
+import static com.firebase.jobdispatcher.Constraint.uncompact;
+import static com.firebase.jobdispatcher.ExecutionDelegator.TAG;
+
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Pair;
+import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import com.firebase.jobdispatcher.JobTrigger.ExecutionWindowTrigger;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Packs everything but the user extras of a JobParameters into a single, versioned byte array.
+ *
+ * <p>The layout (all multi-byte values are big-endian, strings are modified UTF-8 as written by
+ * {@link DataOutputStream#writeUTF(String)}):
+ *
+ * <ol>
+ *   <li>version (byte), currently {@link #VERSION}
+ *   <li>flags (byte), a combination of the {@code FLAG_} constants
+ *   <li>lifetime (byte)
+ *   <li>compacted constraints (int), see {@link Constraint#compact(int[])}
+ *   <li>tag (string), only present if {@link #FLAG_HAS_TAG} is set
+ *   <li>service (string), only present if {@link #FLAG_HAS_SERVICE} is set
+ *   <li>trigger type (byte), followed by the trigger's fields
+ *   <li>retry policy (byte), initial backoff (int) and maximum backoff (int)
+ * </ol>
+ */
+/* package */ final class CompactJobCodec {
+
+  /**
+   * The version this codec writes. Bump whenever the layout changes, and keep reading the older
+   * layouts: encoded jobs are persisted by JobScheduler and Google Play services across app
+   * updates, and data the decoder doesn't understand makes the job undecodable.
+   */
+  static final int VERSION = 1;
+
+  /** The oldest version the decoder still reads. Must never be raised. */
+  static final int MIN_VERSION = 1;
+
+  private static final int FLAG_RECURRING = 1;
+  private static final int FLAG_REPLACE_CURRENT = 1 << 1;
+  private static final int FLAG_HAS_TAG = 1 << 2;
+  private static final int FLAG_HAS_SERVICE = 1 << 3;
+
+  /** The fewest bytes an observed URI takes up: its flags and an empty string's length. */
+  private static final int MIN_OBSERVED_URI_SIZE = 4 + 2;
+
+  /** Most jobs (tag, service, a window trigger) fit in here without growing the buffer. */
+  private static final int INITIAL_BUFFER_SIZE = 128;
+
+  private CompactJobCodec() {
+    throw new AssertionError("No instance for you!");
+  }
+
+  /**
+   * Packs the scheduling metadata of the provided {@code job}.
+   *
+   * @throws IllegalArgumentException if the job's trigger is unsupported
+   */
+  @NonNull
+  static byte[] encode(@NonNull JobParameters job) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+    DataOutputStream out = new DataOutputStream(bytes);
+
+    String tag = job.getTag();
+    String service = job.getService();
+    int flags = 0;
+    flags |= job.isRecurring() ? FLAG_RECURRING : 0;
+    flags |= job.shouldReplaceCurrent() ? FLAG_REPLACE_CURRENT : 0;
+    flags |= tag != null ? FLAG_HAS_TAG : 0;
+    flags |= service != null ? FLAG_HAS_SERVICE : 0;
+
+    try {
+      out.writeByte(VERSION);
+      out.writeByte(flags);
+      out.writeByte(job.getLifetime());
+      out.writeInt(compact(job.getConstraints()));
+      if (tag != null) {
+        out.writeUTF(tag);
+      }
+      if (service != null) {
+        out.writeUTF(service);
+      }
+      writeTrigger(job.getTrigger(), out);
+      writeRetryStrategy(job.getRetryStrategy(), out);
+    } catch (IOException e) {
+      // ByteArrayOutputStream doesn't throw, so this can only be a string that's too long to encode
+      throw new IllegalArgumentException("Unable to encode job: " + e.getMessage(), e);
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Unpacks the scheduling metadata written by {@link #encode(JobParameters)}. Returns null if the
+   * data was written by an unknown version, is corrupt, or is missing a required field.
+   */
+  @Nullable
+  static JobInvocation.Builder decode(@NonNull byte[] data) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+    try {
+      int version = in.readUnsignedByte();
+      if (!isReadable(version)) {
+        Log.w(TAG, "Unknown compact job version: " + version);
+        return null;
+      }
+
+      int flags = in.readUnsignedByte();
+      int lifetime = in.readUnsignedByte();
+      int[] constraints = uncompact(in.readInt());
+      String tag = (flags & FLAG_HAS_TAG) != 0 ? in.readUTF() : null;
+      String service = (flags & FLAG_HAS_SERVICE) != 0 ? in.readUTF() : null;
+      JobTrigger trigger = readTrigger(in);
+      RetryStrategy retryStrategy = readRetryStrategy(in);
+
+      if (tag == null || service == null || trigger == null) {
+        return null;
+      }
+
+      JobInvocation.Builder builder = new JobInvocation.Builder();
+      builder.setTag(tag);
+      builder.setService(service);
+      builder.setTrigger(trigger);
+      builder.setRetryStrategy(retryStrategy);
+      builder.setRecurring((flags & FLAG_RECURRING) != 0);
+      // noinspection WrongConstant
+      builder.setLifetime(lifetime);
+      // noinspection WrongConstant
+      builder.setConstraints(constraints);
+      builder.setReplaceCurrent((flags & FLAG_REPLACE_CURRENT) != 0);
+      return builder;
+    } catch (IOException | RuntimeException e) {
+      // The data comes from outside the app (or an older version of it), so nothing is trusted
+      Log.e(TAG, "Unable to decode compact job", e);
+      return null;
+    }
+  }
+
+  /**
+   * Reads just the tag and service from data written by {@link #encode(JobParameters)}, without
+   * decoding the trigger or retry strategy. Returns null under the same conditions as {@link
+   * #decode(byte[])}, except for a missing or unsupported trigger.
+   */
+  @Nullable
+  static Pair<String, String> decodeTagAndService(@NonNull byte[] data) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+    try {
+      int version = in.readUnsignedByte();
+      if (!isReadable(version)) {
+        Log.w(TAG, "Unknown compact job version: " + version);
+        return null;
+      }
+
+      int flags = in.readUnsignedByte();
+      if ((flags & FLAG_HAS_TAG) == 0 || (flags & FLAG_HAS_SERVICE) == 0) {
+        return null;
+      }
+
+      in.readUnsignedByte(); // lifetime
+      in.readInt(); // constraints
+      String tag = in.readUTF();
+      String service = in.readUTF();
+      return Pair.create(tag, service);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to decode compact job", e);
+      return null;
+    }
+  }
+
+  /** Returns whether the decoder understands data written with the provided version. */
+  private static boolean isReadable(int version) {
+    return version >= MIN_VERSION && version <= VERSION;
+  }
+
+  /** Reads just the recurring flag from data written by {@link #encode(JobParameters)}. */
+  static boolean decodeRecurring(@NonNull byte[] data) {
+    return data.length > 1 && isReadable(data[0] & 0xff) && (data[1] & FLAG_RECURRING) != 0;
+  }
+
+  /**
+   * Reads just the trigger type (one of the {@code BundleProtocol.TRIGGER_TYPE_} constants) from
+   * data written by {@link #encode(JobParameters)}, skipping over the tag and service. Returns -1
+   * if the data was written by an unknown version or is corrupt.
+   */
+  static int decodeTriggerType(@NonNull byte[] data) {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+
+    try {
+      if (!isReadable(in.readUnsignedByte())) {
+        return -1;
+      }
+
+      int flags = in.readUnsignedByte();
+      in.readUnsignedByte(); // lifetime
+      in.readInt(); // constraints
+      if ((flags & FLAG_HAS_TAG) != 0) {
+        skipString(in);
+      }
+      if ((flags & FLAG_HAS_SERVICE) != 0) {
+        skipString(in);
+      }
+      return in.readUnsignedByte();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to decode compact job", e);
+      return -1;
+    }
+  }
+
+  /** Skips a string written by {@link DataOutputStream#writeUTF(String)} without decoding it. */
+  private static void skipString(DataInputStream in) throws IOException {
+    int length = in.readUnsignedShort();
+    if (in.skipBytes(length) != length) {
+      throw new IOException("Truncated string");
+    }
+  }
+
+  private static void writeTrigger(JobTrigger trigger, DataOutputStream out) throws IOException {
+    if (trigger == Trigger.NOW) {
+      out.writeByte(BundleProtocol.TRIGGER_TYPE_IMMEDIATE);
+    } else if (trigger instanceof ExecutionWindowTrigger) {
+      ExecutionWindowTrigger t = (ExecutionWindowTrigger) trigger;
+
+      out.writeByte(BundleProtocol.TRIGGER_TYPE_EXECUTION_WINDOW);
+      out.writeInt(t.getWindowStart());
+      out.writeInt(t.getWindowEnd());
+    } else if (trigger instanceof ContentUriTrigger) {
+      List<ObservedUri> uris = ((ContentUriTrigger) trigger).getUris();
+
+      out.writeByte(BundleProtocol.TRIGGER_TYPE_CONTENT_URI);
+      out.writeInt(uris.size());
+      for (int i = 0; i < uris.size(); i++) {
+        ObservedUri uri = uris.get(i);
+        out.writeInt(uri.getFlags());
+        out.writeUTF(uri.getUri().toString());
+      }
+    } else {
+      throw new IllegalArgumentException("Unsupported trigger.");
+    }
+  }
+
+  @Nullable
+  private static JobTrigger readTrigger(DataInputStream in) throws IOException {
+    int type = in.readUnsignedByte();
+    switch (type) {
+      case BundleProtocol.TRIGGER_TYPE_IMMEDIATE:
+        return Trigger.NOW;
+
+      case BundleProtocol.TRIGGER_TYPE_EXECUTION_WINDOW:
+        int windowStart = in.readInt();
+        int windowEnd = in.readInt();
+        if (windowStart < 0 || windowEnd < windowStart) {
+          throw new IOException("Invalid execution window: " + windowStart + "-" + windowEnd);
+        }
+        return Trigger.executionWindow(windowStart, windowEnd);
+
+      case BundleProtocol.TRIGGER_TYPE_CONTENT_URI:
+        int count = in.readInt();
+        // Checked against what's left, so a corrupt count can't make us allocate a huge list
+        if (count <= 0 || count > in.available() / MIN_OBSERVED_URI_SIZE) {
+          throw new IOException("Invalid observed URI count: " + count);
+        }
+        List<ObservedUri> uris = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          int flags = in.readInt();
+          uris.add(new ObservedUri(Uri.parse(in.readUTF()), flags));
+        }
+        return Trigger.contentUriTrigger(Collections.unmodifiableList(uris));
+
+      default:
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+          Log.d(TAG, "Unsupported trigger.");
+        }
+        return null;
+    }
+  }
+
+  private static void writeRetryStrategy(RetryStrategy retryStrategy, DataOutputStream out)
+      throws IOException {
+    if (retryStrategy == null) {
+      retryStrategy = RetryStrategy.DEFAULT_EXPONENTIAL;
+    }
+
+    out.writeByte(retryStrategy.getPolicy());
+    out.writeInt(retryStrategy.getInitialBackoff());
+    out.writeInt(retryStrategy.getMaximumBackoff());
+  }
+
+  @NonNull
+  private static RetryStrategy readRetryStrategy(DataInputStream in) throws IOException {
+    int policy = in.readUnsignedByte();
+    int initialBackoff = in.readInt();
+    int maximumBackoff = in.readInt();
+    if (policy != RetryStrategy.RETRY_POLICY_EXPONENTIAL
+        && policy != RetryStrategy.RETRY_POLICY_LINEAR) {
+
+      return RetryStrategy.DEFAULT_EXPONENTIAL;
+    }
+
+    // noinspection WrongConstant
+    return new RetryStrategy(policy, initialBackoff, maximumBackoff);
+  }
+}
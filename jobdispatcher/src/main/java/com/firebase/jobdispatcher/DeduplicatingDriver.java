@@ -0,0 +1,272 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Driver that wraps another Driver and skips schedule requests for recurring Jobs that are
+ * identical to the last one successfully scheduled with the same tag. This makes the common
+ * pattern of (re)scheduling the same Jobs in every {@code Application#onCreate()} free of IPC.
+ *
+ * <p>A content hash of the last scheduled Job per tag is persisted in {@link SharedPreferences}.
+ * Entries are dropped when the Job is cancelled via this Driver, and all entries are dropped when
+ * the app is updated or reinstalled and when the device reboots, since Jobs with a {@link
+ * Lifetime#UNTIL_NEXT_BOOT} lifetime don't survive that. Non-recurring Jobs and Jobs with extras
+ * that can't be persisted are never deduplicated, since scheduling them again is a meaningful
+ * request.
+ *
+ * <p>The cache only knows about requests that went through this Driver. It goes stale when a tag
+ * is replaced or cancelled some other way: by {@link GooglePlayReceiver} or {@link
+ * JobSchedulerReceiver} rescheduling a finished content URI Job, or by another {@link
+ * FirebaseJobDispatcher} or Driver instance (such as a plain {@link JobSchedulerDriver}) that
+ * talks to the same backend. Route every request for a tag through the same DeduplicatingDriver,
+ * or call {@link #clearCache()} whenever the backend may have lost or changed Jobs behind its back
+ * (e.g. because its data was cleared) to force the next schedule requests through. The cache is
+ * cleared automatically when Google Play services asks the app to reschedule its Jobs.
+ */
+public final class DeduplicatingDriver implements BatchDriver {
+
+  private static final String TAG = "FJD.DeduplicatingDriver";
+
+  @VisibleForTesting
+  static final String PREFERENCES_NAME = "com.firebase.jobdispatcher.schedule_cache";
+
+  /** Stores the app's last update time. Tags are stored with a prefix, so they can't collide. */
+  private static final String KEY_APP_UPDATE_TIME = "app_update_time";
+
+  /** Stores the wall clock time at which the device last booted. */
+  @VisibleForTesting static final String KEY_BOOT_TIME = "boot_time";
+
+  /**
+   * How far two computed boot times may differ and still be considered the same boot. The boot
+   * time is derived from the wall clock, which may be adjusted while the device is running, but
+   * a reboot always moves it by more than this.
+   */
+  private static final long BOOT_TIME_TOLERANCE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final String HASH_ALGORITHM = "SHA-1";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final Driver driver;
+  private final SharedPreferences preferences;
+
+  /**
+   * Instantiates a new DeduplicatingDriver.
+   *
+   * @param context used to access the persisted cache and the app's update time
+   * @param driver the Driver that non-redundant requests are forwarded to
+   */
+  public DeduplicatingDriver(@NonNull Context context, @NonNull Driver driver) {
+    this.driver = driver;
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+
+    long appUpdateTime = getAppUpdateTime(context);
+    long bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
+    if (preferences.getLong(KEY_APP_UPDATE_TIME, -1) != appUpdateTime
+        || Math.abs(preferences.getLong(KEY_BOOT_TIME, -1) - bootTime)
+            > BOOT_TIME_TOLERANCE_MILLIS) {
+      // The app was updated or reinstalled, or the device rebooted and dropped all Jobs that only
+      // live until the next boot, so the backend's state can't be trusted anymore
+      preferences
+          .edit()
+          .clear()
+          .putLong(KEY_APP_UPDATE_TIME, appUpdateTime)
+          .putLong(KEY_BOOT_TIME, bootTime)
+          .apply();
+    }
+  }
+
+  @Override
+  @ScheduleResult
+  public int schedule(@NonNull Job job) {
+    String hash = hash(job);
+    if (hash != null && hash.equals(preferences.getString(key(job.getTag()), null))) {
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+    }
+
+    int result = driver.schedule(job);
+    record(job.getTag(), hash, result);
+    return result;
+  }
+
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    int[] results = new int[jobs.size()];
+    String[] hashes = new String[jobs.size()];
+    List<Job> pending = new ArrayList<>(jobs.size());
+    int[] pendingIndices = new int[jobs.size()];
+
+    for (int i = 0; i < jobs.size(); i++) {
+      Job job = jobs.get(i);
+      hashes[i] = hash(job);
+      if (hashes[i] != null && hashes[i].equals(preferences.getString(key(job.getTag()), null))) {
+        results[i] = FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+      } else {
+        pendingIndices[pending.size()] = i;
+        pending.add(job);
+      }
+    }
+
+    if (pending.isEmpty()) {
+      return results;
+    }
+
+    int[] pendingResults = Drivers.scheduleAll(driver, pending);
+
+    for (int i = 0; i < pending.size(); i++) {
+      int index = pendingIndices[i];
+      results[index] = pendingResults[i];
+      record(jobs.get(index).getTag(), hashes[index], results[index]);
+    }
+    return results;
+  }
+
+  @Override
+  @CancelResult
+  public int cancel(@NonNull String tag) {
+    // Forget the job first, so a failed cancellation can't cause a later schedule to be skipped
+    preferences.edit().remove(key(tag)).apply();
+    return driver.cancel(tag);
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll(@NonNull List<String> tags) {
+    SharedPreferences.Editor editor = preferences.edit();
+    for (int i = 0; i < tags.size(); i++) {
+      editor.remove(key(tags.get(i)));
+    }
+    editor.apply();
+
+    return Drivers.cancelAll(driver, tags);
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll() {
+    clearCache();
+    return driver.cancelAll();
+  }
+
+  /** Forgets all previously scheduled Jobs, so the next schedule requests are always forwarded. */
+  public void clearCache() {
+    clearCache(preferences);
+  }
+
+  /**
+   * Same as {@link #clearCache()}, for every DeduplicatingDriver in the app. Called when the
+   * backend reports that it lost its Jobs.
+   */
+  static void clearCache(@NonNull Context context) {
+    clearCache(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+  }
+
+  private static void clearCache(SharedPreferences preferences) {
+    SharedPreferences.Editor editor = preferences.edit();
+    for (String key : preferences.getAll().keySet()) {
+      if (!KEY_APP_UPDATE_TIME.equals(key) && !KEY_BOOT_TIME.equals(key)) {
+        editor.remove(key);
+      }
+    }
+    editor.apply();
+  }
+
+  @NonNull
+  @Override
+  public JobValidator getValidator() {
+    return driver.getValidator();
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return driver.isAvailable();
+  }
+
+  private void record(String tag, @Nullable String hash, @ScheduleResult int result) {
+    if (hash != null && result == FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+      preferences.edit().putString(key(tag), hash).apply();
+    } else {
+      // Whatever the backend has now, it's not what we remembered
+      preferences.edit().remove(key(tag)).apply();
+    }
+  }
+
+  /** Job tags are arbitrary strings, so they're prefixed to keep them apart from other keys. */
+  private static String key(String tag) {
+    return "tag:" + tag;
+  }
+
+  private static long getAppUpdateTime(Context context) {
+    try {
+      PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+      return info.lastUpdateTime;
+    } catch (NameNotFoundException e) {
+      Log.w(TAG, "Unable to find own package, schedule cache will be reset", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Returns a hash of everything about the provided {@code job} that the scheduling backend sees,
+   * or null if the job shouldn't be deduplicated.
+   */
+  @VisibleForTesting
+  @Nullable
+  static String hash(@NonNull JobParameters job) {
+    if (!job.isRecurring()) {
+      return null;
+    }
+
+    String spec = JobSpecSerializer.serialize(job, true /* extrasValues */);
+    if (spec == null) {
+      return null;
+    }
+
+    try {
+      byte[] digest = MessageDigest.getInstance(HASH_ALGORITHM).digest(spec.getBytes(UTF_8));
+      char[] hex = new char[digest.length * 2];
+      for (int i = 0; i < digest.length; i++) {
+        hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+        hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+      }
+      return new String(hex);
+    } catch (NoSuchAlgorithmException e) {
+      Log.w(TAG, "Unable to hash job, it won't be deduplicated", e);
+      return null;
+    }
+  }
+}
@@ -20,10 +20,14 @@ import static com.firebase.jobdispatcher.GooglePlayReceiver.TAG;
 import static com.firebase.jobdispatcher.RetryStrategy.RETRY_POLICY_EXPONENTIAL;
 import static com.firebase.jobdispatcher.RetryStrategy.RETRY_POLICY_LINEAR;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.support.annotation.CallSuper;
@@ -33,13 +37,21 @@ import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 /**
  * Validates Jobs according to some safe standards.
  *
  * <p>Custom JobValidators should typically extend from this.
+ *
+ * <p>Services that resolve to an enabled component are remembered for the life of the process, and
+ * forgotten when the system broadcasts a change to the app's package. That broadcast is delivered
+ * asynchronously, so a Job validated right after a service was disabled with {@link
+ * PackageManager#setComponentEnabledSetting} and {@link PackageManager#DONT_KILL_APP} may still be
+ * accepted. Only disabling is affected, since services that aren't enabled are never remembered.
  */
 public class DefaultJobValidator implements JobValidator {
 
@@ -55,6 +67,23 @@ public class DefaultJobValidator implements JobValidator {
    */
   public static final int MAX_EXTRAS_SIZE_BYTES = 10 * 1024;
 
+  private static final int INT_SIZE = 4;
+  private static final int LONG_SIZE = 8;
+
+  /**
+   * The services that resolved to an enabled component, as "package/class". Resolving a service
+   * is an IPC, and the answer only changes when the app's package does.
+   */
+  // @GuardedBy("enabledServices")
+  private static final Set<String> enabledServices = new HashSet<>();
+
+  /** Incremented whenever {@link #enabledServices} is cleared. */
+  // @GuardedBy("enabledServices")
+  private static int enabledServicesGeneration;
+
+  // @GuardedBy("enabledServices")
+  private static boolean packageReceiverRegistered;
+
   /** Private ref to the Context. Necessary to check that the manifest is configured correctly. */
   private final Context context;
 
@@ -63,7 +92,7 @@ public class DefaultJobValidator implements JobValidator {
   }
 
   /** @see #MAX_EXTRAS_SIZE_BYTES */
-  private static int measureBundleSize(Bundle extras) {
+  static int measureBundleSize(Bundle extras) {
     Parcel p = Parcel.obtain();
     extras.writeToParcel(p, 0);
     int sizeInBytes = p.dataSize();
@@ -72,6 +101,65 @@ public class DefaultJobValidator implements JobValidator {
     return sizeInBytes;
   }
 
+  /**
+   * Returns the same size as {@link #measureBundleSize}, but computes it from the supported extras
+   * types instead of marshalling the Bundle. Stops as soon as the size exceeds {@code limit}, in
+   * which case the returned value is only known to be greater than {@code limit}.
+   *
+   * <p>Bundles with other value types, and all Bundles before Lollipop (which wrote keys as values,
+   * except on some OEM builds), are measured with a Parcel instead.
+   */
+  static int estimateBundleSize(@NonNull Bundle extras, int limit) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+      return measureBundleSize(extras);
+    }
+    if (extras.isEmpty()) {
+      // Empty Bundles are just a zero length
+      return INT_SIZE;
+    }
+
+    // length, magic number and number of entries
+    int size = 3 * INT_SIZE;
+    for (String key : extras.keySet()) {
+      int valueSize = estimateValueSize(extras.get(key));
+      if (valueSize < 0) {
+        return measureBundleSize(extras);
+      }
+
+      // key, type marker and value
+      size += estimateStringSize(key) + INT_SIZE + valueSize;
+      if (size > limit) {
+        return size;
+      }
+    }
+    return size;
+  }
+
+  /** Returns the parcelled size of {@code value}, or -1 if it isn't a supported extras type. */
+  private static int estimateValueSize(@Nullable Object value) {
+    if (value == null) {
+      return 0;
+    }
+    if (value instanceof String) {
+      return estimateStringSize((String) value);
+    }
+    if (value instanceof Integer || value instanceof Boolean) {
+      return INT_SIZE;
+    }
+    if (value instanceof Long || value instanceof Double) {
+      return LONG_SIZE;
+    }
+    return -1;
+  }
+
+  /**
+   * Strings are written as their length, followed by their UTF-16 chars and a terminating null
+   * char, padded to a multiple of four bytes.
+   */
+  private static int estimateStringSize(@NonNull String value) {
+    return INT_SIZE + (((value.length() + 1) * 2 + 3) & ~3);
+  }
+
   /** Combines two {@literal List<String>s} together. */
   @Nullable
   private static List<String> mergeErrorLists(
@@ -210,12 +298,13 @@ public class DefaultJobValidator implements JobValidator {
       return null;
     }
 
-    int bundleSizeInBytes = measureBundleSize(extras);
+    int bundleSizeInBytes = estimateBundleSize(extras, MAX_EXTRAS_SIZE_BYTES);
     if (bundleSizeInBytes > MAX_EXTRAS_SIZE_BYTES) {
+      // The estimate stops early, so the actual size may be even larger
       return getMutableSingletonList(
           String.format(
               Locale.US,
-              "Extras too large: %d bytes is > the max (%d bytes)",
+              "Extras too large: at least %d bytes is > the max (%d bytes)",
               bundleSizeInBytes,
               MAX_EXTRAS_SIZE_BYTES));
     }
@@ -260,6 +349,21 @@ public class DefaultJobValidator implements JobValidator {
       return getMutableSingletonList("PackageManager is null, can't validate service");
     }
 
+    String packageName = context.getPackageName();
+    String cacheKey = packageName + "/" + service;
+    int generation;
+    synchronized (enabledServices) {
+      if (enabledServices.contains(cacheKey)) {
+        return null;
+      }
+      if (!packageReceiverRegistered) {
+        // Registered before the first query, so no change can go unnoticed
+        registerPackageReceiver(context, packageName);
+        packageReceiverRegistered = true;
+      }
+      generation = enabledServicesGeneration;
+    }
+
     Intent executeIntent = new Intent(JobService.ACTION_EXECUTE);
     executeIntent.setClassName(context, service);
     List<ResolveInfo> intentServices = pm.queryIntentServices(executeIntent, 0);
@@ -277,6 +381,12 @@ public class DefaultJobValidator implements JobValidator {
     for (ResolveInfo info : intentServices) {
       if (info.serviceInfo != null && info.serviceInfo.enabled) {
         // found a match!
+        synchronized (enabledServices) {
+          // Don't cache an answer that may predate a package change
+          if (generation == enabledServicesGeneration) {
+            enabledServices.add(cacheKey);
+          }
+        }
         return null;
       }
     }
@@ -284,6 +394,55 @@ public class DefaultJobValidator implements JobValidator {
     return getMutableSingletonList(service + " is disabled.");
   }
 
+  /**
+   * Forgets all resolved services whenever the app's package changes, which includes components
+   * being enabled or disabled.
+   */
+  private static void registerPackageReceiver(Context context, final String packageName) {
+    Context appContext = context.getApplicationContext();
+    if (appContext == null) {
+      appContext = context;
+    }
+
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addDataScheme("package");
+    appContext.registerReceiver(
+        new BroadcastReceiver() {
+          @Override
+          public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null && packageName.equals(data.getSchemeSpecificPart())) {
+              synchronized (enabledServices) {
+                enabledServices.clear();
+                enabledServicesGeneration++;
+              }
+            }
+          }
+        },
+        filter);
+  }
+
+  /**
+   * Returns a number that changes whenever the resolved services are forgotten, so callers can
+   * tell whether a result that depends on {@link #validateService} may be out of date.
+   */
+  static int getServiceCacheGeneration() {
+    synchronized (enabledServices) {
+      return enabledServicesGeneration;
+    }
+  }
+
+  @VisibleForTesting
+  static void clearServiceCache() {
+    synchronized (enabledServices) {
+      enabledServices.clear();
+      enabledServicesGeneration++;
+      packageReceiverRegistered = false;
+    }
+  }
+
   private static List<String> validateTag(String tag) {
     if (tag == null) {
       return getMutableSingletonList("Tag can't be null");
@@ -0,0 +1,65 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.support.annotation.NonNull;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import java.util.List;
+
+/**
+ * Hands several Jobs or tags to a Driver in a single call if it implements {@link BatchDriver},
+ * and one at a time otherwise.
+ */
+/* package */ final class Drivers {
+
+  private Drivers() {
+    throw new AssertionError("No instance for you!");
+  }
+
+  /** Same as {@link BatchDriver#scheduleAll(List)}, for any Driver. */
+  @NonNull
+  @ScheduleResult
+  static int[] scheduleAll(@NonNull Driver driver, @NonNull List<Job> jobs) {
+    if (driver instanceof BatchDriver) {
+      return ((BatchDriver) driver).scheduleAll(jobs);
+    }
+
+    int[] results = new int[jobs.size()];
+    for (int i = 0; i < results.length; i++) {
+      results[i] = driver.schedule(jobs.get(i));
+    }
+    return results;
+  }
+
+  /** Same as {@link BatchDriver#cancelAll(List)}, for any Driver. */
+  @CancelResult
+  static int cancelAll(@NonNull Driver driver, @NonNull List<String> tags) {
+    if (driver instanceof BatchDriver) {
+      return ((BatchDriver) driver).cancelAll(tags);
+    }
+
+    int result = FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+    for (int i = 0; i < tags.size(); i++) {
+      int tagResult = driver.cancel(tags.get(i));
+      if (result == FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS) {
+        result = tagResult;
+      }
+    }
+    return result;
+  }
+}
@@ -22,12 +22,23 @@ import static com.firebase.jobdispatcher.GooglePlayReceiver.getJobCoder;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 // import android.support.annotation.GuardedBy;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.support.v4.util.SimpleArrayMap;
 import android.util.Log;
 import com.firebase.jobdispatcher.JobService.JobResult;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ExecutionDelegator tracks local Binder connections to client JobServices and handles
@@ -37,6 +48,19 @@ import com.firebase.jobdispatcher.JobService.JobResult;
 
   static final String TAG = "FJD.ExternalReceiver";
 
+  /**
+   * The default number of binds that may be in flight (i.e. waiting for onServiceConnected) across
+   * the whole process. Binding creates the target service, so starting a bind for every JobService
+   * at once can cause a burst of CPU and memory use when lots of jobs become ready together.
+   */
+  @VisibleForTesting static final int DEFAULT_MAX_CONCURRENT_BINDS = 4;
+
+  /**
+   * How long a bind may stay in flight before it's given up. Binds that never connect (e.g. the
+   * service hangs in onCreate) would otherwise hold on to their slot and block all other binds.
+   */
+  @VisibleForTesting static final long BIND_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(18);
+
   interface JobFinishedCallback {
     void onJobFinished(@NonNull JobInvocation jobInvocation, @JobResult int result);
   }
@@ -46,6 +70,34 @@ import com.firebase.jobdispatcher.JobService.JobResult;
   private static final SimpleArrayMap<String, JobServiceConnection> serviceConnections =
       new SimpleArrayMap<>();
 
+  /**
+   * The invocation each started job was executed with, mapped to the ExecutionDelegator that
+   * started it. Connections are shared by every ExecutionDelegator in the process, so results are
+   * routed back through this map rather than to whoever opened the connection.
+   */
+  // @GuardedBy("serviceConnections")
+  private static final SimpleArrayMap<JobInvocation, ExecutionDelegator> startedJobs =
+      new SimpleArrayMap<>();
+
+  /** Binds that are waiting for a free slot, in the order they were requested. */
+  // @GuardedBy("pendingBinds")
+  private static final ArrayDeque<PendingBind> pendingBinds = new ArrayDeque<>();
+
+  /** Connections that have called bindService, but haven't connected or failed yet. */
+  // @GuardedBy("pendingBinds")
+  private static final Set<JobServiceConnection> inFlightBinds = new HashSet<>();
+
+  // @GuardedBy("pendingBinds")
+  private static int maxConcurrentBinds = DEFAULT_MAX_CONCURRENT_BINDS;
+
+  private static final JobServiceConnection.BindCompletedCallback bindCompletedCallback =
+      new JobServiceConnection.BindCompletedCallback() {
+        @Override
+        public void onBindCompleted(@NonNull JobServiceConnection connection) {
+          ExecutionDelegator.onBindCompleted(connection);
+        }
+      };
+
   @VisibleForTesting
   static JobServiceConnection getJobServiceConnection(String serviceName) {
     synchronized (serviceConnections) {
@@ -57,20 +109,52 @@ import com.firebase.jobdispatcher.JobService.JobResult;
   static void cleanServiceConnections() {
     synchronized (serviceConnections) {
       serviceConnections.clear();
+      startedJobs.clear();
+    }
+    synchronized (pendingBinds) {
+      pendingBinds.clear();
+      inFlightBinds.clear();
+      maxConcurrentBinds = DEFAULT_MAX_CONCURRENT_BINDS;
+    }
+  }
+
+  @VisibleForTesting
+  static void setMaxConcurrentBinds(int maxConcurrentBinds) {
+    if (maxConcurrentBinds < 1) {
+      throw new IllegalArgumentException("maxConcurrentBinds must be at least 1");
+    }
+    synchronized (pendingBinds) {
+      ExecutionDelegator.maxConcurrentBinds = maxConcurrentBinds;
+    }
+  }
+
+  @VisibleForTesting
+  static int getInFlightBindCount() {
+    synchronized (pendingBinds) {
+      return inFlightBinds.size();
+    }
+  }
+
+  @VisibleForTesting
+  static int getPendingBindCount() {
+    synchronized (pendingBinds) {
+      return pendingBinds.size();
     }
   }
 
-  private final IJobCallback execCallback =
+  private static final IJobCallback execCallback =
       new IJobCallback.Stub() {
         @Override
         public void jobFinished(Bundle invocationData, @JobService.JobResult int result) {
-          JobInvocation.Builder invocation = getJobCoder().decode(invocationData);
+          // Finished jobs are identified by tag and service, the rest is only decoded if the job
+          // needs to be rescheduled
+          JobInvocation invocation = getJobCoder().decodeLazily(invocationData);
           if (invocation == null) {
             Log.wtf(TAG, "jobFinished: unknown invocation provided");
             return;
           }
 
-          ExecutionDelegator.this.onJobFinishedMessage(invocation.build(), result);
+          ExecutionDelegator.onJobFinishedMessage(invocation, result);
         }
       };
 
@@ -112,51 +196,136 @@ import com.firebase.jobdispatcher.JobService.JobResult;
       Log.d(TAG, "Proceeding to execute job because constraints met. Job: " + jobInvocation);
     }
 
+    JobServiceConnection jobServiceConnection;
+    boolean isNewConnection = false;
     synchronized (serviceConnections) {
-      JobServiceConnection jobServiceConnection =
-          serviceConnections.get(jobInvocation.getService());
+      // Replace the key as well, so the result is reported with the latest invocation
+      startedJobs.remove(jobInvocation);
+      startedJobs.put(jobInvocation, this);
+      // Started jobs can be cancelled by prefix or service, whichever driver they came from
+      ScheduledJobIndex.add(jobInvocation.getTag(), jobInvocation.getService());
 
-      if (jobServiceConnection != null) {
-        // We already have an open connection, so reuse that. The connection will handle both
-        // duplicate execution requests and binder failures.
-        jobServiceConnection.startJob(jobInvocation);
-        return;
+      jobServiceConnection = serviceConnections.get(jobInvocation.getService());
+
+      if (jobServiceConnection == null) {
+        // No pre-existing connection, create a new one
+        jobServiceConnection =
+            new JobServiceConnection(execCallback, context, bindCompletedCallback);
+        serviceConnections.put(jobInvocation.getService(), jobServiceConnection);
+        isNewConnection = true;
       }
+    }
+
+    // Jobs are started outside the lock, because binder failures call back into
+    // onJobFinishedMessage and the bind queue. An existing connection will handle both duplicate
+    // execution requests and binder failures, a new one queues the job until it's connected.
+    jobServiceConnection.startJob(jobInvocation);
 
-      // No pre-existing connection, create a new one
-      jobServiceConnection = new JobServiceConnection(execCallback, context);
-      serviceConnections.put(jobInvocation.getService(), jobServiceConnection);
-      // Queue the job
-      jobServiceConnection.startJob(jobInvocation);
-      // And kick off the bind
-      boolean successfullyBound = tryBindingToJobService(jobInvocation, jobServiceConnection);
+    if (isNewConnection) {
+      // Queue the bind. It's kicked off straight away unless too many binds are in flight.
+      synchronized (pendingBinds) {
+        pendingBinds.offer(
+            new PendingBind(context, jobInvocation.getService(), jobServiceConnection));
+      }
+      startPendingBinds();
+    }
+  }
+
+  /**
+   * Kicks off queued binds, in order, until either the queue is empty or {@link
+   * #maxConcurrentBinds} binds are in flight.
+   */
+  private static void startPendingBinds() {
+    while (true) {
+      PendingBind bind;
+      synchronized (pendingBinds) {
+        if (pendingBinds.isEmpty() || inFlightBinds.size() >= maxConcurrentBinds) {
+          return;
+        }
+        bind = pendingBinds.poll();
+        inFlightBinds.add(bind.connection);
+      }
+
+      // Binding happens outside the lock, because failures call back into onBindCompleted
+      boolean successfullyBound = tryBindingToJobService(bind);
 
       if (successfullyBound) {
-        // TODO(user): add a timeout to ensure the bind completes within ~18s or so
+        scheduleBindTimeout(bind);
       } else {
         // TODO(user): we should track the number of times this happens and drop the job if
         //                     it happens too often.
-        Log.e(TAG, "Unable to bind to " + jobInvocation.getService());
-        jobServiceConnection.unbind();
+        Log.e(TAG, "Unable to bind to " + bind.service);
+        bind.connection.unbind();
+      }
+    }
+  }
+
+  /**
+   * Releases the slot (or queue position) held by the provided {@code connection} and kicks off the
+   * next queued bind, if any.
+   */
+  private static void onBindCompleted(JobServiceConnection connection) {
+    BindTimeoutHandlerHolder.HANDLER.removeCallbacksAndMessages(connection);
+
+    synchronized (pendingBinds) {
+      if (!inFlightBinds.remove(connection)) {
+        // The connection was dropped before its bind was started
+        Iterator<PendingBind> iterator = pendingBinds.iterator();
+        while (iterator.hasNext()) {
+          if (iterator.next().connection == connection) {
+            iterator.remove();
+            break;
+          }
+        }
+        return;
+      }
+    }
+
+    startPendingBinds();
+  }
+
+  /** Gives up the provided {@code bind} unless it connects within {@link #BIND_TIMEOUT_MILLIS}. */
+  private static void scheduleBindTimeout(final PendingBind bind) {
+    BindTimeoutHandlerHolder.HANDLER.postAtTime(
+        new Runnable() {
+          @Override
+          public void run() {
+            onBindTimedOut(bind);
+          }
+        },
+        /* token= */ bind.connection,
+        SystemClock.uptimeMillis() + BIND_TIMEOUT_MILLIS);
+  }
+
+  private static void onBindTimedOut(PendingBind bind) {
+    // Unbinding releases the slot and asks for the queued jobs to be retried
+    if (!bind.connection.unbindIfNotConnected()) {
+      return;
+    }
+    Log.w(TAG, "Timed out binding to " + bind.service);
+
+    synchronized (serviceConnections) {
+      if (serviceConnections.get(bind.service) == bind.connection) {
+        serviceConnections.remove(bind.service);
       }
     }
   }
 
   /**
-   * Attempts to bind to the JobService associated with the provided {@code jobInvocation}.
+   * Attempts to bind to the JobService associated with the provided {@code bind}.
    *
    * <p>Returns a boolean indicating whether the bind attempt succeeded.
    */
-  private boolean tryBindingToJobService(JobInvocation job, JobServiceConnection connection) {
+  private static boolean tryBindingToJobService(PendingBind bind) {
     Intent bindIntent =
-        new Intent(JobService.ACTION_EXECUTE).setClassName(context, job.getService());
+        new Intent(JobService.ACTION_EXECUTE).setClassName(bind.context, bind.service);
 
     try {
-      return context.bindService(bindIntent, connection, BIND_AUTO_CREATE);
+      return bind.context.bindService(bindIntent, bind.connection, BIND_AUTO_CREATE);
     } catch (SecurityException e) {
       // It's not clear what would cause a SecurityException when binding to the same app, but
       // some change made in the N timeframe caused this to start happening.
-      Log.e(TAG, "Failed to bind to " + job.getService() + ": " + e);
+      Log.e(TAG, "Failed to bind to " + bind.service + ": " + e);
       return false;
     }
   }
@@ -166,6 +335,13 @@ import com.firebase.jobdispatcher.JobService.JobResult;
     JobServiceConnection jobServiceConnection;
     synchronized (serviceConnections) {
       jobServiceConnection = serviceConnections.get(job.getService());
+      if (!needToSendResult) {
+        // No result is coming, unless the job has been started again in the meantime
+        int index = startedJobs.indexOfKey(job);
+        if (index >= 0 && startedJobs.keyAt(index) == job) {
+          startedJobs.removeAt(index);
+        }
+      }
     }
     if (jobServiceConnection != null) {
       jobServiceConnection.onStop(job, needToSendResult);
@@ -177,11 +353,38 @@ import com.firebase.jobdispatcher.JobService.JobResult;
     }
   }
 
-  private void onJobFinishedMessage(JobInvocation jobInvocation, int result) {
+  /**
+   * Stops the running jobs that have any of the provided tags, whichever ExecutionDelegator started
+   * them. Their results are dropped.
+   */
+  static void stopJobs(@NonNull Collection<String> tags) {
+    Set<String> tagSet = new HashSet<>(tags);
+    List<JobInvocation> runningJobs = new ArrayList<>(1);
+    synchronized (serviceConnections) {
+      for (int i = startedJobs.size() - 1; i >= 0; i--) {
+        if (tagSet.contains(startedJobs.keyAt(i).getTag())) {
+          runningJobs.add(startedJobs.keyAt(i));
+          startedJobs.removeAt(i);
+        }
+      }
+    }
+    for (int i = 0; i < runningJobs.size(); i++) {
+      stopJob(runningJobs.get(i), false /* must not send the result */);
+    }
+  }
+
+  private static void onJobFinishedMessage(JobInvocation jobInvocation, int result) {
     // Need to release unused connection if it was not release previously.
     JobServiceConnection jobServiceConnection;
+    JobInvocation startedInvocation = null;
+    ExecutionDelegator owner = null;
     synchronized (serviceConnections) {
       jobServiceConnection = serviceConnections.get(jobInvocation.getService());
+      int index = startedJobs.indexOfKey(jobInvocation);
+      if (index >= 0) {
+        startedInvocation = startedJobs.keyAt(index);
+        owner = startedJobs.removeAt(index);
+      }
     }
     if (jobServiceConnection != null) {
       jobServiceConnection.onJobFinished(jobInvocation);
@@ -191,6 +394,32 @@ import com.firebase.jobdispatcher.JobService.JobResult;
         }
       }
     }
-    jobFinishedCallback.onJobFinished(jobInvocation, result);
+
+    if (owner == null) {
+      Log.w(TAG, "Dropping result of a job that was stopped or not started: " + jobInvocation);
+      return;
+    }
+    if (result != JobService.RESULT_FAIL_RETRY && !startedInvocation.isRecurring()) {
+      ScheduledJobIndex.remove(startedInvocation.getTag());
+    }
+    owner.jobFinishedCallback.onJobFinished(startedInvocation, result);
+  }
+
+  /** Lazily creates the Handler bind timeouts are posted to. */
+  private static final class BindTimeoutHandlerHolder {
+    static final Handler HANDLER = new Handler(Looper.getMainLooper());
+  }
+
+  /** A bind that's waiting for a free slot. */
+  private static final class PendingBind {
+    final Context context;
+    final String service;
+    final JobServiceConnection connection;
+
+    PendingBind(Context context, String service, JobServiceConnection connection) {
+      this.context = context;
+      this.service = service;
+      this.connection = connection;
+    }
   }
 }
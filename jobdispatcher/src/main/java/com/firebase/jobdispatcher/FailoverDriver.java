@@ -0,0 +1,569 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.SimpleArrayMap;
+import android.util.Log;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A Driver that wraps several Drivers in priority order and sends every schedule request to the
+ * first one that's available and healthy, falling back to the next one if it fails.
+ *
+ * <p>A Driver becomes unhealthy after {@link #MAX_CONSECUTIVE_FAILURES} schedule requests in a row
+ * fail with {@link FirebaseJobDispatcher#SCHEDULE_RESULT_UNKNOWN_ERROR}, {@link
+ * FirebaseJobDispatcher#SCHEDULE_RESULT_NO_DRIVER_AVAILABLE} or an exception. Unhealthy Drivers are
+ * skipped until {@link #UNHEALTHY_PROBE_INTERVAL_MILLIS} have passed, after which a single request
+ * is let through to probe whether they've recovered. Results that only concern the Job (such as an
+ * unsupported trigger) also fall back to the next Driver, but don't affect health.
+ *
+ * <p>The Driver that accepted each tag is remembered, so cancelling a tag goes to the Driver that
+ * owns it, and rescheduling a tag on a different Driver cancels it on the old one. Tags owned by a
+ * fallback Driver are also kept in {@link SharedPreferences}, so a Job that failed over before a
+ * process restart is cancelled on the fallback once the first Driver takes it back. Tags without a
+ * known owner are cancelled on all Drivers.
+ *
+ * <p>Each Driver only gets the Jobs its own validator accepts. The others fall back to the next
+ * Driver as if it had returned {@link FirebaseJobDispatcher#SCHEDULE_RESULT_UNSUPPORTED_TRIGGER}
+ * (if it rejected the trigger) or {@link FirebaseJobDispatcher#SCHEDULE_RESULT_BAD_SERVICE}. The
+ * validator returned by {@link #getValidator()} accepts anything at least one Driver accepts.
+ *
+ * <p>Batches of Jobs or tags are handed to each Driver in a single call where the Driver implements
+ * {@link BatchDriver}. Only the Jobs a Driver didn't accept fall back to the next one.
+ */
+public final class FailoverDriver implements BatchDriver {
+
+  private static final String TAG = "FJD.FailoverDriver";
+
+  /** The number of failed schedule requests in a row after which a Driver is skipped. */
+  @VisibleForTesting static final int MAX_CONSECUTIVE_FAILURES = 3;
+
+  /** How long an unhealthy Driver is skipped for before it's probed again. */
+  @VisibleForTesting static final long UNHEALTHY_PROBE_INTERVAL_MILLIS = 60 * 1000;
+
+  @VisibleForTesting
+  static final String PREFERENCES_NAME = "com.firebase.jobdispatcher.failover_owners";
+
+  private final Driver[] drivers;
+  private final JobValidator validator = new FailoverValidator();
+
+  /** The health of {@code drivers[i]} is kept in {@code health[i]}. */
+  // @GuardedBy("lock")
+  private final Health[] health;
+
+  /** Tag -> the Driver that accepted the most recent schedule request for it. */
+  // @GuardedBy("lock")
+  private final SimpleArrayMap<String, Driver> owners = new SimpleArrayMap<>();
+
+  /**
+   * Tag -> index of the owning Driver, for the tags owned by any Driver but the first one. Tags
+   * owned by the first Driver aren't stored, so steady-state scheduling doesn't write anything.
+   */
+  private final SharedPreferences fallbackOwners;
+
+  /** The most recent Job the {@link FailoverValidator} accepted. */
+  @Nullable private volatile AcceptedJob lastAccepted;
+
+  private final Object lock = new Object();
+
+  /**
+   * Instantiates a new FailoverDriver.
+   *
+   * @param drivers the Drivers to use, most preferred first. The order should stay the same
+   *     across app versions, since ownership is stored by position.
+   */
+  public FailoverDriver(@NonNull Context context, @NonNull Driver... drivers) {
+    if (drivers.length == 0) {
+      throw new IllegalArgumentException("At least one driver is required");
+    }
+
+    this.drivers = drivers.clone();
+    fallbackOwners = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    health = new Health[drivers.length];
+    for (int i = 0; i < health.length; i++) {
+      health[i] = new Health();
+    }
+  }
+
+  /** Returns true if any of the wrapped Drivers is available. */
+  @Override
+  public boolean isAvailable() {
+    for (Driver driver : drivers) {
+      if (driver.isAvailable()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  @ScheduleResult
+  public int schedule(@NonNull Job job) {
+    int result = FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE;
+    for (int i = 0; i < drivers.length; i++) {
+      Driver driver = drivers[i];
+      if (!shouldTry(i) || !driver.isAvailable()) {
+        continue;
+      }
+
+      result = validate(i, job);
+      if (result != FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+        continue;
+      }
+
+      try {
+        result = driver.schedule(job);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Driver " + driver + " failed to schedule " + job.getTag(), e);
+        result = FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR;
+      }
+      recordResult(i, result);
+
+      if (result == FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+        Driver previousOwner = onScheduled(job.getTag(), i);
+        if (previousOwner != null) {
+          cancelOnPreviousOwner(previousOwner, Collections.singletonList(job.getTag()));
+        }
+        return result;
+      }
+      if (Log.isLoggable(TAG, Log.DEBUG)) {
+        Log.d(TAG, "Driver " + driver + " returned " + result + " for " + job.getTag());
+      }
+    }
+    return result;
+  }
+
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    int[] results = new int[jobs.size()];
+    Arrays.fill(results, FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE);
+
+    // Indices (into jobs) of the Jobs that haven't been accepted by any Driver yet
+    List<Integer> remaining = new ArrayList<>(jobs.size());
+    for (int i = 0; i < jobs.size(); i++) {
+      remaining.add(i);
+    }
+
+    for (int i = 0; i < drivers.length && !remaining.isEmpty(); i++) {
+      Driver driver = drivers[i];
+      if (!shouldTry(i) || !driver.isAvailable()) {
+        continue;
+      }
+
+      // Jobs this Driver's validator rejects skip straight to the next one
+      List<Job> batch = new ArrayList<>(remaining.size());
+      List<Integer> batchIndices = new ArrayList<>(remaining.size());
+      List<Integer> stillRemaining = new ArrayList<>();
+      for (int j = 0; j < remaining.size(); j++) {
+        int index = remaining.get(j);
+        results[index] = validate(i, jobs.get(index));
+        if (results[index] == FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+          batch.add(jobs.get(index));
+          batchIndices.add(index);
+        } else {
+          stillRemaining.add(index);
+        }
+      }
+      if (batch.isEmpty()) {
+        remaining = stillRemaining;
+        continue;
+      }
+
+      int[] batchResults;
+      try {
+        batchResults = Drivers.scheduleAll(driver, batch);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Driver " + driver + " failed to schedule " + batch.size() + " jobs", e);
+        batchResults = new int[batch.size()];
+        Arrays.fill(batchResults, FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+      }
+
+      SimpleArrayMap<Driver, List<String>> tagsByPreviousOwner = new SimpleArrayMap<>();
+      for (int j = 0; j < batchResults.length; j++) {
+        int index = batchIndices.get(j);
+        results[index] = batchResults[j];
+        recordResult(i, batchResults[j]);
+        if (batchResults[j] == FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+          Driver previousOwner = onScheduled(batch.get(j).getTag(), i);
+          if (previousOwner != null) {
+            addTag(tagsByPreviousOwner, previousOwner, batch.get(j).getTag());
+          }
+        } else {
+          stillRemaining.add(index);
+        }
+      }
+      for (int j = 0; j < tagsByPreviousOwner.size(); j++) {
+        cancelOnPreviousOwner(tagsByPreviousOwner.keyAt(j), tagsByPreviousOwner.valueAt(j));
+      }
+      // Keep the original order, so later Drivers see the Jobs in the order they were passed in
+      Collections.sort(stillRemaining);
+      remaining = stillRemaining;
+    }
+    return results;
+  }
+
+  @Override
+  @CancelResult
+  public int cancel(@NonNull String tag) {
+    Driver owner;
+    synchronized (lock) {
+      owner = removeOwner(tag);
+    }
+
+    if (owner != null) {
+      return owner.isAvailable()
+          ? owner.cancel(tag)
+          : FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    int result = FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+    for (Driver driver : drivers) {
+      if (driver.isAvailable()) {
+        result = combineCancelResults(result, driver.cancel(tag));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll(@NonNull List<String> tags) {
+    SimpleArrayMap<Driver, List<String>> tagsByOwner = new SimpleArrayMap<>();
+    List<String> unowned = new ArrayList<>();
+    synchronized (lock) {
+      for (int i = 0; i < tags.size(); i++) {
+        String tag = tags.get(i);
+        Driver owner = removeOwner(tag);
+        if (owner == null) {
+          unowned.add(tag);
+        } else {
+          addTag(tagsByOwner, owner, tag);
+        }
+      }
+    }
+
+    int result = FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+    for (int i = 0; i < tagsByOwner.size(); i++) {
+      Driver owner = tagsByOwner.keyAt(i);
+      result =
+          combineCancelResults(
+              result,
+              owner.isAvailable()
+                  ? Drivers.cancelAll(owner, tagsByOwner.valueAt(i))
+                  : FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE);
+    }
+
+    if (!unowned.isEmpty()) {
+      for (Driver driver : drivers) {
+        if (driver.isAvailable()) {
+          result = combineCancelResults(result, Drivers.cancelAll(driver, unowned));
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll() {
+    synchronized (lock) {
+      owners.clear();
+      fallbackOwners.edit().clear().apply();
+    }
+
+    int result = FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+    for (Driver driver : drivers) {
+      if (driver.isAvailable()) {
+        result = combineCancelResults(result, driver.cancelAll());
+      }
+    }
+    return result;
+  }
+
+  /** Returns a validator that accepts anything at least one of the wrapped Drivers accepts. */
+  @NonNull
+  @Override
+  public JobValidator getValidator() {
+    return validator;
+  }
+
+  /** Returns the Driver that owns the provided tag, or null if it's not known. */
+  @Nullable
+  @VisibleForTesting
+  Driver getOwner(@NonNull String tag) {
+    synchronized (lock) {
+      return owners.get(tag);
+    }
+  }
+
+  /** Returns whether a schedule request should be sent to {@code drivers[index]}. */
+  private boolean shouldTry(int index) {
+    synchronized (lock) {
+      Health driverHealth = health[index];
+      if (driverHealth.consecutiveFailures < MAX_CONSECUTIVE_FAILURES) {
+        return true;
+      }
+
+      long now = SystemClock.elapsedRealtime();
+      if (now - driverHealth.lastProbeMillis < UNHEALTHY_PROBE_INTERVAL_MILLIS) {
+        return false;
+      }
+      // Let this request through as a probe, and keep skipping the Driver until it's done
+      driverHealth.lastProbeMillis = now;
+      return true;
+    }
+  }
+
+  private void recordResult(int index, @ScheduleResult int result) {
+    synchronized (lock) {
+      Health driverHealth = health[index];
+      switch (result) {
+        case FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS:
+          driverHealth.consecutiveFailures = 0;
+          break;
+
+        case FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR:
+        case FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE:
+          driverHealth.consecutiveFailures++;
+          if (driverHealth.consecutiveFailures == MAX_CONSECUTIVE_FAILURES) {
+            Log.w(TAG, "Driver " + drivers[index] + " is failing, skipping it for now");
+            driverHealth.lastProbeMillis = SystemClock.elapsedRealtime();
+          }
+          break;
+
+        default:
+          // The Job was the problem, not the Driver
+          break;
+      }
+    }
+  }
+
+  /**
+   * Checks the provided Job against the validator of {@code drivers[index]}. Returns {@link
+   * FirebaseJobDispatcher#SCHEDULE_RESULT_SUCCESS} if the Driver accepts it.
+   */
+  @ScheduleResult
+  private int validate(int index, Job job) {
+    AcceptedJob accepted = lastAccepted;
+    if (accepted != null && accepted.driverIndex == index && accepted.matches(job)) {
+      // Built with our validator, which already asked this Driver
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+    }
+
+    Driver driver = drivers[index];
+    JobValidator driverValidator = driver.getValidator();
+    List<String> errors = driverValidator.validate(job);
+    if (errors == null || errors.isEmpty()) {
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+    }
+
+    if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(TAG, "Driver " + driver + " rejected " + job.getTag() + ": " + errors);
+    }
+    List<String> triggerErrors = driverValidator.validate(job.getTrigger());
+    return triggerErrors == null || triggerErrors.isEmpty()
+        ? FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE
+        : FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER;
+  }
+
+  /**
+   * Records {@code drivers[index]} as the new owner of the provided tag. Returns the previous
+   * owner if the tag has to be cancelled on it, or null. A tag without a known owner is assumed to
+   * belong to the first Driver, so it's only cancelled there if it failed over.
+   */
+  @Nullable
+  private Driver onScheduled(String tag, int index) {
+    Driver driver = drivers[index];
+    Driver previousOwner;
+    synchronized (lock) {
+      previousOwner = owners.put(tag, driver);
+      int storedIndex = fallbackOwners.getInt(tag, 0);
+      if (previousOwner == null && storedIndex < drivers.length) {
+        previousOwner = drivers[storedIndex];
+      }
+      if (storedIndex != index) {
+        SharedPreferences.Editor editor = fallbackOwners.edit();
+        if (index == 0) {
+          editor.remove(tag);
+        } else {
+          editor.putInt(tag, index);
+        }
+        editor.apply();
+      }
+    }
+    return previousOwner != driver ? previousOwner : null;
+  }
+
+  /** Forgets the owner of the provided tag, and returns it if it was known. */
+  // @GuardedBy("lock")
+  @Nullable
+  private Driver removeOwner(String tag) {
+    Driver owner = owners.remove(tag);
+    int storedIndex = fallbackOwners.getInt(tag, 0);
+    if (storedIndex != 0) {
+      fallbackOwners.edit().remove(tag).apply();
+      if (owner == null && storedIndex < drivers.length) {
+        owner = drivers[storedIndex];
+      }
+    }
+    return owner;
+  }
+
+  /** Cancels the provided tags on the Driver that owned them before they were rescheduled. */
+  private void cancelOnPreviousOwner(Driver previousOwner, List<String> tags) {
+    if (!previousOwner.isAvailable()) {
+      return;
+    }
+    try {
+      Drivers.cancelAll(previousOwner, tags);
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Driver " + previousOwner + " failed to cancel " + tags.size() + " jobs", e);
+    }
+  }
+
+  private static void addTag(
+      SimpleArrayMap<Driver, List<String>> tagsByDriver, Driver driver, String tag) {
+    List<String> tags = tagsByDriver.get(driver);
+    if (tags == null) {
+      tags = new ArrayList<>();
+      tagsByDriver.put(driver, tags);
+    }
+    tags.add(tag);
+  }
+
+  /** Returns the first unsuccessful result, if any. */
+  @CancelResult
+  private static int combineCancelResults(@CancelResult int result, @CancelResult int newResult) {
+    return result != FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS ? result : newResult;
+  }
+
+  /** Accepts anything at least one of the wrapped Drivers' validators accepts. */
+  private final class FailoverValidator implements JobValidator {
+    @Nullable
+    @Override
+    public List<String> validate(@NonNull JobParameters job) {
+      List<String> firstErrors = null;
+      for (int i = 0; i < drivers.length; i++) {
+        List<String> errors = drivers[i].getValidator().validate(job);
+        if (errors == null || errors.isEmpty()) {
+          lastAccepted = new AcceptedJob(job, i);
+          return null;
+        }
+        if (firstErrors == null) {
+          firstErrors = errors;
+        }
+      }
+      return firstErrors;
+    }
+
+    @Nullable
+    @Override
+    public List<String> validate(@NonNull JobTrigger trigger) {
+      List<String> firstErrors = null;
+      for (int i = 0; i < drivers.length; i++) {
+        List<String> errors = drivers[i].getValidator().validate(trigger);
+        if (errors == null || errors.isEmpty()) {
+          return null;
+        }
+        if (firstErrors == null) {
+          firstErrors = errors;
+        }
+      }
+      return firstErrors;
+    }
+
+    @Nullable
+    @Override
+    public List<String> validate(@NonNull RetryStrategy retryStrategy) {
+      List<String> firstErrors = null;
+      for (int i = 0; i < drivers.length; i++) {
+        List<String> errors = drivers[i].getValidator().validate(retryStrategy);
+        if (errors == null || errors.isEmpty()) {
+          return null;
+        }
+        if (firstErrors == null) {
+          firstErrors = errors;
+        }
+      }
+      return firstErrors;
+    }
+  }
+
+  /**
+   * A Job the {@link FailoverValidator} accepted, and the index of the first Driver that accepted
+   * it. {@link Job.Builder#build()} validates the builder, so the built Job is matched by the
+   * fields it shares with its builder rather than by identity. The extras are copied on build, so
+   * they aren't compared.
+   */
+  private static final class AcceptedJob {
+    final String tag;
+    final String service;
+    final JobTrigger trigger;
+    final RetryStrategy retryStrategy;
+    final int[] constraints;
+    final int lifetime;
+    final boolean recurring;
+    final boolean replaceCurrent;
+    final int driverIndex;
+
+    AcceptedJob(JobParameters job, int driverIndex) {
+      tag = job.getTag();
+      service = job.getService();
+      trigger = job.getTrigger();
+      retryStrategy = job.getRetryStrategy();
+      constraints = job.getConstraints();
+      lifetime = job.getLifetime();
+      recurring = job.isRecurring();
+      replaceCurrent = job.shouldReplaceCurrent();
+      this.driverIndex = driverIndex;
+    }
+
+    boolean matches(JobParameters job) {
+      return tag == job.getTag()
+          && service == job.getService()
+          && trigger == job.getTrigger()
+          && retryStrategy == job.getRetryStrategy()
+          && Arrays.equals(constraints, job.getConstraints())
+          && lifetime == job.getLifetime()
+          && recurring == job.isRecurring()
+          && replaceCurrent == job.shouldReplaceCurrent();
+    }
+  }
+
+  /** Tracks how a single Driver has been doing. */
+  private static final class Health {
+    // @GuardedBy("lock")
+    int consecutiveFailures;
+
+    /** When the Driver was last let through while unhealthy, or when it became unhealthy. */
+    // @GuardedBy("lock")
+    long lastProbeMillis;
+  }
+}
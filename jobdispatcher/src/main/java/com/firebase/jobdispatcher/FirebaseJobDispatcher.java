@@ -18,9 +18,22 @@ package com.firebase.jobdispatcher;
 
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
 import com.firebase.jobdispatcher.RetryStrategy.RetryPolicy;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The FirebaseJobDispatcher provides a driver-agnostic API for scheduling and cancelling Jobs.
@@ -66,10 +79,18 @@ public final class FirebaseJobDispatcher {
    * settings. We can do this because the RetryStrategy.Builder is stateless.
    */
   private final RetryStrategy.Builder retryStrategyBuilder;
+  /** Runs the async variants, one request at a time and in submission order. */
+  private final Executor schedulingExecutor;
 
   /** Instantiates a new FirebaseJobDispatcher using the provided Driver. */
   public FirebaseJobDispatcher(@NonNull Driver driver) {
+    this(driver, SchedulingExecutorHolder.INSTANCE);
+  }
+
+  @VisibleForTesting
+  FirebaseJobDispatcher(@NonNull Driver driver, @NonNull Executor schedulingExecutor) {
     this.driver = driver;
+    this.schedulingExecutor = schedulingExecutor;
     validator = new ValidationEnforcer(driver.getValidator());
     retryStrategyBuilder = new RetryStrategy.Builder(validator);
   }
@@ -85,7 +106,38 @@ public final class FirebaseJobDispatcher {
       return SCHEDULE_RESULT_NO_DRIVER_AVAILABLE;
     }
 
-    return driver.schedule(job);
+    int result = driver.schedule(job);
+    if (result == SCHEDULE_RESULT_SUCCESS && job != null) {
+      ScheduledJobIndex.add(job.getTag(), job.getService(), driver);
+    }
+    return result;
+  }
+
+  /**
+   * Attempts to schedule all the provided Jobs. If the Driver implements {@link BatchDriver} the
+   * Jobs are handed over in a single call, otherwise they're scheduled one at a time.
+   *
+   * <p>Returns one of the SCHEDULE_RESULT_ constants for each Job, in iteration order.
+   */
+  @NonNull
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull Collection<Job> jobs) {
+    int[] results = new int[jobs.size()];
+    if (!driver.isAvailable()) {
+      Arrays.fill(results, SCHEDULE_RESULT_NO_DRIVER_AVAILABLE);
+      return results;
+    }
+
+    List<Job> jobList = new ArrayList<>(jobs);
+    results = Drivers.scheduleAll(driver, jobList);
+
+    for (int i = 0; i < results.length; i++) {
+      if (results[i] == SCHEDULE_RESULT_SUCCESS) {
+        Job job = jobList.get(i);
+        ScheduledJobIndex.add(job.getTag(), job.getService(), driver);
+      }
+    }
+    return results;
   }
 
   /**
@@ -99,6 +151,7 @@ public final class FirebaseJobDispatcher {
       return CANCEL_RESULT_NO_DRIVER_AVAILABLE;
     }
 
+    ScheduledJobIndex.remove(tag);
     return driver.cancel(tag);
   }
 
@@ -113,9 +166,124 @@ public final class FirebaseJobDispatcher {
       return CANCEL_RESULT_NO_DRIVER_AVAILABLE;
     }
 
+    ScheduledJobIndex.removeAll(driver);
     return driver.cancelAll();
   }
 
+  /**
+   * Cancels the known Jobs whose tag starts with the provided prefix, and stops the ones that are
+   * currently running.
+   *
+   * <p>Jobs are only known if they were scheduled through a FirebaseJobDispatcher or started in
+   * this process: the index the tags are looked up in is kept in memory and isn't persisted. Jobs
+   * scheduled by an earlier process that haven't run since are not cancelled, use {@link
+   * #cancel(String)} for those. Jobs scheduled through a dispatcher whose Driver is of a different
+   * class are left alone. If the Driver implements {@link BatchDriver} all tags are handed over in
+   * a single call.
+   *
+   * <p>Returns one of the CANCEL_RESULT_ constants.
+   */
+  @CancelResult
+  public int cancelByPrefix(@NonNull String prefix) {
+    if (!driver.isAvailable()) {
+      return CANCEL_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    return cancelTags(ScheduledJobIndex.findByPrefix(driver, prefix));
+  }
+
+  /**
+   * Cancels the known Jobs that are handled by the provided JobService, and stops the ones that
+   * are currently running. Only the Jobs known to this process are found, the same way as in
+   * {@link #cancelByPrefix(String)}.
+   *
+   * <p>Returns one of the CANCEL_RESULT_ constants.
+   */
+  @CancelResult
+  public int cancelByService(@NonNull Class<? extends JobService> service) {
+    if (!driver.isAvailable()) {
+      return CANCEL_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    return cancelTags(ScheduledJobIndex.findByService(driver, service.getName()));
+  }
+
+  @CancelResult
+  private int cancelTags(List<String> tags) {
+    if (tags.isEmpty()) {
+      return CANCEL_RESULT_SUCCESS;
+    }
+
+    ScheduledJobIndex.removeAll(tags);
+    // Stop the jobs that are running first, before the backend is told about the cancellation.
+    // Jobs started by Google Play services are reported to it as finished on the way.
+    GooglePlayReceiver.onCancel(tags);
+    ExecutionDelegator.stopJobs(tags);
+
+    return Drivers.cancelAll(driver, tags);
+  }
+
+  /**
+   * Asynchronous version of {@link #schedule(Job)}. The request is handed to the Driver on a
+   * background thread that's shared by all FirebaseJobDispatcher instances and processes async
+   * requests one at a time, in the order they were made. A {@link #cancelAsync(String)} made after
+   * this call is therefore guaranteed to be applied after it.
+   *
+   * <p>The returned Future resolves to one of the SCHEDULE_RESULT_ constants, or fails with
+   * whatever the Driver threw. Async requests are not ordered with respect to the synchronous
+   * methods.
+   */
+  @NonNull
+  public Future<Integer> scheduleAsync(@NonNull final Job job) {
+    return submit(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return schedule(job);
+          }
+        });
+  }
+
+  /**
+   * Asynchronous version of {@link #cancel(String)}, ordered with the other async requests as
+   * described in {@link #scheduleAsync(Job)}.
+   *
+   * <p>The returned Future resolves to one of the CANCEL_RESULT_ constants.
+   */
+  @NonNull
+  public Future<Integer> cancelAsync(@NonNull final String tag) {
+    return submit(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return cancel(tag);
+          }
+        });
+  }
+
+  /**
+   * Asynchronous version of {@link #cancelAll()}, ordered with the other async requests as
+   * described in {@link #scheduleAsync(Job)}.
+   *
+   * <p>The returned Future resolves to one of the CANCEL_RESULT_ constants.
+   */
+  @NonNull
+  public Future<Integer> cancelAllAsync() {
+    return submit(
+        new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return cancelAll();
+          }
+        });
+  }
+
+  private Future<Integer> submit(Callable<Integer> request) {
+    FutureTask<Integer> future = new FutureTask<>(request);
+    schedulingExecutor.execute(future);
+    return future;
+  }
+
   /**
    * Attempts to schedule the provided Job, throwing an exception if it fails.
    *
@@ -154,7 +322,10 @@ public final class FirebaseJobDispatcher {
     return retryStrategyBuilder.build(policy, initialBackoff, maximumBackoff);
   }
 
-  /** Results that can legally be returned from {@link #schedule(Job)} calls. */
+  /**
+   * Results that can legally be returned from {@link #schedule(Job)} or {@link
+   * #scheduleAll(Collection)} calls.
+   */
   @IntDef({
     SCHEDULE_RESULT_SUCCESS,
     SCHEDULE_RESULT_UNKNOWN_ERROR,
@@ -166,8 +337,8 @@ public final class FirebaseJobDispatcher {
   public @interface ScheduleResult {}
 
   /**
-   * Results that can legally be returned from {@link #cancel(String)} or {@link #cancelAll()}
-   * calls.
+   * Results that can legally be returned from {@link #cancel(String)}, {@link #cancelAll()},
+   * {@link #cancelByPrefix(String)} or {@link #cancelByService(Class)} calls.
    */
   @IntDef({
     CANCEL_RESULT_SUCCESS,
@@ -177,6 +348,36 @@ public final class FirebaseJobDispatcher {
   @Retention(RetentionPolicy.SOURCE)
   public @interface CancelResult {}
 
+  /**
+   * Lazily creates the serial executor used by the async methods. The single worker thread is
+   * allowed to time out, so an app that only schedules in {@code onCreate} doesn't keep it around.
+   */
+  private static final class SchedulingExecutorHolder {
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    static final Executor INSTANCE = create();
+
+    private static Executor create() {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              1,
+              1,
+              KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<Runnable>(),
+              new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                  Thread thread = new Thread(r, "FJD-Scheduler");
+                  thread.setDaemon(true);
+                  return thread;
+                }
+              });
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+  }
+
   /**
    * Thrown when a {@link FirebaseJobDispatcher#schedule(com.firebase.jobdispatcher.Job)} call
    * fails.
@@ -17,15 +17,14 @@
 package com.firebase.jobdispatcher;
 
 import android.annotation.SuppressLint;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Parcel;
-import android.os.Parcelable;
-// import android.support.annotation.GuardedBy;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.util.Pair;
-import java.util.ArrayList;
 
 /**
  * Responsible for extracting a JobCallback from a given Bundle.
@@ -45,11 +44,14 @@ import java.util.ArrayList;
   private static final String BUNDLE_KEY_CALLBACK = "callback";
   /** A magic number that indicates the following bytes belong to a Bundle. */
   private static final int BUNDLE_MAGIC = 0x4C444E42;
-  /** A magic number that indicates the following value is a Parcelable. */
+  /** The type markers that indicate how the following value is parcelled. */
+  private static final int VAL_NULL = -1;
+  private static final int VAL_INTEGER = 1;
+  private static final int VAL_BUNDLE = 3;
   private static final int VAL_PARCELABLE = 4;
-
-  // @GuardedBy("GooglePlayCallbackExtractor.class")
-  private static Boolean shouldReadKeysAsStringsCached = null;
+  private static final int VAL_SHORT = 5;
+  private static final int VAL_LONG = 6;
+  private static final int VAL_BOOLEAN = 9;
 
   public Pair<JobCallback, Bundle> extractCallback(@Nullable Bundle data) {
     if (data == null) {
@@ -82,13 +84,17 @@ import java.util.ArrayList;
    * implementation of Parcel, but these specific parts of Parcel / Bundle haven't changed since
    * 2008 and newer versions of Android will ship with newer versions of Google Play services which
    * embed the IBinder directly into the Bundle (no need to deal with the Parcelable issues).
+   *
+   * <p>All other entries are only skipped over, not unmarshalled. The returned Bundle is built by
+   * copying their bytes as-is, so it stays parcelled until one of its values is accessed.
    */
   @Nullable
   @SuppressLint("ParcelClassLoader")
   private static Pair<JobCallback, Bundle> extractWrappedBinderFromParcel(Bundle data) {
-    Bundle cleanBundle = new Bundle();
     Parcel serialized = toParcel(data);
     JobCallback callback = null;
+    int callbackStart = -1;
+    int callbackEnd = -1;
 
     try {
       int length = serialized.readInt();
@@ -106,35 +112,18 @@ import java.util.ArrayList;
       }
 
       int numEntries = serialized.readInt();
+      int entriesStart = serialized.dataPosition();
       for (int i = 0; i < numEntries; i++) {
+        int entryStart = serialized.dataPosition();
         String entryKey = readKey(serialized);
         if (entryKey == null) {
           continue;
         }
 
         if (!(callback == null && BUNDLE_KEY_CALLBACK.equals(entryKey))) {
-          // If it's not the 'callback' key, we can just read it using the standard
+          // If it's not the 'callback' key, we can just skip it using the standard
           // mechanisms because we're not afraid of rogue BadParcelableExceptions.
-          Object value = serialized.readValue(null /* class loader */);
-          if (value instanceof String) {
-            cleanBundle.putString(entryKey, (String) value);
-          } else if (value instanceof Boolean) {
-            cleanBundle.putBoolean(entryKey, (boolean) value);
-          } else if (value instanceof Integer) {
-            cleanBundle.putInt(entryKey, (int) value);
-          } else if (value instanceof ArrayList) {
-            // The only acceptable ArrayList in a Bundle is one that consists entirely
-            // of Parcelables, so this cast is safe.
-            @SuppressWarnings("unchecked") // safe by specification
-            ArrayList<Parcelable> arrayList = (ArrayList<Parcelable>) value;
-            cleanBundle.putParcelableArrayList(entryKey, arrayList);
-          } else if (value instanceof Bundle) {
-            cleanBundle.putBundle(entryKey, (Bundle) value);
-          } else if (value instanceof Parcelable) {
-            cleanBundle.putParcelable(entryKey, (Parcelable) value);
-          }
-
-          // Move to the next key
+          skipValue(serialized);
           continue;
         }
 
@@ -157,18 +146,91 @@ import java.util.ArrayList;
         // Instead of trying to instantiate clsname, we'll just read its single member.
         IBinder remote = serialized.readStrongBinder();
         callback = new GooglePlayJobCallback(remote);
+        callbackStart = entryStart;
+        callbackEnd = serialized.dataPosition();
       }
 
       if (callback == null) {
         Log.w(TAG, ERROR_NULL_CALLBACK);
         return null;
       }
+
+      Bundle cleanBundle =
+          copyWithoutRange(
+              serialized,
+              numEntries - 1,
+              entriesStart,
+              callbackStart,
+              callbackEnd,
+              serialized.dataPosition());
       return Pair.create(callback, cleanBundle);
     } finally {
       serialized.recycle();
     }
   }
 
+  /**
+   * Moves the provided {@code serialized} Parcel past the next value. Bundles and primitives are
+   * skipped without being read, everything else falls back to {@link Parcel#readValue}.
+   */
+  @SuppressLint("ParcelClassLoader")
+  private static void skipValue(Parcel serialized) {
+    int valueStart = serialized.dataPosition();
+    switch (serialized.readInt()) {
+      case VAL_NULL:
+        return;
+      case VAL_INTEGER:
+      case VAL_SHORT:
+      case VAL_BOOLEAN:
+        serialized.readInt();
+        return;
+      case VAL_LONG:
+        serialized.readLong();
+        return;
+      case VAL_BUNDLE:
+        int length = serialized.readInt();
+        if (length > 0) {
+          // The magic number isn't included in the length
+          serialized.readInt();
+          serialized.setDataPosition(serialized.dataPosition() + length);
+        }
+        return;
+      default:
+        serialized.setDataPosition(valueStart);
+        serialized.readValue(null /* class loader */);
+    }
+  }
+
+  /**
+   * Returns a parcelled Bundle with the {@code numEntries} entries found in {@code serialized}
+   * between {@code entriesStart} and {@code entriesEnd}, minus the ones between {@code skipStart}
+   * and {@code skipEnd}.
+   */
+  private static Bundle copyWithoutRange(
+      Parcel serialized,
+      int numEntries,
+      int entriesStart,
+      int skipStart,
+      int skipEnd,
+      int entriesEnd) {
+    int before = skipStart - entriesStart;
+    int after = entriesEnd - skipEnd;
+
+    Parcel copy = Parcel.obtain();
+    try {
+      // length (including the number of entries), magic, number of entries
+      copy.writeInt(4 + before + after);
+      copy.writeInt(BUNDLE_MAGIC);
+      copy.writeInt(numEntries);
+      copy.appendFrom(serialized, entriesStart, before);
+      copy.appendFrom(serialized, skipEnd, after);
+      copy.setDataPosition(0);
+      return copy.readBundle();
+    } finally {
+      copy.recycle();
+    }
+  }
+
   private static Parcel toParcel(Bundle data) {
     Parcel serialized = Parcel.obtain();
     data.writeToParcel(serialized, 0);
@@ -205,37 +267,47 @@ import java.util.ArrayList;
    * https://android.googlesource.com/platform/frameworks/base/+/9c3e74f
    * I57bda9eb79ceaaa9c1b94ad49d9e462b52102149} (which only officially landed in Lollipop) changed
    * from using writeValue to writeString for Bundle keys. Some OEMs have pulled this change into
-   * their KitKat fork, so we can't trust the SDK version check. Instead, we'll write a dummy Bundle
-   * to a Parcel and figure it out using that.
+   * their KitKat fork, so we can't trust the SDK version check there. Instead, we'll write a dummy
+   * Bundle to a Parcel and figure it out using that. Every other version is decided by its SDK
+   * level alone.
    *
-   * <p>The check is cached because the result can't change during runtime.
+   * <p>The result can't change during runtime, so it's computed once by {@link KeyEncodingHolder}.
    */
-  private static synchronized boolean shouldReadKeysAsStrings() {
-    // We're pretty sure that readString() should always be used on L+, but if we shortcircuit
-    // this check then we have no evidence that this code is functioning correctly on KitKat
-    // devices that have the corresponding writeString() change.
-    if (shouldReadKeysAsStringsCached == null) {
-      final String expectedKey = "key";
-      Bundle testBundle = new Bundle();
-      testBundle.putString(expectedKey, "value");
-      Parcel testParcel = toParcel(testBundle);
-      try {
-        // length
-        checkCondition(testParcel.readInt() > 0);
-        // magic
-        checkCondition(testParcel.readInt() == BUNDLE_MAGIC);
-        // num entries
-        checkCondition(testParcel.readInt() == 1);
-
-        shouldReadKeysAsStringsCached = expectedKey.equals(testParcel.readString());
-      } catch (RuntimeException e) {
-        shouldReadKeysAsStringsCached = Boolean.FALSE;
-      } finally {
-        testParcel.recycle();
-      }
+  private static boolean shouldReadKeysAsStrings() {
+    return KeyEncodingHolder.READ_KEYS_AS_STRINGS;
+  }
+
+  @VisibleForTesting
+  static boolean shouldReadKeysAsStrings(int sdkInt) {
+    if (sdkInt >= Build.VERSION_CODES.LOLLIPOP) {
+      return true;
+    }
+    if (sdkInt < Build.VERSION_CODES.KITKAT) {
+      return false;
     }
+    return probeKeysAreStrings();
+  }
+
+  /** Writes a dummy Bundle to a Parcel and checks whether its key was written as a String. */
+  private static boolean probeKeysAreStrings() {
+    final String expectedKey = "key";
+    Bundle testBundle = new Bundle();
+    testBundle.putString(expectedKey, "value");
+    Parcel testParcel = toParcel(testBundle);
+    try {
+      // length
+      checkCondition(testParcel.readInt() > 0);
+      // magic
+      checkCondition(testParcel.readInt() == BUNDLE_MAGIC);
+      // num entries
+      checkCondition(testParcel.readInt() == 1);
 
-    return shouldReadKeysAsStringsCached;
+      return expectedKey.equals(testParcel.readString());
+    } catch (RuntimeException e) {
+      return false;
+    } finally {
+      testParcel.recycle();
+    }
   }
 
   /** Throws an {@code IllegalStateException} if {@code condition} is false. */
@@ -244,4 +316,9 @@ import java.util.ArrayList;
       throw new IllegalStateException();
     }
   }
+
+  /** Lazily decides how keys are read, without taking a lock on every extraction. */
+  private static final class KeyEncodingHolder {
+    static final boolean READ_KEYS_AS_STRINGS = shouldReadKeysAsStrings(Build.VERSION.SDK_INT);
+  }
 }
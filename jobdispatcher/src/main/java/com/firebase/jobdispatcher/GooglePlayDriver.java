@@ -20,8 +20,16 @@ import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.SimpleArrayMap;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * GooglePlayDriver provides an implementation of Driver for devices with Google Play services
@@ -31,7 +39,7 @@ import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
  * @see <a
  *     href="https://developers.google.com/android/reference/com/google/android/gms/common/GoogleApiAvailability#isGooglePlayServicesAvailable(android.content.Context)">GoogleApiAvailability</a>
  */
-public final class GooglePlayDriver implements Driver {
+public final class GooglePlayDriver implements BatchDriver {
   static final String BACKEND_PACKAGE = "com.google.android.gms";
   private static final String ACTION_SCHEDULE = "com.google.android.gms.gcm.ACTION_SCHEDULE";
 
@@ -49,16 +57,10 @@ public final class GooglePlayDriver implements Driver {
   private static final int JOB_DISPATCHER_SOURCE_CODE = 1 << 3;
   private static final int JOB_DISPATCHER_SOURCE_VERSION_CODE = 1;
 
-  private final JobValidator validator;
-  /** The application Context. Used to send broadcasts. */
+  /** The Context used to send broadcasts. */
   private final Context context;
-  /**
-   * A PendingIntent from this package. Passed inside the broadcast so the receiver can verify the
-   * sender's package.
-   */
-  private final PendingIntent token;
-  /** Turns Jobs into Bundles. */
-  private final GooglePlayJobWriter writer;
+  /** The resources shared by all instances in the process, see {@link SharedResources}. */
+  private final SharedResources resources;
   /**
    * This is hardcoded to true to avoid putting an unnecessary dependency on the Google Play
    * services library.
@@ -66,12 +68,41 @@ public final class GooglePlayDriver implements Driver {
   // TODO: this is an unsatisfying solution
   private final boolean available = true;
 
-  /** Instantiates a new GooglePlayDriver. */
+  // @GuardedBy("GooglePlayDriver.class")
+  private static SharedResources sharedResources;
+
+  /**
+   * Instantiates a new GooglePlayDriver. This is cheap: the resources the driver needs are shared
+   * process-wide and only created when they're first used.
+   */
   public GooglePlayDriver(@NonNull Context context) {
     this.context = context;
-    token = PendingIntent.getBroadcast(context, 0, new Intent(), 0);
-    writer = new GooglePlayJobWriter();
-    validator = new DefaultJobValidator(context);
+    resources = getSharedResources(context);
+  }
+
+  /**
+   * Returns the resources for the provided Context's application, creating them if they don't
+   * exist yet.
+   */
+  private static SharedResources getSharedResources(Context context) {
+    Context appContext = context.getApplicationContext();
+    if (appContext == null) {
+      appContext = context;
+    }
+
+    synchronized (GooglePlayDriver.class) {
+      if (sharedResources == null || sharedResources.context != appContext) {
+        sharedResources = new SharedResources(appContext);
+      }
+      return sharedResources;
+    }
+  }
+
+  @VisibleForTesting
+  static void clearSharedResources() {
+    synchronized (GooglePlayDriver.class) {
+      sharedResources = null;
+    }
   }
 
   @Override
@@ -91,8 +122,31 @@ public final class GooglePlayDriver implements Driver {
     return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
   }
 
+  /**
+   * Schedules all the provided Jobs.
+   *
+   * <p>Google Play services only accepts a single task per schedule request, so this still sends
+   * one broadcast per Job. Stopping any of the Jobs that are currently running is done in a single
+   * pass though.
+   */
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    // Stop any of the jobs that are running first, before we send the broadcasts
+    GooglePlayReceiver.onScheduleAll(jobs);
+
+    int[] results = new int[jobs.size()];
+    for (int i = 0; i < results.length; i++) {
+      context.sendBroadcast(createScheduleRequest(jobs.get(i)));
+      results[i] = FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+    }
+    return results;
+  }
+
   @Override
   public int cancel(@NonNull String tag) {
+    resources.forgetScheduleRequest(tag);
     context.sendBroadcast(createCancelRequest(tag));
 
     return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
@@ -100,11 +154,33 @@ public final class GooglePlayDriver implements Driver {
 
   @Override
   public int cancelAll() {
+    resources.forgetScheduleRequests();
     context.sendBroadcast(createBatchCancelRequest());
 
     return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
   }
 
+  /**
+   * Cancels the Jobs with the provided tags.
+   *
+   * <p>Google Play services only accepts a single tag per cancel request, so this sends one
+   * broadcast per tag. The parts of the request that don't depend on the tag are only built once.
+   */
+  @Override
+  public int cancelAll(@NonNull List<String> tags) {
+    for (int i = 0; i < tags.size(); i++) {
+      resources.forgetScheduleRequest(tags.get(i));
+    }
+
+    Intent template = createSchedulerIntent(SCHEDULER_ACTION_CANCEL_TASK);
+    template.putExtra(BUNDLE_PARAM_COMPONENT, new ComponentName(context, getReceiverClass()));
+    for (int i = 0; i < tags.size(); i++) {
+      context.sendBroadcast(new Intent(template).putExtra(BUNDLE_PARAM_TAG, tags.get(i)));
+    }
+
+    return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+  }
+
   @NonNull
   protected Intent createCancelRequest(@NonNull String tag) {
     Intent cancelReq = createSchedulerIntent(SCHEDULER_ACTION_CANCEL_TASK);
@@ -128,26 +204,194 @@ public final class GooglePlayDriver implements Driver {
   @NonNull
   @Override
   public JobValidator getValidator() {
-    return validator;
+    return resources.validator;
   }
 
   @NonNull
   private Intent createScheduleRequest(JobParameters job) {
     Intent scheduleReq = createSchedulerIntent(SCHEDULER_ACTION_SCHEDULE_TASK);
-    scheduleReq.putExtras(writer.writeToBundle(job, scheduleReq.getExtras()));
+    if (isRescheduledAfterEveryRun(job)) {
+      scheduleReq.putExtras(resources.getScheduleRequest(job));
+    } else {
+      scheduleReq.putExtras(resources.writer.writeToBundle(job, scheduleReq.getExtras()));
+    }
     return scheduleReq;
   }
 
+  /**
+   * Returns whether the provided Job is rescheduled by the GooglePlayReceiver after every run,
+   * because Google Play services doesn't support recurring content URI triggers.
+   */
+  private static boolean isRescheduledAfterEveryRun(JobParameters job) {
+    return job.isRecurring() && job.getTrigger() instanceof ContentUriTrigger;
+  }
+
   @NonNull
   private Intent createSchedulerIntent(String schedulerAction) {
     Intent scheduleReq = new Intent(ACTION_SCHEDULE);
 
     scheduleReq.setPackage(BACKEND_PACKAGE);
     scheduleReq.putExtra(BUNDLE_PARAM_SCHEDULER_ACTION, schedulerAction);
-    scheduleReq.putExtra(BUNDLE_PARAM_TOKEN, token);
+    scheduleReq.putExtra(BUNDLE_PARAM_TOKEN, resources.getToken());
     scheduleReq.putExtra(INTENT_PARAM_SOURCE, JOB_DISPATCHER_SOURCE_CODE);
     scheduleReq.putExtra(INTENT_PARAM_SOURCE_VERSION, JOB_DISPATCHER_SOURCE_VERSION_CODE);
 
     return scheduleReq;
   }
+
+  /**
+   * The state a GooglePlayDriver needs that doesn't depend on the instance. It's tied to the
+   * application Context, so in practice there's a single one per process.
+   */
+  private static final class SharedResources {
+    /** The application Context. */
+    final Context context;
+    /** Turns Jobs into Bundles. Stateless, so safe to share. */
+    final GooglePlayJobWriter writer = new GooglePlayJobWriter();
+
+    final JobValidator validator;
+
+    /**
+     * A PendingIntent from this package. Passed inside the broadcast so the receiver can verify the
+     * sender's package. Created on first use, since getting it is an IPC.
+     */
+    // @GuardedBy("this")
+    private PendingIntent token;
+
+    /**
+     * Tag -> the last schedule request written for a Job that's rescheduled after every run, so
+     * the request only has to be written again if the Job changes.
+     */
+    // @GuardedBy("this")
+    private final SimpleArrayMap<String, CachedRequest> scheduleRequests = new SimpleArrayMap<>();
+
+    SharedResources(Context context) {
+      this.context = context;
+      validator = new DefaultJobValidator(context);
+    }
+
+    synchronized PendingIntent getToken() {
+      if (token == null) {
+        token = PendingIntent.getBroadcast(context, 0, new Intent(), 0);
+      }
+      return token;
+    }
+
+    /**
+     * Returns the schedule request for the provided Job, reusing the cached one if it was written
+     * for an identical Job. The returned Bundle must not be modified.
+     */
+    synchronized Bundle getScheduleRequest(JobParameters job) {
+      CachedRequest cached = scheduleRequests.get(job.getTag());
+      if (cached != null && cached.matches(job)) {
+        return cached.request;
+      }
+
+      // Snapshot the Job first, writing the request adds the encoded Job to its extras. The request
+      // is copied as well, since it holds on to the app's extras Bundle.
+      cached = new CachedRequest(job);
+      cached.request = deepCopy(writer.writeToBundle(job, new Bundle()));
+      scheduleRequests.put(job.getTag(), cached);
+      return cached.request;
+    }
+
+    synchronized void forgetScheduleRequest(String tag) {
+      scheduleRequests.remove(tag);
+    }
+
+    synchronized void forgetScheduleRequests() {
+      scheduleRequests.clear();
+    }
+  }
+
+  /**
+   * Returns a copy of the provided Bundle that shares nothing with it, not even nested Bundles or
+   * arrays, so later changes to the original aren't picked up.
+   */
+  private static Bundle deepCopy(Bundle bundle) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      bundle.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      return parcel.readBundle(GooglePlayDriver.class.getClassLoader());
+    } finally {
+      parcel.recycle();
+    }
+  }
+
+  /**
+   * A schedule request for a recurring content URI Job, and the parameters of the Job it was
+   * written for.
+   */
+  private static final class CachedRequest {
+    final String service;
+    final List<ObservedUri> uris;
+    final int lifetime;
+    final boolean replaceCurrent;
+    final int[] constraints;
+    final RetryStrategy retryStrategy;
+    @Nullable final Bundle extras;
+
+    Bundle request;
+
+    CachedRequest(JobParameters job) {
+      service = job.getService();
+      uris = ((ContentUriTrigger) job.getTrigger()).getUris();
+      lifetime = job.getLifetime();
+      replaceCurrent = job.shouldReplaceCurrent();
+      constraints = job.getConstraints();
+      retryStrategy = job.getRetryStrategy();
+      extras = job.getExtras() == null ? null : deepCopy(job.getExtras());
+    }
+
+    /** Returns whether the provided Job, which must have the same tag, results in this request. */
+    boolean matches(JobParameters job) {
+      RetryStrategy otherRetryStrategy = job.getRetryStrategy();
+      return service.equals(job.getService())
+          && job.isRecurring()
+          && job.getTrigger() instanceof ContentUriTrigger
+          && uris.equals(((ContentUriTrigger) job.getTrigger()).getUris())
+          && lifetime == job.getLifetime()
+          && replaceCurrent == job.shouldReplaceCurrent()
+          && Arrays.equals(constraints, job.getConstraints())
+          && retryStrategy.getPolicy() == otherRetryStrategy.getPolicy()
+          && retryStrategy.getInitialBackoff() == otherRetryStrategy.getInitialBackoff()
+          && retryStrategy.getMaximumBackoff() == otherRetryStrategy.getMaximumBackoff()
+          && sameUserExtras(extras, job.getExtras());
+    }
+
+    /**
+     * Compares the extras the app provided, ignoring the encoded Job that's added to them when a
+     * request is written. Values are compared with equals(), so arrays and nested Bundles never
+     * match, which only costs a cache miss.
+     */
+    private static boolean sameUserExtras(@Nullable Bundle a, @Nullable Bundle b) {
+      int userKeys = 0;
+      if (a != null) {
+        for (String key : a.keySet()) {
+          if (key.startsWith(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX)) {
+            continue;
+          }
+          Object value = a.get(key);
+          if (b == null || !b.containsKey(key) || !equal(value, b.get(key))) {
+            return false;
+          }
+          userKeys++;
+        }
+      }
+
+      if (b != null) {
+        for (String key : b.keySet()) {
+          if (!key.startsWith(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX)) {
+            userKeys--;
+          }
+        }
+      }
+      return userKeys == 0;
+    }
+
+    private static boolean equal(@Nullable Object a, @Nullable Object b) {
+      return a == null ? b == null : a.equals(b);
+    }
+  }
 }
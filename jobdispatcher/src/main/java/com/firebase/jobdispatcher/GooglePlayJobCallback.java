@@ -33,22 +33,22 @@ import android.os.RemoteException;
     remote = binder;
   }
 
+  /**
+   * Sends the result as a oneway transaction. The reply only ever carries an exception, which
+   * there's nothing to do about, so there's no point in blocking until the backend handled it.
+   */
   @Override
   public void jobFinished(@JobService.JobResult int status) {
     Parcel request = Parcel.obtain();
-    Parcel response = Parcel.obtain();
     try {
       request.writeInterfaceToken(DESCRIPTOR);
       request.writeInt(status);
 
-      remote.transact(TRANSACTION_TASK_FINISHED, request, response, 0);
-
-      response.readException();
+      remote.transact(TRANSACTION_TASK_FINISHED, request, null, IBinder.FLAG_ONEWAY);
     } catch (RemoteException e) {
       throw new RuntimeException(e);
     } finally {
       request.recycle();
-      response.recycle();
     }
   }
 }
@@ -21,15 +21,20 @@ import static com.firebase.jobdispatcher.GooglePlayReceiver.TAG;
 
 import android.annotation.TargetApi;
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.PatternMatcher;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
-import com.firebase.jobdispatcher.JobInvocation.Builder;
+import android.util.SparseBooleanArray;
 
 /** A messenger for communication with GCM Network Scheduler. */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
@@ -39,25 +44,44 @@ class GooglePlayMessageHandler extends Handler {
   static final int MSG_STOP_EXEC = 2;
   static final int MSG_RESULT = 3;
   private static final int MSG_INIT = 4;
+
+  /**
+   * Whether messages from a uid were sent by Google Play services, by uid. Checking costs an IPC,
+   * and the answer only changes when the Google Play services package does.
+   */
+  // @GuardedBy("verifiedSenders")
+  private static final SparseBooleanArray verifiedSenders = new SparseBooleanArray();
+
+  /** Incremented whenever {@link #verifiedSenders} is cleared. */
+  // @GuardedBy("verifiedSenders")
+  private static int verifiedSendersGeneration;
+
+  // @GuardedBy("verifiedSenders")
+  private static boolean packageReceiverRegistered;
+
   private final GooglePlayReceiver googlePlayReceiver;
 
-  public GooglePlayMessageHandler(Looper mainLooper, GooglePlayReceiver googlePlayReceiver) {
-    super(mainLooper);
+  public GooglePlayMessageHandler(Looper looper, GooglePlayReceiver googlePlayReceiver) {
+    super(looper);
     this.googlePlayReceiver = googlePlayReceiver;
   }
 
+  @VisibleForTesting
+  static void clearVerifiedSenders() {
+    synchronized (verifiedSenders) {
+      verifiedSenders.clear();
+      verifiedSendersGeneration++;
+      packageReceiverRegistered = false;
+    }
+  }
+
   @Override
   public void handleMessage(Message message) {
     if (message == null) {
       return;
     }
 
-    AppOpsManager appOpsManager =
-        (AppOpsManager)
-            googlePlayReceiver.getApplicationContext().getSystemService(Context.APP_OPS_SERVICE);
-    try {
-      appOpsManager.checkPackage(message.sendingUid, GooglePlayDriver.BACKEND_PACKAGE);
-    } catch (SecurityException e) {
+    if (!isFromGooglePlay(message.sendingUid)) {
       Log.e(TAG, "Message was not sent from GCM.");
       return;
     }
@@ -81,6 +105,63 @@ class GooglePlayMessageHandler extends Handler {
     }
   }
 
+  /** Checks whether {@code uid} belongs to Google Play services, reusing earlier answers. */
+  private boolean isFromGooglePlay(int uid) {
+    Context context = googlePlayReceiver.getApplicationContext();
+    int generation;
+    synchronized (verifiedSenders) {
+      int index = verifiedSenders.indexOfKey(uid);
+      if (index >= 0) {
+        return verifiedSenders.valueAt(index);
+      }
+      if (!packageReceiverRegistered) {
+        // Registered before the first check, so no package change can go unnoticed
+        registerPackageReceiver(context);
+        packageReceiverRegistered = true;
+      }
+      generation = verifiedSendersGeneration;
+    }
+
+    boolean verified;
+    AppOpsManager appOpsManager = (AppOpsManager) context.getSystemService(Context.APP_OPS_SERVICE);
+    try {
+      appOpsManager.checkPackage(uid, GooglePlayDriver.BACKEND_PACKAGE);
+      verified = true;
+    } catch (SecurityException e) {
+      verified = false;
+    }
+
+    synchronized (verifiedSenders) {
+      // Don't cache an answer that may predate a package change
+      if (generation == verifiedSendersGeneration) {
+        verifiedSenders.put(uid, verified);
+      }
+    }
+    return verified;
+  }
+
+  /** Forgets all verified senders whenever the Google Play services package changes. */
+  private static void registerPackageReceiver(Context context) {
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+    filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+    filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+    filter.addDataScheme("package");
+    filter.addDataSchemeSpecificPart(
+        GooglePlayDriver.BACKEND_PACKAGE, PatternMatcher.PATTERN_LITERAL);
+    context.registerReceiver(
+        new BroadcastReceiver() {
+          @Override
+          public void onReceive(Context context, Intent intent) {
+            synchronized (verifiedSenders) {
+              verifiedSenders.clear();
+              verifiedSendersGeneration++;
+            }
+          }
+        },
+        filter);
+  }
+
   private void handleStartMessage(Message message) {
     final Bundle data = message.getData();
 
@@ -99,14 +180,13 @@ class GooglePlayMessageHandler extends Handler {
   }
 
   private void handleStopMessage(Message message) {
-    Builder builder = GooglePlayReceiver.getJobCoder().decode(message.getData());
-    if (builder == null) {
+    JobInvocation job = GooglePlayReceiver.getJobCoder().decodeLazily(message.getData());
+    if (job == null) {
       if (Log.isLoggable(TAG, Log.DEBUG)) {
         Log.d(TAG, "Invalid stop execution message.");
       }
       return;
     }
-    JobInvocation job = builder.build();
     ExecutionDelegator.stopJob(job, true);
   }
 }
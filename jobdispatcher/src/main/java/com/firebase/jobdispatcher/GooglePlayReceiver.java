@@ -20,19 +20,25 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Messenger;
+import android.os.SystemClock;
 // import android.support.annotation.GuardedBy;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
-import android.support.v4.util.SimpleArrayMap;
 import android.util.Log;
 import android.util.Pair;
 import com.firebase.jobdispatcher.Job.Builder;
 import com.firebase.jobdispatcher.JobService.JobResult;
-import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handles incoming execute requests from the GooglePlay driver and forwards them to your Service.
@@ -48,12 +54,19 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
   @VisibleForTesting
   static final String ACTION_INITIALIZE = "com.google.android.gms.gcm.SERVICE_ACTION_INITIALIZE";
 
+  /** The default for {@link #setIdleLingerMillis(long)}. */
+  public static final long DEFAULT_IDLE_LINGER_MILLIS = 1000;
+
   private static final String ERROR_NULL_INTENT = "Null Intent passed, terminating";
   private static final String ERROR_UNKNOWN_ACTION = "Unknown action received, terminating";
   private static final String ERROR_NO_DATA = "No data provided, terminating";
 
+  /**
+   * Used for Bundles that never leave the app (e.g. the ones sent to a JobService), so it can use
+   * the compact format. Bundles from Google Play services are still decoded correctly.
+   */
   private static final JobCoder prefixedCoder =
-      new JobCoder(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX);
+      new JobCoder(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX, JobCoder.FORMAT_COMPACT);
 
   private final GooglePlayCallbackExtractor callbackExtractor = new GooglePlayCallbackExtractor();
 
@@ -76,33 +89,92 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
   private ExecutionDelegator executionDelegator;
 
   /** The most recent startId passed to onStartCommand. */
-  // @GuardedBy("callbacks")
-  private int latestStartId;
+  private volatile int latestStartId;
+
+  /** The callbacks of the jobs that are running, by service and tag. */
+  private static final JobCallbackRegistry callbacks = new JobCallbackRegistry();
+
+  /** How long the service stays around once it has no work, see {@link #setIdleLingerMillis}. */
+  private static volatile long idleLingerMillis = DEFAULT_IDLE_LINGER_MILLIS;
+
+  private static final AtomicInteger createCount = new AtomicInteger();
+  private static final AtomicInteger destroyCount = new AtomicInteger();
+
+  /** Replaces the default result sender in tests. */
+  private static volatile JobResultSender resultSender;
+
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  /** Identifies the pending delayed stop, if any. */
+  private final Object idleStopToken = new Object();
+
+  /** Bumped whenever a stop is requested or cancelled, so only the latest request stops. */
+  private final AtomicInteger idleStopRequests = new AtomicInteger();
 
-  /** Endpoint (String) -> Tag (String) -> JobCallback */
-  // @GuardedBy("callbacks")
-  private static final SimpleArrayMap<String, SimpleArrayMap<String, JobCallback>> callbacks =
-      new SimpleArrayMap<>(1);
+  /**
+   * Sets how long the service is kept around after its last job has finished, before it stops
+   * itself. New work that arrives in the meantime is handled by the same instance, so jobs that
+   * run shortly after each other don't cause the service (and the state it creates lazily) to be
+   * destroyed and recreated every time. Zero stops the service as soon as it's idle.
+   *
+   * <p>Defaults to {@link #DEFAULT_IDLE_LINGER_MILLIS}.
+   */
+  public static void setIdleLingerMillis(long millis) {
+    if (millis < 0) {
+      throw new IllegalArgumentException("millis must not be negative");
+    }
+    idleLingerMillis = millis;
+  }
+
+  /** Returns how many times the service has been created in this process. */
+  public static int getCreateCount() {
+    return createCount.get();
+  }
+
+  /** Returns how many times the service has been destroyed in this process. */
+  public static int getDestroyCount() {
+    return destroyCount.get();
+  }
 
   @VisibleForTesting
   static void clearCallbacks() {
-    synchronized (callbacks) {
-      callbacks.clear();
-    }
+    callbacks.clear();
   }
 
+  /** Overrides the sender created by {@link ResultSenderHolder}, or restores it if null. */
+  @VisibleForTesting
+  static void setResultExecutor(@Nullable Executor executor) {
+    resultSender = executor == null ? null : new JobResultSender(executor);
+  }
+
+  /** Sends the result in the background, errors are logged rather than thrown. */
   private static void sendResultSafely(JobCallback callback, int result) {
-    try {
-      callback.jobFinished(result);
-    } catch (Throwable e) {
-      Log.e(TAG, "Encountered error running callback: " + e.getMessage());
-    }
+    getResultSender().send(callback, result);
+  }
+
+  private static JobResultSender getResultSender() {
+    JobResultSender sender = resultSender;
+    return sender == null ? ResultSenderHolder.INSTANCE : sender;
+  }
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    createCount.incrementAndGet();
+  }
+
+  @Override
+  public void onDestroy() {
+    cancelIdleStop();
+    destroyCount.incrementAndGet();
+    super.onDestroy();
   }
 
   @Override
   public final int onStartCommand(Intent intent, int flags, int startId) {
     try {
       super.onStartCommand(intent, flags, startId);
+      cancelIdleStop();
 
       if (intent == null) {
         Log.w(TAG, ERROR_NULL_INTENT);
@@ -114,18 +186,16 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
         getExecutionDelegator().executeJob(prepareJob(intent));
         return START_NOT_STICKY;
       } else if (ACTION_INITIALIZE.equals(action)) {
+        // Google Play services lost its jobs, so none of them can be skipped as already scheduled
+        DeduplicatingDriver.clearCache(this);
         return START_NOT_STICKY;
       }
 
       Log.e(TAG, ERROR_UNKNOWN_ACTION);
       return START_NOT_STICKY;
     } finally {
-      synchronized (callbacks) {
-        latestStartId = startId;
-        if (callbacks.isEmpty()) {
-          stopSelf(latestStartId);
-        }
-      }
+      latestStartId = startId;
+      stopWhenIdle();
     }
   }
 
@@ -144,7 +214,8 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
 
   private synchronized Messenger getServiceMessenger() {
     if (serviceMessenger == null) {
-      serviceMessenger = new Messenger(new GooglePlayMessageHandler(Looper.getMainLooper(), this));
+      serviceMessenger =
+          new Messenger(new GooglePlayMessageHandler(MessengerLooperHolder.INSTANCE, this));
     }
     return serviceMessenger;
   }
@@ -209,57 +280,91 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
       sendResultSafely(callback, JobService.RESULT_FAIL_NORETRY);
       return null;
     }
-    synchronized (callbacks) {
-      SimpleArrayMap<String, JobCallback> map = callbacks.get(job.getService());
-      if (map == null) {
-        map = new SimpleArrayMap<>(1);
-        callbacks.put(job.getService(), map);
-      }
-
-      map.put(job.getTag(), callback);
-    }
+    cancelIdleStop();
+    callbacks.put(job.getService(), job.getTag(), callback);
+    ScheduledJobIndex.add(job.getTag(), job.getService());
     return job;
   }
 
   @Override
   public void onJobFinished(@NonNull JobInvocation js, @JobResult int result) {
     try {
-      JobCallback callback;
-      synchronized (callbacks) {
-        SimpleArrayMap<String, JobCallback> map = callbacks.get(js.getService());
-        if (map == null) {
-          return;
-        }
-        callback = map.remove(js.getTag());
-        if (callback == null) {
-          return;
-        }
-        if (map.isEmpty()) {
-          callbacks.remove(js.getService());
-        }
+      JobCallback callback = callbacks.remove(js.getService(), js.getTag());
+      if (callback == null) {
+        return;
       }
-      if (needsToBeRescheduled(js, result)) {
-        reschedule(js);
-      } else {
+      if (!needsToBeRescheduled(js, result) || !reschedule(js)) {
+        if (!js.isRecurring() && result != JobService.RESULT_FAIL_RETRY) {
+          ScheduledJobIndex.remove(js.getTag());
+        }
         if (Log.isLoggable(TAG, Log.VERBOSE)) {
           Log.v(TAG, "sending jobFinished for " + js.getTag() + " = " + result);
         }
         sendResultSafely(callback, result);
       }
     } finally {
-      synchronized (callbacks) {
-        if (callbacks.isEmpty()) {
-          // Safe to call stopSelf, even if we're being bound to
-          stopSelf(latestStartId);
-        }
-      }
+      stopWhenIdle();
+    }
+  }
+
+  /**
+   * Stops the service if no jobs are running, after {@link #idleLingerMillis} unless new work
+   * arrives first. Safe to call stopSelf, even if we're being bound to.
+   *
+   * <p>Results are sent in the background, and stopping the service could let the process die
+   * before they're out. The delay therefore only starts once every queued result has been sent.
+   */
+  private void stopWhenIdle() {
+    if (!callbacks.isEmpty()) {
+      return;
     }
+
+    handler.removeCallbacksAndMessages(idleStopToken);
+    final int stopRequest = idleStopRequests.incrementAndGet();
+    final Runnable stopIfIdle =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (stopRequest == idleStopRequests.get() && callbacks.isEmpty()) {
+              stopSelf(latestStartId);
+            }
+          }
+        };
+    getResultSender()
+        .runWhenSent(
+            new Runnable() {
+              @Override
+              public void run() {
+                handler.postAtTime(
+                    stopIfIdle, idleStopToken, SystemClock.uptimeMillis() + idleLingerMillis);
+              }
+            });
   }
 
-  private void reschedule(JobInvocation jobInvocation) {
-    Job job = new Builder(getValidationEnforcer(), jobInvocation).setReplaceCurrent(true).build();
+  /** Drops the pending stop, if any, because new work has arrived or the service is going away. */
+  private void cancelIdleStop() {
+    idleStopRequests.incrementAndGet();
+    handler.removeCallbacksAndMessages(idleStopToken);
+  }
+
+  /**
+   * Reschedules the provided job. Returns false if the job couldn't be decoded, in which case the
+   * result should be sent instead.
+   */
+  private boolean reschedule(JobInvocation jobInvocation) {
+    if (!jobInvocation.isDecodable()) {
+      // Already logged by the JobInvocation
+      return false;
+    }
+
+    // The job was validated when it was first scheduled, so skip the (IPC-heavy) validation here
+    Job job =
+        new Builder(getValidationEnforcer(), jobInvocation)
+            .setReplaceCurrent(true)
+            .buildWithoutValidation();
 
     getGooglePlayDriver().schedule(job);
+    return true;
   }
 
   /**
@@ -270,10 +375,11 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
    * <p>{@link JobService#RESULT_FAIL_RETRY} needs to be sent or current triggered URIs will be
    * lost.
    */
-  private static boolean needsToBeRescheduled(JobParameters job, int result) {
-    return job.isRecurring()
-        && job.getTrigger() instanceof ContentUriTrigger
-        && result != JobService.RESULT_FAIL_RETRY;
+  private static boolean needsToBeRescheduled(JobInvocation job, int result) {
+    // Answered from the encoded job, so finished jobs that are lazily decoded stay undecoded
+    return result != JobService.RESULT_FAIL_RETRY
+        && job.isRecurring()
+        && job.hasContentUriTrigger();
   }
 
   static JobCoder getJobCoder() {
@@ -287,23 +393,71 @@ public class GooglePlayReceiver extends Service implements ExecutionDelegator.Jo
    * by Google Play services.
    */
   static void onSchedule(Job job) {
-    // Stop if running
-    synchronized (callbacks) {
-      SimpleArrayMap<String, JobCallback> jobs = callbacks.get(job.getService());
-      if (jobs == null) { // not running
-        return;
-      }
-      JobCallback jobCallback = jobs.get(job.getTag());
-      if (jobCallback == null) { // not running
-        return;
+    onScheduleAll(Collections.singletonList(job));
+  }
+
+  /** Same as {@link #onSchedule(Job)}, for several jobs. */
+  static void onScheduleAll(List<Job> jobs) {
+    for (int i = 0; i < jobs.size(); i++) {
+      Job job = jobs.get(i);
+      if (!callbacks.contains(job.getService(), job.getTag())) { // not running
+        continue;
       }
+
+      // Stop if running
+      JobInvocation key =
+          new JobInvocation.Builder()
+              .setTag(job.getTag())
+              .setService(job.getService())
+              .setTrigger(job.getTrigger())
+              .build();
+      ExecutionDelegator.stopJob(key, false /* must not send the result */);
+    }
+  }
+
+  /**
+   * Stops the jobs with the provided tags that are running, and reports them to Google Play
+   * services as finished, since they're being cancelled.
+   */
+  static void onCancel(List<String> tags) {
+    if (callbacks.isEmpty()) {
+      return;
     }
-    JobInvocation key =
-        new JobInvocation.Builder()
-            .setTag(job.getTag())
-            .setService(job.getService())
-            .setTrigger(job.getTrigger())
-            .build();
-    ExecutionDelegator.stopJob(key, false /* must not send the result */);
+
+    List<JobCallbackRegistry.Key> runningJobs = new ArrayList<>(1);
+    List<JobCallback> runningCallbacks = new ArrayList<>(1);
+    callbacks.removeTags(tags, runningJobs, runningCallbacks);
+
+    for (int i = 0; i < runningJobs.size(); i++) {
+      JobCallbackRegistry.Key key = runningJobs.get(i);
+      JobInvocation invocation =
+          new JobInvocation.Builder()
+              .setTag(key.tag)
+              .setService(key.service)
+              .setTrigger(Trigger.NOW)
+              .build();
+      // The result is sent from here, the job's own result would be for a cancelled job
+      ExecutionDelegator.stopJob(invocation, false /* must not send the result */);
+      sendResultSafely(runningCallbacks.get(i), JobService.RESULT_SUCCESS);
+    }
+  }
+
+  /**
+   * Lazily starts the thread that messages from Google Play services are handled on, so they don't
+   * wait behind the app's UI work on the main thread.
+   */
+  private static final class MessengerLooperHolder {
+    static final Looper INSTANCE = create();
+
+    private static Looper create() {
+      HandlerThread thread = new HandlerThread("FJD-Messenger");
+      thread.start();
+      return thread.getLooper();
+    }
+  }
+
+  /** Lazily creates the sender that delivers results back to Google Play services. */
+  private static final class ResultSenderHolder {
+    static final JobResultSender INSTANCE = JobResultSender.create();
   }
 }
@@ -188,6 +188,15 @@ public final class Job implements JobParameters {
       return new Job(this);
     }
 
+    /**
+     * Builds the Job without validating it. Only for parameters that are already known to be valid,
+     * e.g. because they come from a Job that was scheduled before.
+     */
+    @NonNull
+    Job buildWithoutValidation() {
+      return new Job(this);
+    }
+
     /** {@inheritDoc} */
     @NonNull
     @Override
@@ -0,0 +1,131 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the callbacks of the jobs that are currently running, keyed by service and tag.
+ *
+ * <p>All operations are thread-safe without a shared lock. The number of callbacks is tracked
+ * separately, so {@link #isEmpty()} is a single read.
+ */
+/* package */ final class JobCallbackRegistry {
+
+  private final ConcurrentHashMap<Key, JobCallback> callbacks = new ConcurrentHashMap<>();
+
+  /** The number of entries in {@link #callbacks}. */
+  private final AtomicInteger size = new AtomicInteger();
+
+  /** Registers the callback for the provided job, replacing the previous one if there was one. */
+  void put(@NonNull String service, @NonNull String tag, @NonNull JobCallback callback) {
+    if (callbacks.put(new Key(service, tag), callback) == null) {
+      size.incrementAndGet();
+    }
+  }
+
+  /** Removes and returns the callback for the provided job, or returns null if there isn't one. */
+  @Nullable
+  JobCallback remove(@NonNull String service, @NonNull String tag) {
+    JobCallback callback = callbacks.remove(new Key(service, tag));
+    if (callback != null) {
+      size.decrementAndGet();
+    }
+    return callback;
+  }
+
+  boolean contains(@NonNull String service, @NonNull String tag) {
+    return callbacks.containsKey(new Key(service, tag));
+  }
+
+  /**
+   * Removes the callbacks of all jobs with one of the provided tags, regardless of their service.
+   * The removed keys and callbacks are added to {@code removedKeys} and {@code removedCallbacks},
+   * in matching order.
+   */
+  void removeTags(
+      @NonNull Collection<String> tags,
+      @NonNull List<Key> removedKeys,
+      @NonNull List<JobCallback> removedCallbacks) {
+    Set<String> tagSet = new HashSet<>(tags);
+    for (Map.Entry<Key, JobCallback> entry : callbacks.entrySet()) {
+      Key key = entry.getKey();
+      JobCallback callback = entry.getValue();
+      // Only remove the mapping that was seen, it may have been replaced concurrently
+      if (tagSet.contains(key.tag) && callbacks.remove(key, callback)) {
+        size.decrementAndGet();
+        removedKeys.add(key);
+        removedCallbacks.add(callback);
+      }
+    }
+  }
+
+  boolean isEmpty() {
+    return size.get() == 0;
+  }
+
+  int size() {
+    return size.get();
+  }
+
+  void clear() {
+    for (Key key : callbacks.keySet()) {
+      if (callbacks.remove(key) != null) {
+        size.decrementAndGet();
+      }
+    }
+  }
+
+  /** Identifies a job by its service and tag. The hash code is computed once. */
+  static final class Key {
+    final String service;
+    final String tag;
+    private final int hashCode;
+
+    Key(@NonNull String service, @NonNull String tag) {
+      this.service = service;
+      this.tag = tag;
+      hashCode = 31 * service.hashCode() + tag.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key other = (Key) o;
+      return hashCode == other.hashCode && tag.equals(other.tag) && service.equals(other.service);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
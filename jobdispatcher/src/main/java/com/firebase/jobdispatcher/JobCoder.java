@@ -22,11 +22,15 @@ import static com.firebase.jobdispatcher.ExecutionDelegator.TAG;
 
 import android.net.Uri;
 import android.os.Bundle;
+import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -37,13 +41,39 @@ import org.json.JSONObject;
 
 /** JobCoder is a tool to encode and decode JobSpecs from Bundles. */
 /* package */ final class JobCoder {
+
+  /**
+   * Writes every field under its own prefixed key. This is the only format that can be handed to
+   * Google Play services, which persists the extras and only understands primitives.
+   */
+  static final int FORMAT_KEY_PER_FIELD = 0;
+
+  /**
+   * Writes all fields as a single byte array (see {@link CompactJobCodec}). Only suitable for
+   * Bundles that stay inside the app, like the ones sent to a JobService.
+   */
+  static final int FORMAT_COMPACT = 1;
+
+  /** The formats a JobCoder can write. Both formats can always be read. */
+  @IntDef({FORMAT_KEY_PER_FIELD, FORMAT_COMPACT})
+  @Retention(RetentionPolicy.SOURCE)
+  @interface WireFormat {}
+
   private final String prefix;
+  @WireFormat private final int format;
+  private final String compactSpecKey;
 
   private static final String JSON_URI_FLAGS = "uri_flags";
   private static final String JSON_URIS = "uris";
 
   JobCoder(String prefix) {
+    this(prefix, FORMAT_KEY_PER_FIELD);
+  }
+
+  JobCoder(String prefix, @WireFormat int format) {
     this.prefix = prefix;
+    this.format = format;
+    this.compactSpecKey = prefix + BundleProtocol.PACKED_PARAM_COMPACT_SPEC;
   }
 
   @NonNull
@@ -57,6 +87,11 @@ import org.json.JSONObject;
       data.putAll(userExtras);
     }
 
+    if (format == FORMAT_COMPACT) {
+      data.putByteArray(compactSpecKey, CompactJobCodec.encode(jobParameters));
+      return data;
+    }
+
     data.putInt(prefix + BundleProtocol.PACKED_PARAM_LIFETIME, jobParameters.getLifetime());
     data.putBoolean(prefix + BundleProtocol.PACKED_PARAM_RECURRING, jobParameters.isRecurring());
     data.putBoolean(
@@ -99,6 +134,11 @@ import org.json.JSONObject;
       throw new IllegalArgumentException("Unexpected null Bundle provided");
     }
 
+    byte[] compactSpec = providedBundle.getByteArray(compactSpecKey);
+    if (compactSpec != null) {
+      return decodeCompact(providedBundle, compactSpec);
+    }
+
     Bundle data = new Bundle(providedBundle); // Copy to prevent modification
     boolean recur = data.getBoolean(prefix + BundleProtocol.PACKED_PARAM_RECURRING);
     boolean replaceCur = data.getBoolean(prefix + BundleProtocol.PACKED_PARAM_REPLACE_CURRENT);
@@ -144,6 +184,74 @@ import org.json.JSONObject;
     return builder;
   }
 
+  /**
+   * Decodes only the tag and service from the provided Bundle. Everything else is decoded the first
+   * time it's accessed (see {@link JobInvocation#createLazily}), so the Bundle must not be modified
+   * afterwards. Returns null if either the tag or the service is missing.
+   */
+  @Nullable
+  JobInvocation decodeLazily(@NonNull Bundle providedBundle) {
+    if (providedBundle == null) {
+      throw new IllegalArgumentException("Unexpected null Bundle provided");
+    }
+
+    String tag;
+    String service;
+    byte[] compactSpec = providedBundle.getByteArray(compactSpecKey);
+    if (compactSpec != null) {
+      Pair<String, String> tagAndService = CompactJobCodec.decodeTagAndService(compactSpec);
+      if (tagAndService == null) {
+        return null;
+      }
+      tag = tagAndService.first;
+      service = tagAndService.second;
+    } else {
+      tag = providedBundle.getString(prefix + BundleProtocol.PACKED_PARAM_TAG);
+      service = providedBundle.getString(prefix + BundleProtocol.PACKED_PARAM_SERVICE);
+    }
+
+    if (tag == null || service == null) {
+      return null;
+    }
+    return JobInvocation.createLazily(tag, service, providedBundle, this);
+  }
+
+  /** Reads just the recurring flag from the provided Bundle, without decoding the rest. */
+  boolean decodeRecurring(@NonNull Bundle providedBundle) {
+    byte[] compactSpec = providedBundle.getByteArray(compactSpecKey);
+    if (compactSpec != null) {
+      return CompactJobCodec.decodeRecurring(compactSpec);
+    }
+    return providedBundle.getBoolean(prefix + BundleProtocol.PACKED_PARAM_RECURRING);
+  }
+
+  /**
+   * Reads just the trigger type (one of the {@code BundleProtocol.TRIGGER_TYPE_} constants) from
+   * the provided Bundle, without decoding the trigger itself. Returns -1 if it can't be read.
+   */
+  int decodeTriggerType(@NonNull Bundle providedBundle) {
+    byte[] compactSpec = providedBundle.getByteArray(compactSpecKey);
+    if (compactSpec != null) {
+      return CompactJobCodec.decodeTriggerType(compactSpec);
+    }
+    return providedBundle.getInt(prefix + BundleProtocol.PACKED_PARAM_TRIGGER_TYPE, -1);
+  }
+
+  @Nullable
+  private JobInvocation.Builder decodeCompact(Bundle providedBundle, byte[] compactSpec) {
+    JobInvocation.Builder builder = CompactJobCodec.decode(compactSpec);
+    if (builder == null) {
+      return null;
+    }
+
+    // The compact format only ever writes a single prefixed key, everything else is a user extra
+    Bundle extras = new Bundle(providedBundle); // Copy to prevent modification
+    extras.remove(compactSpecKey);
+    builder.addExtras(extras);
+
+    return builder;
+  }
+
   @NonNull
   private JobTrigger decodeTrigger(Bundle data) {
     switch (data.getInt(prefix + BundleProtocol.PACKED_PARAM_TRIGGER_TYPE)) {
@@ -156,8 +264,10 @@ import org.json.JSONObject;
             data.getInt(prefix + BundleProtocol.PACKED_PARAM_TRIGGER_WINDOW_END));
 
       case BundleProtocol.TRIGGER_TYPE_CONTENT_URI:
-        String uris = data.getString(prefix + BundleProtocol.PACKED_PARAM_OBSERVED_URI);
-        List<ObservedUri> observedUris = convertJsonToObservedUris(uris);
+        List<ObservedUri> observedUris = decodeObservedUris(data);
+        if (observedUris == null) {
+          return null;
+        }
         return Trigger.contentUriTrigger(Collections.unmodifiableList(observedUris));
 
       default:
@@ -185,8 +295,7 @@ import org.json.JSONObject;
           prefix + BundleProtocol.PACKED_PARAM_TRIGGER_TYPE,
           BundleProtocol.TRIGGER_TYPE_CONTENT_URI);
       ContentUriTrigger uriTrigger = (ContentUriTrigger) trigger;
-      String jsonTrigger = convertObservedUrisToJsonString(uriTrigger.getUris());
-      data.putString(prefix + BundleProtocol.PACKED_PARAM_OBSERVED_URI, jsonTrigger);
+      encodeObservedUris(uriTrigger.getUris(), data);
     } else {
       throw new IllegalArgumentException("Unsupported trigger.");
     }
@@ -222,25 +331,60 @@ import org.json.JSONObject;
         retryStrategy.getMaximumBackoff());
   }
 
-  @NonNull
-  private static String convertObservedUrisToJsonString(@NonNull List<ObservedUri> uris) {
-    JSONObject contentUris = new JSONObject();
-    JSONArray jsonFlags = new JSONArray();
-    JSONArray jsonUris = new JSONArray();
-    for (ObservedUri uri : uris) {
-      jsonFlags.put(uri.getFlags());
-      jsonUris.put(uri.getUri());
+  /**
+   * Writes the provided {@code uris} as two parallel arrays of flags and URI strings. Both array
+   * types can be persisted, by the scheduling service as well as in a PersistableBundle.
+   */
+  private void encodeObservedUris(@NonNull List<ObservedUri> uris, Bundle data) {
+    int size = uris.size();
+    int[] flagsArray = new int[size];
+    String[] uriArray = new String[size];
+    for (int i = 0; i < size; i++) {
+      ObservedUri uri = uris.get(i);
+      flagsArray[i] = uri.getFlags();
+      uriArray[i] = uri.getUri().toString();
     }
-    try {
-      contentUris.put(JSON_URI_FLAGS, jsonFlags);
-      contentUris.put(JSON_URIS, jsonUris);
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+
+    data.putIntArray(prefix + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY, flagsArray);
+    data.putStringArray(prefix + BundleProtocol.PACKED_PARAM_CONTENT_URI_ARRAY, uriArray);
+  }
+
+  /**
+   * Reads the observed URIs written by {@link #encodeObservedUris}, falling back to the JSON
+   * representation used by older versions of the library (which may still be stored by the
+   * scheduling service). Returns null if neither representation is present or they're malformed.
+   */
+  @Nullable
+  private List<ObservedUri> decodeObservedUris(Bundle data) {
+    int[] flagsArray =
+        data.getIntArray(prefix + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY);
+    String[] uriArray = data.getStringArray(prefix + BundleProtocol.PACKED_PARAM_CONTENT_URI_ARRAY);
+    if (flagsArray != null && uriArray != null) {
+      if (flagsArray.length != uriArray.length) {
+        Log.e(TAG, "Mismatched observed URI arrays");
+        return null;
+      }
+
+      List<ObservedUri> uris = new ArrayList<>(uriArray.length);
+      for (int i = 0; i < uriArray.length; i++) {
+        uris.add(new ObservedUri(Uri.parse(uriArray[i]), flagsArray[i]));
+      }
+      return uris;
+    }
+
+    String json = data.getString(prefix + BundleProtocol.PACKED_PARAM_OBSERVED_URI);
+    if (json != null) {
+      return convertJsonToObservedUris(json);
     }
-    return contentUris.toString();
+
+    return null;
   }
 
-  @NonNull
+  /**
+   * Only used to read payloads written before observed URIs were encoded as arrays. Returns null
+   * if the JSON is malformed.
+   */
+  @Nullable
   private static List<ObservedUri> convertJsonToObservedUris(@NonNull String contentUrisJson) {
     List<ObservedUri> uris = new ArrayList<>();
     try {
@@ -255,7 +399,8 @@ import org.json.JSONObject;
         uris.add(new ObservedUri(Uri.parse(uri), flags));
       }
     } catch (JSONException e) {
-      throw new RuntimeException(e);
+      Log.e(TAG, "Malformed observed URIs", e);
+      return null;
     }
     return uris;
   }
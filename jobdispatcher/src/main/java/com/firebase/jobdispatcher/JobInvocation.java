@@ -18,11 +18,22 @@ package com.firebase.jobdispatcher;
 
 import android.os.Bundle;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 import com.firebase.jobdispatcher.Constraint.JobConstraint;
+import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
 import java.util.Arrays;
 import org.json.JSONObject;
 
-/** An internal non-Job implementation of JobParameters. Passed to JobService invocations. */
+/**
+ * An internal non-Job implementation of JobParameters. Passed to JobService invocations.
+ *
+ * <p>Instances created via {@link #createLazily} only know their tag and service up front. All
+ * other fields are decoded from the original Bundle the first time any of them is accessed, which
+ * keeps paths that only need to identify a job (like stopping or finishing it) cheap. If that
+ * Bundle turns out to be malformed, the failure is logged and the other fields read as their
+ * defaults, see {@link #isDecodable()}.
+ */
 /* package */ final class JobInvocation implements JobParameters {
 
   @NonNull private final String tag;
@@ -45,6 +56,20 @@ import org.json.JSONObject;
 
   private final TriggerReason triggerReason;
 
+  /** The Bundle the other fields will be decoded from, or null if they were provided up front. */
+  @Nullable private final Bundle undecodedData;
+
+  @Nullable private final JobCoder coder;
+
+  // @GuardedBy("this")
+  @Nullable private JobInvocation decoded;
+
+  // @GuardedBy("this")
+  private boolean decodingFailed;
+
+  /** The recurring flag of a lazily created instance, once it's been read. */
+  @Nullable private volatile Boolean lazyRecurring;
+
   private JobInvocation(Builder builder) {
     tag = builder.tag;
     service = builder.service;
@@ -56,6 +81,92 @@ import org.json.JSONObject;
     extras = builder.extras;
     replaceCurrent = builder.replaceCurrent;
     triggerReason = builder.triggerReason;
+    undecodedData = null;
+    coder = null;
+  }
+
+  private JobInvocation(
+      @NonNull String tag,
+      @NonNull String service,
+      @NonNull Bundle undecodedData,
+      @NonNull JobCoder coder) {
+    this.tag = tag;
+    this.service = service;
+    this.undecodedData = undecodedData;
+    this.coder = coder;
+    trigger = null;
+    retryStrategy = null;
+    recurring = false;
+    lifetime = 0;
+    constraints = null;
+    extras = null;
+    replaceCurrent = false;
+    triggerReason = null;
+  }
+
+  /**
+   * Creates a JobInvocation that defers decoding everything but the {@code tag} and {@code service}
+   * from {@code data} until it's needed. The provided Bundle must not be modified afterwards.
+   */
+  @NonNull
+  static JobInvocation createLazily(
+      @NonNull String tag, @NonNull String service, @NonNull Bundle data, @NonNull JobCoder coder) {
+    return new JobInvocation(tag, service, data, coder);
+  }
+
+  /**
+   * Returns the instance holding the non-identifying fields, decoding it on first access. Returns
+   * null if the Bundle this instance was lazily created from can't be decoded.
+   */
+  @Nullable
+  private JobInvocation details() {
+    if (undecodedData == null) {
+      return this;
+    }
+
+    synchronized (this) {
+      if (decoded == null && !decodingFailed) {
+        Builder builder = coder.decode(undecodedData);
+        if (builder == null) {
+          Log.e(ExecutionDelegator.TAG, "Unable to decode job with tag " + tag);
+          decodingFailed = true;
+        } else {
+          decoded = builder.build();
+        }
+      }
+      return decoded;
+    }
+  }
+
+  /**
+   * Returns false if this instance was lazily created from a Bundle that can't be decoded, in
+   * which case all fields but the tag and service read as their defaults.
+   */
+  boolean isDecodable() {
+    return details() != null;
+  }
+
+  /**
+   * Returns a copy of the Bundle this instance was lazily created from, if it was written by the
+   * provided {@code coder}. Saves encoding the job again when it's only passed on.
+   */
+  @Nullable
+  Bundle getEncodedData(@NonNull JobCoder coder) {
+    if (undecodedData == null || this.coder != coder) {
+      return null;
+    }
+    return new Bundle(undecodedData);
+  }
+
+  /**
+   * Returns true if the job has a {@link ContentUriTrigger}. Lazily created instances answer this
+   * from the encoded trigger type, without decoding the trigger.
+   */
+  boolean hasContentUriTrigger() {
+    if (undecodedData != null) {
+      return coder.decodeTriggerType(undecodedData) == BundleProtocol.TRIGGER_TYPE_CONTENT_URI;
+    }
+    return trigger instanceof ContentUriTrigger;
   }
 
   @NonNull
@@ -73,45 +184,64 @@ import org.json.JSONObject;
   @NonNull
   @Override
   public JobTrigger getTrigger() {
-    return trigger;
+    JobInvocation details = details();
+    return details != null ? details.trigger : Trigger.NOW;
   }
 
   @Override
   public int getLifetime() {
-    return lifetime;
+    JobInvocation details = details();
+    return details != null ? details.lifetime : Lifetime.UNTIL_NEXT_BOOT;
   }
 
   @Override
   public boolean isRecurring() {
-    return recurring;
+    if (undecodedData == null) {
+      return recurring;
+    }
+
+    Boolean cached = lazyRecurring;
+    if (cached == null) {
+      // The flag can be read without decoding everything else
+      cached = coder.decodeRecurring(undecodedData);
+      lazyRecurring = cached;
+    }
+    return cached;
   }
 
   @NonNull
   @Override
   public int[] getConstraints() {
-    return constraints;
+    JobInvocation details = details();
+    return details != null ? details.constraints : new int[0];
   }
 
   @NonNull
   @Override
   public Bundle getExtras() {
-    return extras;
+    JobInvocation details = details();
+    return details != null ? details.extras : new Bundle();
   }
 
   @NonNull
   @Override
   public RetryStrategy getRetryStrategy() {
-    return retryStrategy;
+    JobInvocation details = details();
+    return details != null && details.retryStrategy != null
+        ? details.retryStrategy
+        : RetryStrategy.DEFAULT_EXPONENTIAL;
   }
 
   @Override
   public boolean shouldReplaceCurrent() {
-    return replaceCurrent;
+    JobInvocation details = details();
+    return details != null && details.replaceCurrent;
   }
 
   @Override
   public TriggerReason getTriggerReason() {
-    return triggerReason;
+    JobInvocation details = details();
+    return details != null ? details.triggerReason : null;
   }
 
   static final class Builder {
@@ -222,6 +352,10 @@ import org.json.JSONObject;
 
   @Override
   public String toString() {
+    JobInvocation details = details();
+    if (details == null) {
+      return "JobInvocation{tag='" + JSONObject.quote(tag) + "', service='" + service + "'}";
+    }
     return "JobInvocation{"
         + "tag='"
         + JSONObject.quote(tag)
@@ -230,21 +364,21 @@ import org.json.JSONObject;
         + service
         + '\''
         + ", trigger="
-        + trigger
+        + details.trigger
         + ", recurring="
-        + recurring
+        + details.recurring
         + ", lifetime="
-        + lifetime
+        + details.lifetime
         + ", constraints="
-        + Arrays.toString(constraints)
+        + Arrays.toString(details.constraints)
         + ", extras="
-        + extras
+        + details.extras
         + ", retryStrategy="
-        + retryStrategy
+        + details.retryStrategy
         + ", replaceCurrent="
-        + replaceCurrent
+        + details.replaceCurrent
         + ", triggerReason="
-        + triggerReason
+        + details.triggerReason
         + '}';
   }
 }
@@ -0,0 +1,131 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+import com.firebase.jobdispatcher.JobService.JobResult;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers job results to their {@link JobCallback}s in the background, so whoever reports a
+ * result never waits for the IPC to the scheduling backend.
+ *
+ * <p>Results are queued and sent in order by a single flush task. Results that arrive while a
+ * flush is scheduled or running are picked up by that same flush, so a burst of finishing jobs
+ * costs one executor task rather than one per result.
+ */
+/* package */ final class JobResultSender {
+
+  private static final String TAG = GooglePlayReceiver.TAG;
+  private static final long KEEP_ALIVE_SECONDS = 10;
+
+  private final Executor executor;
+  /** Results to send, and tasks waiting for the results queued before them. */
+  private final ConcurrentLinkedQueue<Runnable> pendingResults = new ConcurrentLinkedQueue<>();
+
+  /** Whether a flush has been handed to {@link #executor} and hasn't started draining yet. */
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+  private final Runnable flushTask =
+      new Runnable() {
+        @Override
+        public void run() {
+          flush();
+        }
+      };
+
+  JobResultSender(@NonNull Executor executor) {
+    this.executor = executor;
+  }
+
+  /** Creates a sender backed by a single thread that's allowed to time out when idle. */
+  static JobResultSender create() {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+              @Override
+              public Thread newThread(@NonNull Runnable r) {
+                Thread thread = new Thread(r, "FJD-Results");
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+    executor.allowCoreThreadTimeOut(true);
+    return new JobResultSender(executor);
+  }
+
+  /** Queues {@code result} to be sent to {@code callback}. Never blocks on the callback. */
+  void send(@NonNull JobCallback callback, @JobResult int result) {
+    enqueue(new PendingResult(callback, result));
+  }
+
+  /**
+   * Runs {@code task} in the background once every result queued before it has been sent (or
+   * failed to send).
+   */
+  void runWhenSent(@NonNull Runnable task) {
+    enqueue(task);
+  }
+
+  private void enqueue(Runnable pending) {
+    pendingResults.add(pending);
+    if (flushScheduled.compareAndSet(false, true)) {
+      executor.execute(flushTask);
+    }
+  }
+
+  private void flush() {
+    // Cleared before draining, so a result queued after the last poll schedules another flush
+    flushScheduled.set(false);
+
+    Runnable pending;
+    while ((pending = pendingResults.poll()) != null) {
+      try {
+        pending.run();
+      } catch (Throwable e) {
+        Log.e(TAG, "Encountered error running callback: " + e.getMessage());
+      }
+    }
+  }
+
+  private static final class PendingResult implements Runnable {
+    final JobCallback callback;
+    @JobResult final int result;
+
+    PendingResult(JobCallback callback, @JobResult int result) {
+      this.callback = callback;
+      this.result = result;
+    }
+
+    @Override
+    public void run() {
+      callback.jobFinished(result);
+    }
+  }
+}
@@ -0,0 +1,493 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.Base64;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import com.firebase.jobdispatcher.JobTrigger.ExecutionWindowTrigger;
+import com.firebase.jobdispatcher.JobTrigger.ImmediateTrigger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JobSchedulerDriver provides an implementation of Driver backed by the platform {@link
+ * JobScheduler}, so Jobs can be run without Google Play services. It's only available on Lollipop
+ * (API 21) and newer; content URI triggers additionally need Nougat (API 24).
+ *
+ * <p>Jobs are executed by {@link JobSchedulerReceiver}, which forwards them to the same {@link
+ * JobService} subclasses the other drivers use. The receiver isn't part of the library's manifest,
+ * so apps that use this driver have to declare it themselves:
+ *
+ * <pre>{@code
+ * <service
+ *     android:name="com.firebase.jobdispatcher.JobSchedulerReceiver"
+ *     android:exported="true"
+ *     android:permission="android.permission.BIND_JOB_SERVICE" />
+ * }</pre>
+ *
+ * <p>JobScheduler identifies jobs by an int. Each tag is assigned an id from a range that defaults
+ * to [{@link #DEFAULT_MIN_JOB_ID}, {@link #DEFAULT_MAX_JOB_ID}] and can be moved with {@link
+ * #JobSchedulerDriver(Context, int, int)} if it clashes with ids the app uses itself. Assignments
+ * are kept in {@link SharedPreferences}, so they survive process restarts, and ids are reused once
+ * their Jobs are cancelled or no longer pending.
+ *
+ * <p>The maximum backoff of a {@link RetryStrategy} is ignored, since JobScheduler doesn't support
+ * it. Jobs with a {@link Lifetime#FOREVER} lifetime are persisted, which requires the app to hold
+ * the {@code android.permission.RECEIVE_BOOT_COMPLETED} permission. JobScheduler can't persist
+ * content URI triggers, so such Jobs are rejected with {@link
+ * FirebaseJobDispatcher#SCHEDULE_RESULT_UNSUPPORTED_TRIGGER}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class JobSchedulerDriver implements BatchDriver {
+
+  private static final String TAG = "FJD.JobSchedulerDriver";
+
+  /** The extras key holding the Job's scheduling metadata, encoded by {@link CompactJobCodec}. */
+  static final String EXTRA_SPEC = "com.firebase.jobdispatcher.spec";
+
+  /** The extras key holding the Job's own extras. */
+  static final String EXTRA_USER_EXTRAS = "com.firebase.jobdispatcher.extras";
+
+  /**
+   * The extras keys holding the id range of the driver that scheduled the Job, so {@link
+   * JobSchedulerReceiver} reschedules it within the same range.
+   */
+  static final String EXTRA_MIN_JOB_ID = "com.firebase.jobdispatcher.min_job_id";
+
+  static final String EXTRA_MAX_JOB_ID = "com.firebase.jobdispatcher.max_job_id";
+
+  /** The lowest JobScheduler id used by default. */
+  public static final int DEFAULT_MIN_JOB_ID = 0x464a0000;
+
+  /** The highest JobScheduler id used by default. */
+  public static final int DEFAULT_MAX_JOB_ID = DEFAULT_MIN_JOB_ID + 0xffff;
+
+  @VisibleForTesting
+  static final String PREFERENCES_NAME = "com.firebase.jobdispatcher.job_ids";
+
+  /**
+   * Returned by {@link #findJobId(String)} for tags without an id. JobScheduler accepts any int,
+   * but this one is outside of every sensible range.
+   */
+  private static final int NO_JOB_ID = Integer.MIN_VALUE;
+
+  private final Context context;
+  private final JobValidator validator;
+  private final ComponentName receiver;
+  private final int minJobId;
+  private final int maxJobId;
+
+  /**
+   * Tag -> JobScheduler id. The instance is shared by every driver in the process, and is also
+   * used as the lock for assigning ids.
+   */
+  private final SharedPreferences jobIds;
+
+  /** Instantiates a new JobSchedulerDriver that uses the default range of JobScheduler ids. */
+  public JobSchedulerDriver(@NonNull Context context) {
+    this(context, DEFAULT_MIN_JOB_ID, DEFAULT_MAX_JOB_ID);
+  }
+
+  /**
+   * Instantiates a new JobSchedulerDriver that only uses JobScheduler ids between {@code minJobId}
+   * and {@code maxJobId}, inclusive. The range must not overlap with ids the app passes to
+   * JobScheduler directly, should stay the same across app versions, and can't start at {@code
+   * Integer.MIN_VALUE}.
+   */
+  public JobSchedulerDriver(@NonNull Context context, int minJobId, int maxJobId) {
+    if (minJobId > maxJobId || minJobId == NO_JOB_ID) {
+      throw new IllegalArgumentException("Invalid JobScheduler id range");
+    }
+    this.context = context;
+    this.minJobId = minJobId;
+    this.maxJobId = maxJobId;
+    validator = new DefaultJobValidator(context);
+    receiver = new ComponentName(context, JobSchedulerReceiver.class);
+    jobIds = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  /** Returns whether this driver assigns ids from [{@code minJobId}, {@code maxJobId}]. */
+  /* package */ boolean hasJobIdRange(int minJobId, int maxJobId) {
+    return this.minJobId == minJobId && this.maxJobId == maxJobId;
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+  }
+
+  @Override
+  @ScheduleResult
+  public int schedule(@NonNull Job job) {
+    if (!isAvailable()) {
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    JobScheduler scheduler = getJobScheduler();
+    return schedule(
+        scheduler, job, job.shouldReplaceCurrent() ? null : getPendingJobIds(scheduler));
+  }
+
+  /** Same as {@link #schedule(Job)} for every Job, but only looks up the pending jobs once. */
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    int[] results = new int[jobs.size()];
+    if (!isAvailable()) {
+      Arrays.fill(results, FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE);
+      return results;
+    }
+
+    JobScheduler scheduler = getJobScheduler();
+    SparseBooleanArray pendingJobIds = null;
+    for (int i = 0; i < results.length; i++) {
+      Job job = jobs.get(i);
+      if (!job.shouldReplaceCurrent() && pendingJobIds == null) {
+        pendingJobIds = getPendingJobIds(scheduler);
+      }
+      results[i] = schedule(scheduler, job, pendingJobIds);
+      if (results[i] == FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS && pendingJobIds != null) {
+        pendingJobIds.put(findJobId(job.getTag()), true);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Schedules the provided Job. {@code pendingJobIds} holds the ids of the jobs this driver has
+   * pending, and may only be null if the Job replaces the current one.
+   */
+  @ScheduleResult
+  private int schedule(
+      JobScheduler scheduler, Job job, @Nullable SparseBooleanArray pendingJobIds) {
+    if (!job.shouldReplaceCurrent() && pendingJobIds.get(findJobId(job.getTag()))) {
+      // JobScheduler always replaces, so emulate keeping the existing job here
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+    }
+    if (job.getLifetime() == Lifetime.FOREVER && job.getTrigger() instanceof ContentUriTrigger) {
+      // JobScheduler refuses to persist content URI jobs
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER;
+    }
+
+    int jobId = getJobId(scheduler, job.getTag());
+    if (jobId == NO_JOB_ID) {
+      Log.e(TAG, "No JobScheduler id left for " + job.getTag());
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR;
+    }
+
+    JobInfo.Builder builder = new JobInfo.Builder(jobId, receiver);
+    if (!setTrigger(builder, job)) {
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER;
+    }
+    int constraints = Constraint.compact(job.getConstraints());
+    setConstraints(builder, constraints, job.getTrigger());
+    if ((constraints & Constraint.DEVICE_IDLE) == 0) {
+      // JobScheduler doesn't back off idle jobs, and refuses to build them with a backoff policy
+      setRetryStrategy(builder, job.getRetryStrategy());
+    }
+    builder.setPersisted(job.getLifetime() == Lifetime.FOREVER);
+
+    PersistableBundle extras = toPersistableBundle(job.getExtras());
+    if (extras == null) {
+      Log.e(TAG, "Extras of " + job.getTag() + " contain values JobScheduler can't store");
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR;
+    }
+    PersistableBundle jobInfoExtras = new PersistableBundle();
+    jobInfoExtras.putString(
+        EXTRA_SPEC, Base64.encodeToString(CompactJobCodec.encode(job), Base64.NO_WRAP));
+    jobInfoExtras.putPersistableBundle(EXTRA_USER_EXTRAS, extras);
+    jobInfoExtras.putInt(EXTRA_MIN_JOB_ID, minJobId);
+    jobInfoExtras.putInt(EXTRA_MAX_JOB_ID, maxJobId);
+    builder.setExtras(jobInfoExtras);
+
+    try {
+      return scheduler.schedule(builder.build()) == JobScheduler.RESULT_SUCCESS
+          ? FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS
+          : FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR;
+    } catch (IllegalArgumentException e) {
+      // Thrown for a missing receiver, or for persisting without permission
+      Log.e(TAG, "Unable to schedule " + job.getTag() + ": " + e.getMessage());
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE;
+    }
+  }
+
+  @Override
+  @CancelResult
+  public int cancel(@NonNull String tag) {
+    return cancelAll(Collections.singletonList(tag));
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll(@NonNull List<String> tags) {
+    if (!isAvailable()) {
+      return FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    JobScheduler scheduler = getJobScheduler();
+    SparseBooleanArray pendingJobIds = getPendingJobIds(scheduler);
+    synchronized (jobIds) {
+      SharedPreferences.Editor editor = jobIds.edit();
+      for (int i = 0; i < tags.size(); i++) {
+        int jobId = findJobId(tags.get(i));
+        if (jobId == NO_JOB_ID) {
+          continue;
+        }
+        if (pendingJobIds.get(jobId)) {
+          scheduler.cancel(jobId);
+        }
+        editor.remove(key(tags.get(i)));
+      }
+      editor.apply();
+    }
+    return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+  }
+
+  /** Cancels the Jobs scheduled through this driver. Other JobScheduler jobs aren't touched. */
+  @Override
+  @CancelResult
+  public int cancelAll() {
+    if (!isAvailable()) {
+      return FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE;
+    }
+
+    JobScheduler scheduler = getJobScheduler();
+    List<JobInfo> pendingJobs = scheduler.getAllPendingJobs();
+    for (int i = 0; i < pendingJobs.size(); i++) {
+      JobInfo jobInfo = pendingJobs.get(i);
+      if (receiver.equals(jobInfo.getService())) {
+        scheduler.cancel(jobInfo.getId());
+      }
+    }
+    synchronized (jobIds) {
+      jobIds.edit().clear().apply();
+    }
+    return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+  }
+
+  @NonNull
+  @Override
+  public JobValidator getValidator() {
+    return validator;
+  }
+
+  private JobScheduler getJobScheduler() {
+    return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+  }
+
+  /** Returns the ids of the pending jobs that were scheduled by this driver. */
+  private SparseBooleanArray getPendingJobIds(JobScheduler scheduler) {
+    List<JobInfo> pendingJobs = scheduler.getAllPendingJobs();
+    SparseBooleanArray pendingJobIds = new SparseBooleanArray(pendingJobs.size());
+    for (int i = 0; i < pendingJobs.size(); i++) {
+      JobInfo jobInfo = pendingJobs.get(i);
+      if (receiver.equals(jobInfo.getService())) {
+        pendingJobIds.put(jobInfo.getId(), true);
+      }
+    }
+    return pendingJobIds;
+  }
+
+  /** Returns the JobScheduler id assigned to the provided tag, or {@link #NO_JOB_ID}. */
+  @VisibleForTesting
+  int findJobId(@NonNull String tag) {
+    return jobIds.getInt(key(tag), NO_JOB_ID);
+  }
+
+  /**
+   * Returns the JobScheduler id assigned to the provided tag, assigning a free one if there's
+   * none yet. Returns {@link #NO_JOB_ID} if every id in the range is taken by a pending Job.
+   */
+  private int getJobId(JobScheduler scheduler, String tag) {
+    synchronized (jobIds) {
+      int jobId = findJobId(tag);
+      if (jobId != NO_JOB_ID) {
+        return jobId;
+      }
+
+      Map<String, ?> assigned = jobIds.getAll();
+      jobId = findFreeJobId(assigned.values());
+      if (jobId == NO_JOB_ID) {
+        // Forget the ids of Jobs that have finished or were dropped, and try again
+        SparseBooleanArray pendingJobIds = getPendingJobIds(scheduler);
+        SharedPreferences.Editor editor = jobIds.edit();
+        List<Object> stillAssigned = new ArrayList<>(assigned.size());
+        for (Map.Entry<String, ?> entry : assigned.entrySet()) {
+          Object assignedId = entry.getValue();
+          if (assignedId instanceof Integer && pendingJobIds.get((Integer) assignedId)) {
+            stillAssigned.add(assignedId);
+          } else {
+            editor.remove(entry.getKey());
+          }
+        }
+        editor.apply();
+        jobId = findFreeJobId(stillAssigned);
+      }
+
+      if (jobId != NO_JOB_ID) {
+        jobIds.edit().putInt(key(tag), jobId).apply();
+      }
+      return jobId;
+    }
+  }
+
+  /** Returns the lowest id in range that isn't in {@code assigned}, or {@link #NO_JOB_ID}. */
+  private int findFreeJobId(Collection<?> assigned) {
+    SparseBooleanArray taken = new SparseBooleanArray(assigned.size());
+    for (Object jobId : assigned) {
+      if (jobId instanceof Integer) {
+        taken.put((Integer) jobId, true);
+      }
+    }
+    for (long jobId = minJobId; jobId <= maxJobId; jobId++) {
+      if (!taken.get((int) jobId)) {
+        return (int) jobId;
+      }
+    }
+    return NO_JOB_ID;
+  }
+
+  /** Tags are prefixed, so other keys can be added to the preferences later on. */
+  private static String key(String tag) {
+    return "tag:" + tag;
+  }
+
+  /** Returns false if the provided Job's trigger can't be expressed on this platform version. */
+  private static boolean setTrigger(JobInfo.Builder builder, JobParameters job) {
+    JobTrigger trigger = job.getTrigger();
+    if (trigger instanceof ImmediateTrigger) {
+      return true;
+    } else if (trigger instanceof ExecutionWindowTrigger) {
+      ExecutionWindowTrigger window = (ExecutionWindowTrigger) trigger;
+      long startMillis = window.getWindowStart() * 1000L;
+      long endMillis = window.getWindowEnd() * 1000L;
+      if (!job.isRecurring()) {
+        builder.setMinimumLatency(startMillis).setOverrideDeadline(endMillis);
+      } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        // Same as the Play backend, the window end is the period and the window is the flex time
+        builder.setPeriodic(endMillis, endMillis - startMillis);
+      } else {
+        builder.setPeriodic(endMillis);
+      }
+      return true;
+    } else if (trigger instanceof ContentUriTrigger) {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+        return false;
+      }
+      // Recurring content URI jobs are scheduled again by the receiver once they've finished
+      List<ObservedUri> uris = ((ContentUriTrigger) trigger).getUris();
+      for (int i = 0; i < uris.size(); i++) {
+        ObservedUri uri = uris.get(i);
+        // ObservedUri.Flags mirror the JobInfo.TriggerContentUri flags
+        builder.addTriggerContentUri(new JobInfo.TriggerContentUri(uri.getUri(), uri.getFlags()));
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private static void setConstraints(
+      JobInfo.Builder builder, @Constraint.JobConstraint int constraints, JobTrigger trigger) {
+
+    if ((constraints & Constraint.ON_UNMETERED_NETWORK) != 0) {
+      builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED);
+    } else if ((constraints & Constraint.ON_ANY_NETWORK) != 0) {
+      builder.setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY);
+    }
+    builder.setRequiresCharging((constraints & Constraint.DEVICE_CHARGING) != 0);
+    builder.setRequiresDeviceIdle((constraints & Constraint.DEVICE_IDLE) != 0);
+
+    if (constraints == 0 && trigger instanceof ImmediateTrigger) {
+      // JobScheduler refuses jobs without any requirements, so ask for it to run straight away
+      builder.setOverrideDeadline(0);
+    }
+  }
+
+  private static void setRetryStrategy(JobInfo.Builder builder, RetryStrategy retryStrategy) {
+    int policy =
+        retryStrategy.getPolicy() == RetryStrategy.RETRY_POLICY_LINEAR
+            ? JobInfo.BACKOFF_POLICY_LINEAR
+            : JobInfo.BACKOFF_POLICY_EXPONENTIAL;
+    builder.setBackoffCriteria(retryStrategy.getInitialBackoff() * 1000L, policy);
+  }
+
+  /**
+   * Copies the provided Bundle into a PersistableBundle. Returns null if it contains a value of a
+   * type PersistableBundle doesn't support.
+   */
+  @Nullable
+  @VisibleForTesting
+  static PersistableBundle toPersistableBundle(@Nullable Bundle bundle) {
+    PersistableBundle persistable = new PersistableBundle();
+    if (bundle == null) {
+      return persistable;
+    }
+
+    for (String key : bundle.keySet()) {
+      Object value = bundle.get(key);
+      if (value == null) {
+        persistable.putString(key, null);
+      } else if (value instanceof String) {
+        persistable.putString(key, (String) value);
+      } else if (value instanceof Integer) {
+        persistable.putInt(key, (Integer) value);
+      } else if (value instanceof Long) {
+        persistable.putLong(key, (Long) value);
+      } else if (value instanceof Double) {
+        persistable.putDouble(key, (Double) value);
+      } else if (value instanceof String[]) {
+        persistable.putStringArray(key, (String[]) value);
+      } else if (value instanceof int[]) {
+        persistable.putIntArray(key, (int[]) value);
+      } else if (value instanceof long[]) {
+        persistable.putLongArray(key, (long[]) value);
+      } else if (value instanceof double[]) {
+        persistable.putDoubleArray(key, (double[]) value);
+      } else if (value instanceof Boolean
+          && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+        persistable.putBoolean(key, (Boolean) value);
+      } else if (value instanceof boolean[]
+          && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+        persistable.putBooleanArray(key, (boolean[]) value);
+      } else {
+        return null;
+      }
+    }
+    return persistable;
+  }
+}
@@ -0,0 +1,239 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+// import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.SimpleArrayMap;
+import android.util.Base64;
+import android.util.Log;
+import com.firebase.jobdispatcher.JobService.JobResult;
+import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import java.util.Arrays;
+
+/**
+ * Handles execution requests from the platform JobScheduler, for Jobs scheduled with the {@link
+ * JobSchedulerDriver}, and forwards them to your Service. Apps that use the JobSchedulerDriver have
+ * to declare this service in their manifest, see {@link JobSchedulerDriver}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class JobSchedulerReceiver extends android.app.job.JobService
+    implements ExecutionDelegator.JobFinishedCallback {
+
+  /** Logging tag. */
+  /* package */ static final String TAG = "FJD.JobSchedulerReceiver";
+
+  /** Tag -> RunningJob, for the Jobs that JobScheduler started and haven't finished yet. */
+  // @GuardedBy("runningJobs")
+  private final SimpleArrayMap<String, RunningJob> runningJobs = new SimpleArrayMap<>();
+
+  /** The ExecutionDelegator used to communicate with client JobServices. */
+  // @GuardedBy("this")
+  private ExecutionDelegator executionDelegator;
+
+  /** Driver for rescheduling jobs. */
+  // @GuardedBy("this")
+  private Driver driver;
+
+  // @GuardedBy("this")
+  private ValidationEnforcer validationEnforcer;
+
+  @Override
+  public boolean onStartJob(android.app.job.JobParameters params) {
+    JobInvocation invocation = decode(params);
+    if (invocation == null) {
+      Log.e(TAG, "unable to decode job " + params.getJobId());
+      return false;
+    }
+
+    synchronized (runningJobs) {
+      runningJobs.put(invocation.getTag(), new RunningJob(params, invocation));
+    }
+    getExecutionDelegator().executeJob(invocation);
+    return true;
+  }
+
+  @Override
+  public boolean onStopJob(android.app.job.JobParameters params) {
+    RunningJob running = removeRunningJob(params);
+    if (running == null) {
+      return false;
+    }
+
+    ExecutionDelegator.stopJob(running.invocation, false /* must not send the result */);
+    // Same as the Play backend, a stopped job is retried later
+    return true;
+  }
+
+  @Override
+  public void onJobFinished(@NonNull JobInvocation js, @JobResult int result) {
+    RunningJob running;
+    synchronized (runningJobs) {
+      running = runningJobs.get(js.getTag());
+      if (running == null || running.invocation != js) {
+        // Stopped, or the result of an earlier run. ExecutionDelegator hands back the invocation
+        // it was given, so that's enough to tell runs apart.
+        return;
+      }
+      runningJobs.remove(js.getTag());
+    }
+
+    if (needsToBeRescheduled(running.invocation, result)) {
+      jobFinished(running.params, false);
+      reschedule(running);
+    } else {
+      if (Log.isLoggable(TAG, Log.VERBOSE)) {
+        Log.v(TAG, "sending jobFinished for " + js.getTag() + " = " + result);
+      }
+      jobFinished(running.params, result == JobService.RESULT_FAIL_RETRY);
+    }
+  }
+
+  @Nullable
+  private RunningJob removeRunningJob(android.app.job.JobParameters params) {
+    synchronized (runningJobs) {
+      for (int i = 0; i < runningJobs.size(); i++) {
+        RunningJob running = runningJobs.valueAt(i);
+        if (running.params.getJobId() == params.getJobId()) {
+          return runningJobs.removeAt(i);
+        }
+      }
+    }
+    return null;
+  }
+
+  /* package */ synchronized ExecutionDelegator getExecutionDelegator() {
+    if (executionDelegator == null) {
+      executionDelegator =
+          new ExecutionDelegator(this, this, new ConstraintChecker(getApplicationContext()));
+    }
+    return executionDelegator;
+  }
+
+  @VisibleForTesting
+  synchronized void setExecutionDelegator(ExecutionDelegator executionDelegator) {
+    this.executionDelegator = executionDelegator;
+  }
+
+  /**
+   * Returns a driver that assigns ids from the range the job was scheduled with. Jobs scheduled
+   * before the range was recorded fall back to the default one.
+   */
+  @NonNull
+  private synchronized Driver getDriver(android.app.job.JobParameters params) {
+    PersistableBundle extras = params.getExtras();
+    int minJobId =
+        extras.getInt(JobSchedulerDriver.EXTRA_MIN_JOB_ID, JobSchedulerDriver.DEFAULT_MIN_JOB_ID);
+    int maxJobId =
+        extras.getInt(JobSchedulerDriver.EXTRA_MAX_JOB_ID, JobSchedulerDriver.DEFAULT_MAX_JOB_ID);
+    if (driver instanceof JobSchedulerDriver
+        && !((JobSchedulerDriver) driver).hasJobIdRange(minJobId, maxJobId)) {
+      driver = null;
+    }
+    if (driver == null) {
+      driver = new JobSchedulerDriver(getApplicationContext(), minJobId, maxJobId);
+    }
+    return driver;
+  }
+
+  @VisibleForTesting
+  synchronized void setDriver(Driver driver) {
+    this.driver = driver;
+  }
+
+  @NonNull
+  private synchronized ValidationEnforcer getValidationEnforcer(Driver driver) {
+    if (validationEnforcer == null) {
+      validationEnforcer = new ValidationEnforcer(driver.getValidator());
+    }
+    return validationEnforcer;
+  }
+
+  private void reschedule(RunningJob running) {
+    Driver driver = getDriver(running.params);
+    // Same as GooglePlayReceiver, the job was validated when it was first scheduled
+    Job job =
+        new Job.Builder(getValidationEnforcer(driver), running.invocation)
+            .setReplaceCurrent(true)
+            .buildWithoutValidation();
+
+    driver.schedule(job);
+  }
+
+  /**
+   * Recurring content URI triggered jobs need to be rescheduled when execution is finished, since
+   * JobScheduler only supports one-off content URI jobs.
+   */
+  private static boolean needsToBeRescheduled(JobParameters job, int result) {
+    return job.isRecurring()
+        && job.getTrigger() instanceof ContentUriTrigger
+        && result != JobService.RESULT_FAIL_RETRY;
+  }
+
+  /** Rebuilds the JobInvocation from the extras written by {@link JobSchedulerDriver}. */
+  @Nullable
+  @VisibleForTesting
+  static JobInvocation decode(android.app.job.JobParameters params) {
+    PersistableBundle extras = params.getExtras();
+    String spec = extras.getString(JobSchedulerDriver.EXTRA_SPEC);
+    if (spec == null) {
+      return null;
+    }
+
+    JobInvocation.Builder builder;
+    try {
+      builder = CompactJobCodec.decode(Base64.decode(spec, Base64.NO_WRAP));
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Invalid job spec", e);
+      return null;
+    }
+    if (builder == null) {
+      return null;
+    }
+
+    PersistableBundle userExtras =
+        extras.getPersistableBundle(JobSchedulerDriver.EXTRA_USER_EXTRAS);
+    if (userExtras != null) {
+      builder.addExtras(new Bundle(userExtras));
+    }
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+      Uri[] triggeredUris = params.getTriggeredContentUris();
+      if (triggeredUris != null) {
+        builder.setTriggerReason(new TriggerReason(Arrays.asList(triggeredUris)));
+      }
+    }
+    return builder.build();
+  }
+
+  /** A Job that's been started by JobScheduler and hasn't finished yet. */
+  private static final class RunningJob {
+    final android.app.job.JobParameters params;
+    final JobInvocation invocation;
+
+    RunningJob(android.app.job.JobParameters params, JobInvocation invocation) {
+      this.params = params;
+      this.invocation = invocation;
+    }
+  }
+}
@@ -139,13 +139,14 @@ public abstract class JobService extends Service {
         @Override
         @BinderThread
         public void stop(Bundle invocationData, boolean needToSendResult) {
-          JobInvocation.Builder invocation = getJobCoder().decode(invocationData);
+          // Stopping only needs the tag, so don't pay for decoding the rest
+          JobInvocation invocation = getJobCoder().decodeLazily(invocationData);
           if (invocation == null) {
             Log.wtf(TAG, "stop: unknown invocation provided");
             return;
           }
 
-          JobService.this.handleStopJobRequest(invocation.build(), needToSendResult);
+          JobService.this.handleStopJobRequest(invocation, needToSendResult);
         }
       };
 
@@ -26,15 +26,14 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 // import android.support.annotation.GuardedBy;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -43,26 +42,53 @@ import java.util.Set;
 @VisibleForTesting
 class JobServiceConnection implements ServiceConnection {
 
+  /** Notified once the bind kicked off for a connection has either connected or failed. */
+  interface BindCompletedCallback {
+    void onBindCompleted(@NonNull JobServiceConnection connection);
+  }
+
   /** A map of {@link JobInvocation job} to running state. */
   // @GuardedBy("this")
   private final Map<JobInvocation, Boolean> jobStatuses = new HashMap<>();
 
   private final IJobCallback callback;
   private final Context context;
+  @Nullable private final BindCompletedCallback bindCompletedCallback;
 
   // @GuardedBy("this")
   private boolean wasUnbound = false;
 
+  // @GuardedBy("this")
+  private boolean bindCompleted = false;
+
   // @GuardedBy("this")
   private IRemoteJobService binder;
 
+  /** Jobs dropped by {@link #unbindLocked()} that still have to be handed back for a retry. */
+  // @GuardedBy("this")
+  @Nullable private List<JobInvocation> jobsToRetry;
+
   JobServiceConnection(IJobCallback callback, Context context) {
+    this(callback, context, null);
+  }
+
+  JobServiceConnection(
+      IJobCallback callback,
+      Context context,
+      @Nullable BindCompletedCallback bindCompletedCallback) {
     this.callback = callback;
     this.context = context;
+    this.bindCompletedCallback = bindCompletedCallback;
   }
 
   @Override
-  public synchronized void onServiceConnected(ComponentName name, IBinder service) {
+  public void onServiceConnected(ComponentName name, IBinder service) {
+    startPendingJobs(service);
+    notifyBindCompleted();
+    dispatchUnbind();
+  }
+
+  private synchronized void startPendingJobs(IBinder service) {
     if (wasUnbound()) {
       Log.w(TAG, "Connection have been used already.");
       return;
@@ -77,7 +103,7 @@ class JobServiceConnection implements ServiceConnection {
           startedJobs.add(entry.getKey());
         } catch (RemoteException remoteException) {
           Log.e(TAG, "Failed to start job " + entry.getKey(), remoteException);
-          unbind();
+          unbindLocked();
           // TODO(user) notify a driver about the fail and release a wakelock.
           return;
         }
@@ -91,10 +117,41 @@ class JobServiceConnection implements ServiceConnection {
   }
 
   @Override
-  public synchronized void onServiceDisconnected(ComponentName name) {
+  public void onServiceDisconnected(ComponentName name) {
+    unbind();
+  }
+
+  /**
+   * Called on O+ when the service's process died before the connection could be reestablished.
+   * The binding won't recover by itself, so it's dropped like any other disconnect.
+   */
+  public void onBindingDied(ComponentName name) {
+    unbind();
+  }
+
+  /**
+   * Called on P+ when the service returned {@code null} from onBind. onServiceConnected will never
+   * be called, so the connection has to give up its bind slot here.
+   */
+  public void onNullBinding(ComponentName name) {
     unbind();
   }
 
+  /**
+   * Unbinds if the service hasn't connected yet, so a bind that hangs doesn't hold on to its bind
+   * slot forever. Returns {@code true} if the connection was unbound.
+   */
+  boolean unbindIfNotConnected() {
+    synchronized (this) {
+      if (wasUnbound || binder != null) {
+        return false;
+      }
+      unbindLocked();
+    }
+    dispatchUnbind();
+    return true;
+  }
+
   synchronized boolean wasUnbound() {
     return wasUnbound;
   }
@@ -109,19 +166,22 @@ class JobServiceConnection implements ServiceConnection {
    * <p>Unbinds the service if {@code needToSendResult} is {@code false} and no other jobs are
    * running.
    */
-  synchronized void onStop(JobInvocation jobInvocation, boolean needToSendResult) {
-    if (!wasUnbound()) {
-      boolean isRunning = Boolean.TRUE.equals(jobStatuses.remove(jobInvocation));
-      if (isRunning && isConnected()) {
-        stopJob(needToSendResult, jobInvocation);
-      }
-      // Need to keep the connection open to receive the result.
-      if (!needToSendResult && jobStatuses.isEmpty()) {
-        unbind();
+  void onStop(JobInvocation jobInvocation, boolean needToSendResult) {
+    synchronized (this) {
+      if (!wasUnbound) {
+        boolean isRunning = Boolean.TRUE.equals(jobStatuses.remove(jobInvocation));
+        if (isRunning && isConnected()) {
+          stopJob(needToSendResult, jobInvocation);
+        }
+        // Need to keep the connection open to receive the result.
+        if (!needToSendResult && jobStatuses.isEmpty()) {
+          unbindLocked();
+        }
+      } else {
+        Log.w(TAG, "Can't send stop request because service was unbound.");
       }
-    } else {
-      Log.w(TAG, "Can't send stop request because service was unbound.");
     }
+    dispatchUnbind();
   }
 
   private synchronized void stopJob(boolean needToSendResult, JobInvocation jobInvocation) {
@@ -129,49 +189,91 @@ class JobServiceConnection implements ServiceConnection {
       binder.stop(encodeJob(jobInvocation), needToSendResult);
     } catch (RemoteException remoteException) {
       Log.e(TAG, "Failed to stop a job", remoteException);
-      unbind();
+      unbindLocked();
     }
   }
 
-  synchronized void unbind() {
-    if (!wasUnbound()) {
-      binder = null;
-      wasUnbound = true;
+  void unbind() {
+    synchronized (this) {
+      unbindLocked();
+    }
+    dispatchUnbind();
+  }
 
-      try {
-        context.unbindService(this);
-      } catch (IllegalArgumentException e) {
-        Log.w(TAG, "Error unbinding service: " + e.getMessage());
-      }
+  /**
+   * Unbinds from the service and drops all jobs. Telling anyone about it is left to {@link
+   * #dispatchUnbind()}, which every caller has to invoke once it has released the lock.
+   */
+  // @GuardedBy("this")
+  private void unbindLocked() {
+    if (wasUnbound) {
+      return;
+    }
+    binder = null;
+    wasUnbound = true;
 
-      List<JobInvocation> jobsToFinish = new ArrayList<>(jobStatuses.size());
+    try {
+      context.unbindService(this);
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Error unbinding service: " + e.getMessage());
+    }
+
+    jobsToRetry = new ArrayList<>(jobStatuses.keySet());
+    jobStatuses.clear();
+  }
 
-      Iterator<JobInvocation> pendingJobsIterator = jobStatuses.keySet().iterator();
-      while (pendingJobsIterator.hasNext()) {
-        jobsToFinish.add(pendingJobsIterator.next());
-        pendingJobsIterator.remove();
+  /**
+   * Releases the bind slot and asks for the dropped jobs to be retried, if the connection has been
+   * unbound. Both call back into other connections, so this must not be called with the lock held.
+   */
+  private void dispatchUnbind() {
+    List<JobInvocation> jobs;
+    synchronized (this) {
+      if (!wasUnbound) {
+        return;
       }
+      jobs = jobsToRetry;
+      jobsToRetry = null;
+    }
+
+    // A connection that never connected still has to give up its place in the bind queue.
+    notifyBindCompleted();
 
-      for (JobInvocation job : jobsToFinish) {
+    if (jobs != null) {
+      for (JobInvocation job : jobs) {
         requestRetryForJob(job);
       }
     }
   }
 
   /** Removes provided {@link JobInvocation job} and unbinds itself if no other jobs are running. */
-  synchronized void onJobFinished(JobInvocation jobInvocation) {
-    jobStatuses.remove(jobInvocation);
-    if (jobStatuses.isEmpty()) {
-      unbind();
+  void onJobFinished(JobInvocation jobInvocation) {
+    synchronized (this) {
+      jobStatuses.remove(jobInvocation);
+      if (jobStatuses.isEmpty()) {
+        unbindLocked();
+      }
     }
+    dispatchUnbind();
   }
 
   /** Returns {@code true} if the job was started. */
-  synchronized boolean startJob(JobInvocation jobInvocation) {
-    if (wasUnbound()) {
+  boolean startJob(JobInvocation jobInvocation) {
+    boolean wasAlreadyUnbound;
+    boolean connected;
+    synchronized (this) {
+      wasAlreadyUnbound = wasUnbound;
+      connected = startJobLocked(jobInvocation);
+    }
+    if (wasAlreadyUnbound) {
       requestRetryForJob(jobInvocation);
     }
+    dispatchUnbind();
+    return connected;
+  }
 
+  // @GuardedBy("this")
+  private boolean startJobLocked(JobInvocation jobInvocation) {
     boolean connected = isConnected();
     if (connected) {
       // Need to stop running job
@@ -184,7 +286,7 @@ class JobServiceConnection implements ServiceConnection {
         binder.start(encodeJob(jobInvocation), callback);
       } catch (RemoteException e) {
         Log.e(TAG, "Failed to start the job " + jobInvocation, e);
-        unbind();
+        unbindLocked();
         return false;
       }
     }
@@ -192,8 +294,21 @@ class JobServiceConnection implements ServiceConnection {
     return connected;
   }
 
-  private static Bundle encodeJob(JobParameters job) {
-    return getJobCoder().encode(job, new Bundle());
+  /** Tells the {@link #bindCompletedCallback} (at most once) that the bind has settled. */
+  private void notifyBindCompleted() {
+    synchronized (this) {
+      if (bindCompleted || bindCompletedCallback == null) {
+        return;
+      }
+      bindCompleted = true;
+    }
+    bindCompletedCallback.onBindCompleted(this);
+  }
+
+  private static Bundle encodeJob(JobInvocation job) {
+    // Lazily decoded jobs (e.g. from a stop request) are passed on as they were received
+    Bundle encoded = job.getEncodedData(getJobCoder());
+    return encoded != null ? encoded : getJobCoder().encode(job, new Bundle());
   }
 
   @VisibleForTesting
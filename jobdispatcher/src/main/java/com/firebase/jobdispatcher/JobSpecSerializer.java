@@ -0,0 +1,131 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import com.firebase.jobdispatcher.JobTrigger.ExecutionWindowTrigger;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes a job's spec as a String that's equal for two jobs if and only if their specs are. Used
+ * to tell whether a job has changed since it was last seen, without holding on to the job.
+ */
+/* package */ final class JobSpecSerializer {
+
+  private JobSpecSerializer() {
+    throw new AssertionError("No instance for you!");
+  }
+
+  /**
+   * Returns the spec of the provided job, or null if it has a custom trigger or unsupported extras
+   * types, which can't be compared reliably.
+   *
+   * @param extrasValues whether the values of the extras are part of the spec. If not, only the
+   *     keys, value types and String lengths are.
+   */
+  @Nullable
+  static String serialize(@NonNull JobParameters job, boolean extrasValues) {
+    StringBuilder spec = new StringBuilder(128);
+    appendString(spec, job.getTag());
+    appendString(spec, job.getService());
+    spec.append(job.isRecurring()).append(';');
+    spec.append(job.getLifetime()).append(';');
+    spec.append(job.shouldReplaceCurrent()).append(';');
+    spec.append(Arrays.toString(job.getConstraints())).append(';');
+
+    JobTrigger trigger = job.getTrigger();
+    if (trigger == Trigger.NOW) {
+      spec.append("now;");
+    } else if (trigger instanceof ExecutionWindowTrigger) {
+      ExecutionWindowTrigger t = (ExecutionWindowTrigger) trigger;
+      spec.append("window;").append(t.getWindowStart()).append(';').append(t.getWindowEnd());
+      spec.append(';');
+    } else if (trigger instanceof ContentUriTrigger) {
+      List<ObservedUri> uris = ((ContentUriTrigger) trigger).getUris();
+      spec.append("uris;").append(uris.size()).append(';');
+      for (int i = 0; i < uris.size(); i++) {
+        spec.append(uris.get(i).getFlags()).append(';');
+        appendString(spec, uris.get(i).getUri().toString());
+      }
+    } else {
+      return null;
+    }
+
+    RetryStrategy retryStrategy = job.getRetryStrategy();
+    if (retryStrategy == null) {
+      spec.append("null;");
+    } else {
+      spec.append(retryStrategy.getPolicy()).append(';');
+      spec.append(retryStrategy.getInitialBackoff()).append(';');
+      spec.append(retryStrategy.getMaximumBackoff()).append(';');
+    }
+
+    return appendExtras(spec, job.getExtras(), extrasValues) ? spec.toString() : null;
+  }
+
+  /**
+   * Appends the extras in key order. Returns false if any of the values isn't a supported extras
+   * type.
+   */
+  private static boolean appendExtras(
+      StringBuilder spec, @Nullable Bundle extras, boolean extrasValues) {
+    if (extras == null) {
+      spec.append("null;");
+      return true;
+    }
+
+    String[] keys = extras.keySet().toArray(new String[extras.size()]);
+    Arrays.sort(keys);
+    spec.append(keys.length).append(';');
+    for (String key : keys) {
+      appendString(spec, key);
+      Object value = extras.get(key);
+      if (value == null) {
+        spec.append("null;");
+        continue;
+      }
+      if (!(value instanceof Integer
+          || value instanceof Long
+          || value instanceof Double
+          || value instanceof String
+          || value instanceof Boolean)) {
+        return false;
+      }
+
+      appendString(spec, value.getClass().getSimpleName());
+      if (extrasValues) {
+        appendString(spec, String.valueOf(value));
+      } else if (value instanceof String) {
+        spec.append(((String) value).length()).append(';');
+      }
+    }
+    return true;
+  }
+
+  /** Length-prefixes {@code value}, so no two different sequences produce the same output. */
+  private static void appendString(StringBuilder spec, @Nullable String value) {
+    if (value == null) {
+      spec.append("-1;");
+      return;
+    }
+    spec.append(value.length()).append(':').append(value).append(';');
+  }
+}
@@ -0,0 +1,382 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.SimpleArrayMap;
+import android.util.Log;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import com.firebase.jobdispatcher.JobService.JobResult;
+import com.firebase.jobdispatcher.JobTrigger.ExecutionWindowTrigger;
+import com.firebase.jobdispatcher.JobTrigger.ImmediateTrigger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * LocalDriver is a Driver that schedules and runs Jobs entirely inside the app's process, without
+ * talking to Google Play services. Jobs are kept in a queue ordered by the time they become ready
+ * and are run through the same machinery GooglePlayReceiver uses, so existing {@link JobService}
+ * subclasses don't need any changes.
+ *
+ * <p>{@link Trigger#NOW} Jobs run as soon as the main thread gets to them and {@link
+ * Trigger#executionWindow(int, int)} Jobs run at the start of their window. Recurring Jobs are
+ * queued again when they finish, to run once their window's end (i.e. their period) has passed,
+ * and Jobs that ask to be retried are backed off according to their {@link RetryStrategy}. Content
+ * URI triggers aren't supported.
+ *
+ * <p>Since nothing is persisted, scheduled Jobs only live as long as the process, regardless of
+ * their {@link Lifetime}. Apps are expected to schedule their Jobs again whenever the process
+ * starts.
+ */
+public final class LocalDriver implements BatchDriver {
+
+  private static final String TAG = "FJD.LocalDriver";
+
+  private final JobValidator validator;
+  private final Handler handler = new Handler(Looper.getMainLooper());
+
+  /** Tag -> Job, for every Job that's either waiting in {@link #queue} or running. */
+  // @GuardedBy("lock")
+  private final SimpleArrayMap<String, ScheduledJob> jobs = new SimpleArrayMap<>();
+
+  /** The Jobs that are waiting to run, ordered by the time they're due. */
+  // @GuardedBy("lock")
+  private final PriorityQueue<ScheduledJob> queue = new PriorityQueue<>();
+
+  private final Object lock = new Object();
+
+  // @GuardedBy("lock")
+  private ExecutionDelegator executionDelegator;
+
+  private final ExecutionDelegator.JobFinishedCallback jobFinishedCallback =
+      new ExecutionDelegator.JobFinishedCallback() {
+        @Override
+        public void onJobFinished(@NonNull JobInvocation jobInvocation, @JobResult int result) {
+          LocalDriver.this.onJobFinished(jobInvocation, result);
+        }
+      };
+
+  private final Runnable runDueJobs =
+      new Runnable() {
+        @Override
+        public void run() {
+          runDueJobs();
+        }
+      };
+
+  /** Instantiates a new LocalDriver. Jobs are started from the main thread. */
+  public LocalDriver(@NonNull Context context) {
+    validator = new DefaultJobValidator(context);
+    executionDelegator =
+        new ExecutionDelegator(context, jobFinishedCallback, new ConstraintChecker(context));
+  }
+
+  @VisibleForTesting
+  void setExecutionDelegator(ExecutionDelegator executionDelegator) {
+    synchronized (lock) {
+      this.executionDelegator = executionDelegator;
+    }
+  }
+
+  /** LocalDriver doesn't depend on anything outside the app, so it's always available. */
+  @Override
+  public boolean isAvailable() {
+    return true;
+  }
+
+  @Override
+  @ScheduleResult
+  public int schedule(@NonNull Job job) {
+    List<JobInvocation> staleInvocations = new ArrayList<>(1);
+    int result;
+    synchronized (lock) {
+      result = scheduleLocked(job, staleInvocations);
+      scheduleNextRunLocked();
+    }
+
+    stopAll(staleInvocations);
+    return result;
+  }
+
+  /** Same as {@link #schedule(Job)} for every Job, but only takes the lock once. */
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    List<JobInvocation> staleInvocations = new ArrayList<>();
+    int[] results = new int[jobs.size()];
+    synchronized (lock) {
+      for (int i = 0; i < results.length; i++) {
+        results[i] = scheduleLocked(jobs.get(i), staleInvocations);
+      }
+      scheduleNextRunLocked();
+    }
+
+    stopAll(staleInvocations);
+    return results;
+  }
+
+  /**
+   * Queues the provided Job. Invocations of a replaced Job that are still running are added to
+   * {@code staleInvocations}, and have to be stopped once the lock is released.
+   */
+  // @GuardedBy("lock")
+  @ScheduleResult
+  private int scheduleLocked(Job job, List<JobInvocation> staleInvocations) {
+    JobTrigger trigger = job.getTrigger();
+    if (!(trigger instanceof ImmediateTrigger) && !(trigger instanceof ExecutionWindowTrigger)) {
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER;
+    }
+
+    ScheduledJob stale = jobs.get(job.getTag());
+    if (stale != null && !job.shouldReplaceCurrent()) {
+      // Same as the Play backend, the existing Job wins
+      return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+    }
+
+    if (stale != null) {
+      queue.remove(stale);
+      if (stale.running) {
+        staleInvocations.add(stale.invocation);
+      }
+    }
+    ScheduledJob scheduled =
+        new ScheduledJob(job, SystemClock.elapsedRealtime() + getInitialDelayMillis(trigger));
+    jobs.put(job.getTag(), scheduled);
+    queue.add(scheduled);
+    return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+  }
+
+  @Override
+  @CancelResult
+  public int cancel(@NonNull String tag) {
+    return cancelAll(Collections.singletonList(tag));
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll(@NonNull List<String> tags) {
+    List<JobInvocation> running = new ArrayList<>();
+    synchronized (lock) {
+      for (int i = 0; i < tags.size(); i++) {
+        ScheduledJob cancelled = jobs.remove(tags.get(i));
+        if (cancelled != null) {
+          queue.remove(cancelled);
+          if (cancelled.running) {
+            running.add(cancelled.invocation);
+          }
+        }
+      }
+      scheduleNextRunLocked();
+    }
+
+    stopAll(running);
+    return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll() {
+    List<JobInvocation> running = new ArrayList<>();
+    synchronized (lock) {
+      for (int i = 0; i < jobs.size(); i++) {
+        ScheduledJob scheduled = jobs.valueAt(i);
+        if (scheduled.running) {
+          running.add(scheduled.invocation);
+        }
+      }
+      jobs.clear();
+      queue.clear();
+      handler.removeCallbacks(runDueJobs);
+    }
+
+    stopAll(running);
+    return FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS;
+  }
+
+  @NonNull
+  @Override
+  public JobValidator getValidator() {
+    return validator;
+  }
+
+  /** Stops the provided invocations, which have been cancelled or replaced. */
+  private static void stopAll(List<JobInvocation> invocations) {
+    for (int i = 0; i < invocations.size(); i++) {
+      ExecutionDelegator.stopJob(invocations.get(i), false /* must not send the result */);
+    }
+  }
+
+  /** Starts every Job that's due and arranges to be called again when the next one is. */
+  private void runDueJobs() {
+    List<JobInvocation> dueJobs = new ArrayList<>();
+    ExecutionDelegator delegator;
+    synchronized (lock) {
+      long now = SystemClock.elapsedRealtime();
+      while (!queue.isEmpty() && queue.peek().dueAtMillis <= now) {
+        ScheduledJob scheduled = queue.poll();
+        scheduled.running = true;
+        scheduled.invocation = toInvocation(scheduled.job);
+        dueJobs.add(scheduled.invocation);
+      }
+      scheduleNextRunLocked();
+      delegator = executionDelegator;
+    }
+
+    // Started outside the lock, because unmet constraints call straight back into onJobFinished
+    for (int i = 0; i < dueJobs.size(); i++) {
+      delegator.executeJob(dueJobs.get(i));
+    }
+  }
+
+  // @GuardedBy("lock")
+  private void scheduleNextRunLocked() {
+    handler.removeCallbacks(runDueJobs);
+    if (queue.isEmpty()) {
+      return;
+    }
+
+    long delay = queue.peek().dueAtMillis - SystemClock.elapsedRealtime();
+    handler.postDelayed(runDueJobs, Math.max(0, delay));
+  }
+
+  @VisibleForTesting
+  void onJobFinished(@NonNull JobInvocation jobInvocation, @JobResult int result) {
+    synchronized (lock) {
+      ScheduledJob scheduled = jobs.get(jobInvocation.getTag());
+      if (scheduled == null || scheduled.invocation != jobInvocation) {
+        // Cancelled, replaced or already restarted while it was running. ExecutionDelegator hands
+        // back the invocation it was given, so anything else is the result of an older run.
+        return;
+      }
+
+      scheduled.running = false;
+      scheduled.invocation = null;
+      long now = SystemClock.elapsedRealtime();
+      if (result == JobService.RESULT_FAIL_RETRY) {
+        scheduled.attempts++;
+        scheduled.dueAtMillis =
+            now + getBackoffMillis(scheduled.job.getRetryStrategy(), scheduled.attempts);
+      } else if (scheduled.job.isRecurring()) {
+        scheduled.attempts = 0;
+        scheduled.dueAtMillis = now + getPeriodMillis(scheduled.job.getTrigger());
+      } else {
+        jobs.remove(scheduled.job.getTag());
+        return;
+      }
+
+      if (Log.isLoggable(TAG, Log.VERBOSE)) {
+        Log.v(TAG, "requeueing " + jobInvocation.getTag() + " in " + (scheduled.dueAtMillis - now));
+      }
+      queue.add(scheduled);
+      scheduleNextRunLocked();
+    }
+  }
+
+  /** Returns how long after being scheduled the provided trigger becomes ready, in milliseconds. */
+  private static long getInitialDelayMillis(JobTrigger trigger) {
+    if (trigger instanceof ExecutionWindowTrigger) {
+      return ((ExecutionWindowTrigger) trigger).getWindowStart() * 1000L;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns how long after finishing the provided recurring trigger becomes ready again, in
+   * milliseconds. Like the other backends, a recurring window's end is its period, so a window
+   * that starts at 0 doesn't run the Job back to back.
+   */
+  private static long getPeriodMillis(JobTrigger trigger) {
+    if (trigger instanceof ExecutionWindowTrigger) {
+      return ((ExecutionWindowTrigger) trigger).getWindowEnd() * 1000L;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns the backoff before the provided (1-based) retry {@code attempt}, in milliseconds. The
+   * exponential policy doubles the initial backoff every attempt, the linear one adds it every
+   * attempt. Both are capped at the strategy's maximum backoff.
+   */
+  @VisibleForTesting
+  static long getBackoffMillis(RetryStrategy retryStrategy, int attempt) {
+    long initial = retryStrategy.getInitialBackoff();
+    long maximum = retryStrategy.getMaximumBackoff();
+    long backoff;
+    if (retryStrategy.getPolicy() == RetryStrategy.RETRY_POLICY_LINEAR) {
+      backoff = initial * attempt;
+    } else {
+      // Any shift this large is well past the maximum anyway, and can't overflow
+      backoff = initial << Math.min(attempt - 1, 30);
+    }
+    return Math.min(backoff, maximum) * 1000L;
+  }
+
+  private static JobInvocation toInvocation(Job job) {
+    return new JobInvocation.Builder()
+        .setTag(job.getTag())
+        .setService(job.getService())
+        .setTrigger(job.getTrigger())
+        .setRecurring(job.isRecurring())
+        .setLifetime(job.getLifetime())
+        .setConstraints(job.getConstraints())
+        .addExtras(job.getExtras())
+        .setRetryStrategy(job.getRetryStrategy())
+        .setReplaceCurrent(job.shouldReplaceCurrent())
+        .build();
+  }
+
+  /** A Job along with the time it's due and how often it asked to be retried in a row. */
+  private static final class ScheduledJob implements Comparable<ScheduledJob> {
+    final Job job;
+
+    // @GuardedBy("lock")
+    long dueAtMillis;
+
+    // @GuardedBy("lock")
+    int attempts;
+
+    /** Whether the Job has been handed to the ExecutionDelegator and hasn't finished yet. */
+    // @GuardedBy("lock")
+    boolean running;
+
+    /**
+     * The invocation that's running, used to stop it and to tell its result apart from those of
+     * earlier runs. Only set while {@link #running}.
+     */
+    // @GuardedBy("lock")
+    JobInvocation invocation;
+
+    ScheduledJob(Job job, long dueAtMillis) {
+      this.job = job;
+      this.dueAtMillis = dueAtMillis;
+    }
+
+    @Override
+    public int compareTo(@NonNull ScheduledJob other) {
+      return dueAtMillis < other.dueAtMillis ? -1 : (dueAtMillis == other.dueAtMillis ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,503 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.os.Bundle;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.SimpleArrayMap;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.CancelResult;
+import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleResult;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Driver that wraps another Driver and keeps count of what's asked of it, per tag and per
+ * service: schedule and cancel requests, failed schedule requests, the time spent in {@link
+ * #schedule(Job)} and the size of the scheduled extras (the variable part of every schedule
+ * request). Validation failures reported by the wrapped Driver's {@link JobValidator} are counted
+ * per service and per category, see {@link #VALIDATION_FAILURE_JOB}, {@link
+ * #VALIDATION_FAILURE_TRIGGER} and {@link #VALIDATION_FAILURE_RETRY_STRATEGY}. Error messages
+ * themselves aren't kept, since they embed values like sizes and names and would grow the counters
+ * without bound.
+ *
+ * <p>At most {@link #MAX_TAGS} tags are counted individually. Requests for further tags are counted
+ * under {@link #OTHER_TAGS}, so apps that put ids or timestamps into their tags don't grow the
+ * counters without bound.
+ *
+ * <p>Nothing is reported anywhere, call {@link #getSnapshot()} to read the counters. Counters are
+ * plain primitives, so updating them doesn't allocate once a request's tag and service have been
+ * seen.
+ *
+ * <p>If the wrapped Driver implements {@link BatchDriver}, batches are passed on in a single call.
+ * The time spent on a batch is split evenly between its Jobs.
+ */
+public final class MetricsDriver implements BatchDriver {
+
+  /** The category of validation failures about the Job itself, e.g. its service or extras. */
+  public static final String VALIDATION_FAILURE_JOB = "job";
+
+  /** The category of validation failures about a Job's trigger. */
+  public static final String VALIDATION_FAILURE_TRIGGER = "trigger";
+
+  /** The category of validation failures about a RetryStrategy. */
+  public static final String VALIDATION_FAILURE_RETRY_STRATEGY = "retry_strategy";
+
+  /** The most tags that are counted individually between resets. */
+  public static final int MAX_TAGS = 100;
+
+  /** The key in {@link Snapshot#getTagCounts()} for all tags beyond {@link #MAX_TAGS}. */
+  public static final String OTHER_TAGS = "<other>";
+
+  private final Driver driver;
+  private final JobValidator validator;
+
+  private final Object lock = new Object();
+
+  // @GuardedBy("lock")
+  private final Counts totals = new Counts();
+
+  // @GuardedBy("lock")
+  private final SimpleArrayMap<String, Counts> tagCounts = new SimpleArrayMap<>();
+
+  // @GuardedBy("lock")
+  private final SimpleArrayMap<String, Counts> serviceCounts = new SimpleArrayMap<>();
+
+  /**
+   * Tag -> the service it was last scheduled for, so cancel requests can be counted for both. Only
+   * kept for the tags counted individually.
+   */
+  // @GuardedBy("lock")
+  private final SimpleArrayMap<String, String> tagServices = new SimpleArrayMap<>();
+
+  /**
+   * Category -> the number of validations that failed for it. Values are single-element arrays.
+   */
+  // @GuardedBy("lock")
+  private final SimpleArrayMap<String, int[]> validationFailures = new SimpleArrayMap<>();
+
+  // @GuardedBy("lock")
+  private int cancelAllCount;
+
+  /** Instantiates a new MetricsDriver that records the requests sent to {@code driver}. */
+  public MetricsDriver(@NonNull Driver driver) {
+    this.driver = driver;
+    validator = new CountingValidator(driver.getValidator());
+  }
+
+  @Override
+  public boolean isAvailable() {
+    return driver.isAvailable();
+  }
+
+  @Override
+  @ScheduleResult
+  public int schedule(@NonNull Job job) {
+    // Measured up front, since Drivers may add their own keys to the extras while scheduling
+    int payloadBytes = measurePayload(job.getExtras());
+    long startNanos = System.nanoTime();
+    int result = driver.schedule(job);
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    synchronized (lock) {
+      recordScheduleLocked(job, result, elapsedNanos, payloadBytes);
+    }
+    return result;
+  }
+
+  @NonNull
+  @Override
+  @ScheduleResult
+  public int[] scheduleAll(@NonNull List<Job> jobs) {
+    int[] payloadBytes = new int[jobs.size()];
+    for (int i = 0; i < payloadBytes.length; i++) {
+      payloadBytes[i] = measurePayload(jobs.get(i).getExtras());
+    }
+    long startNanos = System.nanoTime();
+    int[] results = Drivers.scheduleAll(driver, jobs);
+    long elapsedNanos = jobs.isEmpty() ? 0 : (System.nanoTime() - startNanos) / jobs.size();
+
+    synchronized (lock) {
+      for (int i = 0; i < results.length; i++) {
+        recordScheduleLocked(jobs.get(i), results[i], elapsedNanos, payloadBytes[i]);
+      }
+    }
+    return results;
+  }
+
+  @Override
+  @CancelResult
+  public int cancel(@NonNull String tag) {
+    int result = driver.cancel(tag);
+
+    synchronized (lock) {
+      recordCancelLocked(tag);
+    }
+    return result;
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll(@NonNull List<String> tags) {
+    int result = Drivers.cancelAll(driver, tags);
+
+    synchronized (lock) {
+      for (int i = 0; i < tags.size(); i++) {
+        recordCancelLocked(tags.get(i));
+      }
+    }
+    return result;
+  }
+
+  @Override
+  @CancelResult
+  public int cancelAll() {
+    int result = driver.cancelAll();
+
+    synchronized (lock) {
+      cancelAllCount++;
+    }
+    return result;
+  }
+
+  /** Returns a validator that counts the failures reported by the wrapped Driver's validator. */
+  @NonNull
+  @Override
+  public JobValidator getValidator() {
+    return validator;
+  }
+
+  /** Returns a copy of all counters. Later requests don't affect the returned Snapshot. */
+  @NonNull
+  public Snapshot getSnapshot() {
+    synchronized (lock) {
+      Map<String, Integer> failures = new HashMap<>(validationFailures.size());
+      for (int i = 0; i < validationFailures.size(); i++) {
+        failures.put(validationFailures.keyAt(i), validationFailures.valueAt(i)[0]);
+      }
+
+      return new Snapshot(
+          new Counts(totals),
+          copy(tagCounts),
+          copy(serviceCounts),
+          Collections.unmodifiableMap(failures),
+          cancelAllCount);
+    }
+  }
+
+  /** Resets all counters to zero. */
+  public void reset() {
+    synchronized (lock) {
+      totals.clear();
+      tagCounts.clear();
+      serviceCounts.clear();
+      tagServices.clear();
+      validationFailures.clear();
+      cancelAllCount = 0;
+    }
+  }
+
+  // @GuardedBy("lock")
+  private void recordScheduleLocked(
+      Job job, @ScheduleResult int result, long elapsedNanos, int payloadBytes) {
+    Counts tag = getTagCountsLocked(job.getTag());
+    Counts service = getOrCreate(serviceCounts, job.getService());
+    if (tagCounts.containsKey(job.getTag())) {
+      tagServices.put(job.getTag(), job.getService());
+    }
+
+    totals.recordSchedule(result, elapsedNanos, payloadBytes);
+    tag.recordSchedule(result, elapsedNanos, payloadBytes);
+    service.recordSchedule(result, elapsedNanos, payloadBytes);
+  }
+
+  // @GuardedBy("lock")
+  private void recordCancelLocked(String tag) {
+    totals.cancelCount++;
+    getTagCountsLocked(tag).cancelCount++;
+    String service = tagServices.get(tag);
+    if (service != null) {
+      getOrCreate(serviceCounts, service).cancelCount++;
+    }
+  }
+
+  /** Returns the counters for the provided tag, or for {@link #OTHER_TAGS} once the cap is hit. */
+  // @GuardedBy("lock")
+  private Counts getTagCountsLocked(String tag) {
+    Counts counts = tagCounts.get(tag);
+    if (counts != null) {
+      return counts;
+    }
+    // The OTHER_TAGS entry doesn't count towards the cap
+    int individualTags = tagCounts.size() - (tagCounts.containsKey(OTHER_TAGS) ? 1 : 0);
+    return getOrCreate(tagCounts, individualTags < MAX_TAGS ? tag : OTHER_TAGS);
+  }
+
+  /**
+   * Records a failed validation in each of the provided categories, and for {@code service} if
+   * it's known.
+   */
+  private void recordValidationFailure(@Nullable String service, String... categories) {
+    synchronized (lock) {
+      totals.validationFailureCount++;
+      if (service != null) {
+        getOrCreate(serviceCounts, service).validationFailureCount++;
+      }
+      for (String category : categories) {
+        if (category == null) {
+          continue;
+        }
+        int[] count = validationFailures.get(category);
+        if (count == null) {
+          count = new int[1];
+          validationFailures.put(category, count);
+        }
+        count[0]++;
+      }
+    }
+  }
+
+  private static int measurePayload(@Nullable Bundle extras) {
+    return extras == null ? 0 : DefaultJobValidator.estimateBundleSize(extras, Integer.MAX_VALUE);
+  }
+
+  private static boolean isEmpty(@Nullable List<String> errors) {
+    return errors == null || errors.isEmpty();
+  }
+
+  private static Counts getOrCreate(SimpleArrayMap<String, Counts> map, String key) {
+    Counts counts = map.get(key);
+    if (counts == null) {
+      counts = new Counts();
+      map.put(key, counts);
+    }
+    return counts;
+  }
+
+  private static Map<String, Counts> copy(SimpleArrayMap<String, Counts> map) {
+    Map<String, Counts> copy = new HashMap<>(map.size());
+    for (int i = 0; i < map.size(); i++) {
+      copy.put(map.keyAt(i), new Counts(map.valueAt(i)));
+    }
+    return Collections.unmodifiableMap(copy);
+  }
+
+  /** Counts the failures reported by another validator before passing them on. */
+  private final class CountingValidator implements JobValidator {
+    private final JobValidator validator;
+
+    CountingValidator(JobValidator validator) {
+      this.validator = validator;
+    }
+
+    @Nullable
+    @Override
+    public List<String> validate(@NonNull JobParameters job) {
+      List<String> errors = validator.validate(job);
+      if (isEmpty(errors)) {
+        return errors;
+      }
+
+      // Only failures take the extra passes that work out which parts of the Job were rejected
+      List<String> triggerErrors = validator.validate(job.getTrigger());
+      List<String> retryStrategyErrors = validator.validate(job.getRetryStrategy());
+      boolean otherErrors = false;
+      for (int i = 0; i < errors.size() && !otherErrors; i++) {
+        String error = errors.get(i);
+        otherErrors =
+            (triggerErrors == null || !triggerErrors.contains(error))
+                && (retryStrategyErrors == null || !retryStrategyErrors.contains(error));
+      }
+      recordValidationFailure(
+          job.getService(),
+          otherErrors ? VALIDATION_FAILURE_JOB : null,
+          isEmpty(triggerErrors) ? null : VALIDATION_FAILURE_TRIGGER,
+          isEmpty(retryStrategyErrors) ? null : VALIDATION_FAILURE_RETRY_STRATEGY);
+      return errors;
+    }
+
+    @Nullable
+    @Override
+    public List<String> validate(@NonNull JobTrigger trigger) {
+      List<String> errors = validator.validate(trigger);
+      if (!isEmpty(errors)) {
+        recordValidationFailure(null, VALIDATION_FAILURE_TRIGGER);
+      }
+      return errors;
+    }
+
+    @Nullable
+    @Override
+    public List<String> validate(@NonNull RetryStrategy retryStrategy) {
+      List<String> errors = validator.validate(retryStrategy);
+      if (!isEmpty(errors)) {
+        recordValidationFailure(null, VALIDATION_FAILURE_RETRY_STRATEGY);
+      }
+      return errors;
+    }
+  }
+
+  /** The counters for a single tag or service, or for all requests. */
+  public static final class Counts {
+    private int scheduleCount;
+    private int scheduleFailureCount;
+    private int cancelCount;
+    private int validationFailureCount;
+    private long scheduleNanos;
+    private long maxScheduleNanos;
+    private long payloadBytes;
+    private int maxPayloadBytes;
+
+    Counts() {}
+
+    Counts(Counts other) {
+      scheduleCount = other.scheduleCount;
+      scheduleFailureCount = other.scheduleFailureCount;
+      cancelCount = other.cancelCount;
+      validationFailureCount = other.validationFailureCount;
+      scheduleNanos = other.scheduleNanos;
+      maxScheduleNanos = other.maxScheduleNanos;
+      payloadBytes = other.payloadBytes;
+      maxPayloadBytes = other.maxPayloadBytes;
+    }
+
+    void recordSchedule(@ScheduleResult int result, long elapsedNanos, int payloadSize) {
+      scheduleCount++;
+      if (result != FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS) {
+        scheduleFailureCount++;
+      }
+      scheduleNanos += elapsedNanos;
+      maxScheduleNanos = Math.max(maxScheduleNanos, elapsedNanos);
+      payloadBytes += payloadSize;
+      maxPayloadBytes = Math.max(maxPayloadBytes, payloadSize);
+    }
+
+    void clear() {
+      scheduleCount = 0;
+      scheduleFailureCount = 0;
+      cancelCount = 0;
+      validationFailureCount = 0;
+      scheduleNanos = 0;
+      maxScheduleNanos = 0;
+      payloadBytes = 0;
+      maxPayloadBytes = 0;
+    }
+
+    /** Returns the number of schedule requests. */
+    public int getScheduleCount() {
+      return scheduleCount;
+    }
+
+    /** Returns the number of schedule requests that didn't return SCHEDULE_RESULT_SUCCESS. */
+    public int getScheduleFailureCount() {
+      return scheduleFailureCount;
+    }
+
+    /**
+     * Returns the number of cancel requests, counting every tag of a batch. Doesn't include {@link
+     * Driver#cancelAll()}.
+     */
+    public int getCancelCount() {
+      return cancelCount;
+    }
+
+    /**
+     * Returns the number of failed validations. Failures of a trigger or RetryStrategy on its own
+     * aren't attributed to a service, and only show up in the totals.
+     */
+    public int getValidationFailureCount() {
+      return validationFailureCount;
+    }
+
+    /** Returns the total time spent in schedule requests, in nanoseconds. */
+    public long getTotalScheduleNanos() {
+      return scheduleNanos;
+    }
+
+    /** Returns the time spent in the slowest schedule request, in nanoseconds. */
+    public long getMaxScheduleNanos() {
+      return maxScheduleNanos;
+    }
+
+    /** Returns the total size of the scheduled extras, in bytes. */
+    public long getTotalPayloadBytes() {
+      return payloadBytes;
+    }
+
+    /** Returns the size of the largest scheduled extras, in bytes. */
+    public int getMaxPayloadBytes() {
+      return maxPayloadBytes;
+    }
+  }
+
+  /** A point-in-time copy of the counters kept by a MetricsDriver. */
+  public static final class Snapshot {
+    private final Counts totals;
+    private final Map<String, Counts> tagCounts;
+    private final Map<String, Counts> serviceCounts;
+    private final Map<String, Integer> validationFailures;
+    private final int cancelAllCount;
+
+    Snapshot(
+        Counts totals,
+        Map<String, Counts> tagCounts,
+        Map<String, Counts> serviceCounts,
+        Map<String, Integer> validationFailures,
+        int cancelAllCount) {
+      this.totals = totals;
+      this.tagCounts = tagCounts;
+      this.serviceCounts = serviceCounts;
+      this.validationFailures = validationFailures;
+      this.cancelAllCount = cancelAllCount;
+    }
+
+    /** Returns the counters for all requests. */
+    @NonNull
+    public Counts getTotals() {
+      return totals;
+    }
+
+    /** Returns the counters per tag. */
+    @NonNull
+    public Map<String, Counts> getTagCounts() {
+      return tagCounts;
+    }
+
+    /** Returns the counters per service class name. */
+    @NonNull
+    public Map<String, Counts> getServiceCounts() {
+      return serviceCounts;
+    }
+
+    /**
+     * Returns the number of failed validations per category, keyed by one of the
+     * VALIDATION_FAILURE_ constants. A validation that failed for several reasons is counted in
+     * each of their categories.
+     */
+    @NonNull
+    public Map<String, Integer> getValidationFailures() {
+      return validationFailures;
+    }
+
+    /** Returns the number of cancelAll requests. */
+    public int getCancelAllCount() {
+      return cancelAllCount;
+    }
+  }
+}
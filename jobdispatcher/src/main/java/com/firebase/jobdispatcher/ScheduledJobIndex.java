@@ -0,0 +1,148 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.SimpleArrayMap;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A process-wide index of the Jobs that are known to be scheduled, used to find the tags to cancel
+ * for {@link FirebaseJobDispatcher#cancelByPrefix(String)} and {@link
+ * FirebaseJobDispatcher#cancelByService(Class)}.
+ *
+ * <p>Jobs are added when they're scheduled through a FirebaseJobDispatcher or when they're started
+ * by an ExecutionDelegator, and removed when they're cancelled or finished for good. The index is
+ * only kept in memory, so Jobs scheduled by an earlier process are only known once they run.
+ *
+ * <p>Each Job scheduled through a FirebaseJobDispatcher records the class of the Driver that
+ * accepted it, and lookups only return the Jobs of the asking dispatcher's Driver class. Drivers of
+ * the same class are assumed to share a backend, so dispatchers that each create their own
+ * GooglePlayDriver still find each other's Jobs. Jobs that are only known because they were
+ * started have no owner and are returned to every dispatcher.
+ */
+/* package */ final class ScheduledJobIndex {
+
+  /** Tag -> the Job's service and owner. */
+  // @GuardedBy("jobs")
+  private static final SimpleArrayMap<String, Entry> jobs = new SimpleArrayMap<>();
+
+  private ScheduledJobIndex() {
+    throw new AssertionError("No instance for you!");
+  }
+
+  /** Adds a Job that was scheduled through {@code owner}. */
+  static void add(@NonNull String tag, @NonNull String service, @NonNull Driver owner) {
+    synchronized (jobs) {
+      jobs.put(tag, new Entry(service, owner.getClass()));
+    }
+  }
+
+  /** Adds a Job that was started, keeping its owner if it's already known. */
+  static void add(@NonNull String tag, @NonNull String service) {
+    synchronized (jobs) {
+      Entry entry = jobs.get(tag);
+      jobs.put(tag, new Entry(service, entry == null ? null : entry.owner));
+    }
+  }
+
+  static void remove(@NonNull String tag) {
+    synchronized (jobs) {
+      jobs.remove(tag);
+    }
+  }
+
+  static void removeAll(@NonNull List<String> tags) {
+    synchronized (jobs) {
+      for (int i = 0; i < tags.size(); i++) {
+        jobs.remove(tags.get(i));
+      }
+    }
+  }
+
+  /** Removes the Jobs that {@link #findByPrefix} would return for the provided Driver. */
+  static void removeAll(@NonNull Driver driver) {
+    synchronized (jobs) {
+      for (int i = jobs.size() - 1; i >= 0; i--) {
+        if (jobs.valueAt(i).isVisibleTo(driver)) {
+          jobs.removeAt(i);
+        }
+      }
+    }
+  }
+
+  @VisibleForTesting
+  static void clear() {
+    synchronized (jobs) {
+      jobs.clear();
+    }
+  }
+
+  /** Returns the tags of the Jobs visible to the provided Driver that start with the prefix. */
+  @NonNull
+  static List<String> findByPrefix(@NonNull Driver driver, @NonNull String prefix) {
+    return find(driver, prefix, null);
+  }
+
+  /** Returns the tags of the Jobs visible to the provided Driver handled by the service. */
+  @NonNull
+  static List<String> findByService(@NonNull Driver driver, @NonNull String service) {
+    return find(driver, "", service);
+  }
+
+  private static List<String> find(Driver driver, String prefix, @Nullable String service) {
+    List<String> tags = new ArrayList<>();
+    synchronized (jobs) {
+      for (int i = 0; i < jobs.size(); i++) {
+        String tag = jobs.keyAt(i);
+        Entry entry = jobs.valueAt(i);
+        if (tag.startsWith(prefix)
+            && (service == null || service.equals(entry.service))
+            && entry.isVisibleTo(driver)) {
+          tags.add(tag);
+        }
+      }
+    }
+    return tags;
+  }
+
+  @VisibleForTesting
+  static int size() {
+    synchronized (jobs) {
+      return jobs.size();
+    }
+  }
+
+  private static final class Entry {
+    final String service;
+
+    /** The class of the Driver the Job was scheduled through, or null if it's not known. */
+    @Nullable final Class<?> owner;
+
+    Entry(String service, @Nullable Class<?> owner) {
+      this.service = service;
+      this.owner = owner;
+    }
+
+    boolean isVisibleTo(Driver driver) {
+      return owner == null || owner == driver.getClass();
+    }
+  }
+}
@@ -18,21 +18,107 @@ package com.firebase.jobdispatcher;
 
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.LruCache;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /** Wraps a JobValidator and provides helpful validation utilities. */
 public class ValidationEnforcer implements JobValidator {
   private final JobValidator validator;
 
+  /**
+   * The errors found for recently validated job specs, by {@link #fingerprint}. Valid specs map to
+   * an empty list. Null while the cache is disabled.
+   */
+  @Nullable private volatile LruCache<String, List<String>> cache;
+
+  /**
+   * The {@link DefaultJobValidator#getServiceCacheGeneration() generation} of the service checks
+   * the cached results are based on.
+   */
+  private volatile int cacheGeneration;
+
   public ValidationEnforcer(@NonNull JobValidator validator) {
     this.validator = validator;
   }
 
+  /**
+   * Enables caching the results of {@link #validate(JobParameters)}, so building a Job with the
+   * same spec as one that was validated recently doesn't run the validator again. This replaces
+   * any previously cached results.
+   *
+   * <p>A spec is everything in {@link JobParameters}, except that only the keys, value types and
+   * String lengths of the extras are taken into account. That's all the {@link
+   * DefaultJobValidator} looks at, but the cache should stay disabled if a custom validator
+   * depends on anything else. Jobs with unsupported extras types or a custom trigger are never
+   * cached.
+   *
+   * <p>Results also depend on whether the job's service is enabled, so they're dropped whenever
+   * the app's package changes, same as the {@link DefaultJobValidator}'s own service checks.
+   *
+   * @param maxSize the number of specs to remember, the least recently used ones are evicted first
+   */
+  public void enableCache(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be positive");
+    }
+    cacheGeneration = DefaultJobValidator.getServiceCacheGeneration();
+    cache = new LruCache<>(maxSize);
+  }
+
+  /** Disables and clears the cache enabled by {@link #enableCache}. */
+  public void disableCache() {
+    cache = null;
+  }
+
+  /** Returns how many validations were answered from the cache since it was enabled. */
+  public int getCacheHitCount() {
+    LruCache<String, List<String>> cache = this.cache;
+    return cache == null ? 0 : cache.hitCount();
+  }
+
+  /** Returns how many cacheable validations had to run the validator since it was enabled. */
+  public int getCacheMissCount() {
+    LruCache<String, List<String>> cache = this.cache;
+    return cache == null ? 0 : cache.missCount();
+  }
+
   @Nullable
   @Override
   public List<String> validate(@NonNull JobParameters job) {
-    return validator.validate(job);
+    LruCache<String, List<String>> cache = this.cache;
+    String fingerprint = cache == null ? null : fingerprint(job);
+    if (fingerprint == null) {
+      return validator.validate(job);
+    }
+
+    int generation = DefaultJobValidator.getServiceCacheGeneration();
+    if (generation != cacheGeneration) {
+      // The package changed, services may have been enabled or disabled since
+      cache.evictAll();
+      cacheGeneration = generation;
+    }
+
+    List<String> cached = cache.get(fingerprint);
+    if (cached != null) {
+      // Callers are free to modify the returned list
+      return cached.isEmpty() ? null : new ArrayList<>(cached);
+    }
+
+    List<String> errors = validator.validate(job);
+    if (generation != DefaultJobValidator.getServiceCacheGeneration()) {
+      // Don't cache a result that may predate a package change
+      return errors;
+    }
+    if (errors == null) {
+      cache.put(fingerprint, Collections.<String>emptyList());
+    } else if (!errors.isEmpty()) {
+      cache.put(fingerprint, Collections.unmodifiableList(new ArrayList<>(errors)));
+    }
+    return errors;
   }
 
   @Nullable
@@ -89,6 +175,16 @@ public class ValidationEnforcer implements JobValidator {
     ensureNoErrors(validate(retryStrategy));
   }
 
+  /**
+   * Returns a String that's equal for two jobs if and only if they're identical in everything the
+   * cache takes into account (see {@link #enableCache}), or null if the job can't be cached.
+   */
+  @VisibleForTesting
+  @Nullable
+  static String fingerprint(@NonNull JobParameters job) {
+    return JobSpecSerializer.serialize(job, false /* extrasValues */);
+  }
+
   private static void ensureNoErrors(List<String> errors) {
     if (errors != null) {
       throw new ValidationException("JobParameters is invalid", errors);
@@ -0,0 +1,226 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/** Tests for the {@link CoalescingDriver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class CoalescingDriverTest {
+
+  private static final long DEBOUNCE_MILLIS = 1000;
+
+  @Mock private Driver driverMock;
+
+  private CoalescingDriver driver;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    ShadowLooper.pauseMainLooper();
+
+    when(driverMock.isAvailable()).thenReturn(true);
+    when(driverMock.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    driver = new CoalescingDriver(driverMock, DEBOUNCE_MILLIS);
+  }
+
+  @Test
+  public void schedule_isDeferredUntilWindowCloses() {
+    Job job = newJob("tag", 60);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(job));
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS - 1, MILLISECONDS);
+    verify(driverMock, never()).schedule(any(Job.class));
+
+    ShadowLooper.idleMainLooper(1, MILLISECONDS);
+    verify(driverMock).schedule(job);
+  }
+
+  @Test
+  public void schedule_sameTag_onlyLatestIsForwarded() {
+    driver.schedule(newJob("tag", 60));
+    driver.schedule(newJob("tag", 120));
+    Job latest = newJob("tag", 180);
+    driver.schedule(latest);
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    verify(driverMock).schedule(latest);
+    verify(driverMock, times(1)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_differentTags_areForwardedSeparately() {
+    Job first = newJob("first", 60);
+    Job second = newJob("second", 60);
+    driver.schedule(first);
+    driver.schedule(second);
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    verify(driverMock).schedule(first);
+    verify(driverMock).schedule(second);
+  }
+
+  @Test
+  public void schedule_afterWindowCloses_opensNewWindow() {
+    driver.schedule(newJob("tag", 60));
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    Job next = newJob("tag", 120);
+    driver.schedule(next);
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    verify(driverMock).schedule(next);
+    verify(driverMock, times(2)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_unavailable() {
+    when(driverMock.isAvailable()).thenReturn(false);
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE,
+        driver.schedule(newJob("tag", 60)));
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+    verify(driverMock, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void cancel_dropsPendingJob() {
+    driver.schedule(newJob("tag", 60));
+    driver.cancel("tag");
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    verify(driverMock).cancel("tag");
+    verify(driverMock, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void cancelAll_dropsAllPendingJobs() {
+    driver.schedule(newJob("first", 60));
+    driver.schedule(newJob("second", 60));
+    driver.cancelAll();
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    verify(driverMock).cancelAll();
+    verify(driverMock, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void flush_forwardsImmediately_andDoesNotShortenLaterWindows() {
+    Job first = newJob("tag", 60);
+    driver.schedule(first);
+    driver.flush();
+    verify(driverMock).schedule(first);
+
+    // The first window's callback is still queued, it must not close the second window early
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS / 2, MILLISECONDS);
+    Job second = newJob("tag", 120);
+    driver.schedule(second);
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS / 2, MILLISECONDS);
+    verify(driverMock, never()).schedule(second);
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS / 2, MILLISECONDS);
+    verify(driverMock).schedule(second);
+  }
+
+  @Test
+  public void cancelAllTags_dropsPendingJobs_andForwards() {
+    driver.schedule(newJob("tag", 60));
+    driver.schedule(newJob("kept", 60));
+    driver.cancelAll(Arrays.asList("tag", "other"));
+
+    ShadowLooper.idleMainLooper(DEBOUNCE_MILLIS, MILLISECONDS);
+
+    verify(driverMock).cancel("tag");
+    verify(driverMock).cancel("other");
+    ArgumentCaptor<Job> captor = ArgumentCaptor.forClass(Job.class);
+    verify(driverMock).schedule(captor.capture());
+    assertEquals("kept", captor.getValue().getTag());
+  }
+
+  @Test
+  public void flush_batchDelegate_forwardsInOneCall() {
+    BatchDriver batchDriverMock = mock(BatchDriver.class);
+    when(batchDriverMock.isAvailable()).thenReturn(true);
+    when(batchDriverMock.scheduleAll(anyListOf(Job.class)))
+        .thenReturn(
+            new int[] {
+              FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+              FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS
+            });
+    driver = new CoalescingDriver(batchDriverMock, DEBOUNCE_MILLIS);
+    Job first = newJob("first", 60);
+    Job second = newJob("second", 60);
+    driver.schedule(first);
+    driver.schedule(second);
+
+    driver.flush();
+
+    verify(batchDriverMock).scheduleAll(Arrays.asList(first, second));
+    verify(batchDriverMock, never()).schedule(any(Job.class));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeDebounce_throws() {
+    new CoalescingDriver(driverMock, -1);
+  }
+
+  @Test
+  public void passesThroughValidatorAndAvailability() {
+    driver.getValidator();
+    driver.isAvailable();
+
+    verify(driverMock).getValidator();
+    verify(driverMock).isAvailable();
+    verifyNoMoreInteractions(driverMock);
+  }
+
+  private static Job newJob(String tag, int windowEnd) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.executionWindow(0, windowEnd))
+        .build();
+  }
+}
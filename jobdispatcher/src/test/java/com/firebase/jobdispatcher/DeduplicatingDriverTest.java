@@ -0,0 +1,293 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.os.Bundle;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests for the {@link DeduplicatingDriver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class DeduplicatingDriverTest {
+
+  @Mock private Driver driverMock;
+
+  private Context context;
+  private DeduplicatingDriver driver;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    context = RuntimeEnvironment.application;
+    context
+        .getSharedPreferences(DeduplicatingDriver.PREFERENCES_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .clear()
+        .commit();
+
+    when(driverMock.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    driver = new DeduplicatingDriver(context, driverMock);
+  }
+
+  @Test
+  public void schedule_identicalRecurringJob_onlyForwardedOnce() {
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(newJob("tag")));
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(newJob("tag")));
+
+    verify(driverMock, times(1)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_changedJob_isForwarded() {
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJobBuilder("tag").setTrigger(Trigger.executionWindow(0, 120)).build());
+
+    verify(driverMock, times(2)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_nonRecurringJob_isAlwaysForwarded() {
+    Job job = newJobBuilder("tag").setRecurring(false).build();
+    driver.schedule(job);
+    driver.schedule(job);
+
+    verify(driverMock, times(2)).schedule(job);
+  }
+
+  @Test
+  public void schedule_failedSchedule_isNotCached() {
+    when(driverMock.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR)
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR, driver.schedule(newJob("tag")));
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(newJob("tag")));
+
+    verify(driverMock, times(2)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_cacheIsPersisted() {
+    driver.schedule(newJob("tag"));
+    new DeduplicatingDriver(context, driverMock).schedule(newJob("tag"));
+
+    verify(driverMock, times(1)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_afterAppUpdate_isForwarded() {
+    driver.schedule(newJob("tag"));
+
+    // Pretend the app was updated since the cache was written
+    context
+        .getSharedPreferences(DeduplicatingDriver.PREFERENCES_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putLong("app_update_time", 42L)
+        .commit();
+    new DeduplicatingDriver(context, driverMock).schedule(newJob("tag"));
+
+    verify(driverMock, times(2)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_afterReboot_isForwarded() {
+    driver.schedule(newJobBuilder("tag").setLifetime(Lifetime.UNTIL_NEXT_BOOT).build());
+
+    // Pretend the device rebooted since the cache was written
+    context
+        .getSharedPreferences(DeduplicatingDriver.PREFERENCES_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .putLong(DeduplicatingDriver.KEY_BOOT_TIME, 42L)
+        .commit();
+    new DeduplicatingDriver(context, driverMock)
+        .schedule(newJobBuilder("tag").setLifetime(Lifetime.UNTIL_NEXT_BOOT).build());
+
+    verify(driverMock, times(2)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void clearCache_keepsBootTime() {
+    driver.schedule(newJob("tag"));
+    driver.clearCache();
+    driver.schedule(newJob("tag"));
+    new DeduplicatingDriver(context, driverMock).schedule(newJob("tag"));
+
+    verify(driverMock, times(2)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void cancel_invalidatesTag() {
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("other"));
+    driver.cancel("tag");
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("other"));
+
+    verify(driverMock).cancel("tag");
+    verify(driverMock, times(3)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void cancelAll_invalidatesAllTags() {
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("other"));
+    driver.cancelAll();
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("other"));
+
+    verify(driverMock).cancelAll();
+    verify(driverMock, times(4)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void cancelAllTags_invalidatesTags() {
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("other"));
+    when(driverMock.cancel("other")).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR);
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR,
+        driver.cancelAll(Arrays.asList("tag", "other")));
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("other"));
+
+    verify(driverMock).cancel("tag");
+    verify(driverMock).cancel("other");
+    verify(driverMock, times(4)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void cancelAllTags_batchDriver_passThrough() {
+    BatchDriver batchDriverMock = mock(BatchDriver.class);
+    driver = new DeduplicatingDriver(context, batchDriverMock);
+    List<String> tags = Arrays.asList("tag", "other");
+    when(batchDriverMock.cancelAll(tags))
+        .thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE);
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE, driver.cancelAll(tags));
+    verify(batchDriverMock, never()).cancel(any(String.class));
+  }
+
+  @Test
+  public void scheduleAll_onlyForwardsChangedJobs() {
+    BatchDriver batchDriverMock = mock(BatchDriver.class);
+    when(batchDriverMock.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    driver = new DeduplicatingDriver(context, batchDriverMock);
+    driver.schedule(newJob("cached"));
+
+    Job changed = newJob("changed");
+    when(batchDriverMock.scheduleAll(Collections.singletonList(changed)))
+        .thenReturn(new int[] {FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE});
+
+    int[] results = driver.scheduleAll(Arrays.asList(newJob("cached"), changed));
+
+    assertArrayEquals(
+        new int[] {
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+          FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE
+        },
+        results);
+    verify(batchDriverMock).scheduleAll(Collections.singletonList(changed));
+  }
+
+  @Test
+  public void scheduleAll_allCached_doesNotCallDriver() {
+    driver.schedule(newJob("first"));
+    driver.schedule(newJob("second"));
+
+    List<Job> jobs = Arrays.asList(newJob("first"), newJob("second"));
+    assertArrayEquals(
+        new int[] {
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS
+        },
+        driver.scheduleAll(jobs));
+
+    verify(driverMock, times(2)).schedule(any(Job.class));
+    verify(driverMock, never()).cancelAll();
+  }
+
+  @Test
+  public void hash_dependsOnExtras() {
+    Bundle extras = new Bundle();
+    extras.putString("key", "value");
+    String withExtras = DeduplicatingDriver.hash(newJobBuilder("tag").setExtras(extras).build());
+
+    extras.putString("key", "other value");
+    String withOtherExtras =
+        DeduplicatingDriver.hash(newJobBuilder("tag").setExtras(extras).build());
+
+    assertNotNull(withExtras);
+    assertNotEquals(withExtras, withOtherExtras);
+    assertNotEquals(withExtras, DeduplicatingDriver.hash(newJob("tag")));
+  }
+
+  @Test
+  public void hash_unsupportedExtras_isNull() {
+    Bundle extras = new Bundle();
+    extras.putBundle("nested", new Bundle());
+
+    assertNull(DeduplicatingDriver.hash(newJobBuilder("tag").setExtras(extras).build()));
+  }
+
+  @Test
+  public void hash_contentUriTrigger() {
+    JobTrigger trigger = TestUtil.getContentUriTrigger();
+
+    assertEquals(
+        DeduplicatingDriver.hash(newJobBuilder("tag").setTrigger(trigger).build()),
+        DeduplicatingDriver.hash(newJobBuilder("tag").setTrigger(trigger).build()));
+  }
+
+  private static Job newJob(String tag) {
+    return newJobBuilder(tag).build();
+  }
+
+  private static Job.Builder newJobBuilder(String tag) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.executionWindow(0, 60))
+        .setRecurring(true);
+  }
+}
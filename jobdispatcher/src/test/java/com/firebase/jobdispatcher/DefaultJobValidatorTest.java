@@ -23,15 +23,20 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.net.Uri;
+import android.os.Bundle;
 import android.provider.ContactsContract;
 import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
 import com.firebase.jobdispatcher.ObservedUri.Flags;
@@ -59,12 +64,14 @@ public class DefaultJobValidatorTest {
   @Mock private Context mockContext;
   @Mock private PackageManager packageManagerMock;
   @Captor private ArgumentCaptor<Intent> intentCaptor;
+  @Captor private ArgumentCaptor<BroadcastReceiver> receiverCaptor;
 
   private DefaultJobValidator validator;
 
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
+    DefaultJobValidator.clearServiceCache();
 
     validator = new DefaultJobValidator(mockContext);
   }
@@ -198,4 +205,108 @@ public class DefaultJobValidatorTest {
     List<String> errors = validator.validateService("service");
     assertNull(errors);
   }
+
+  @Test
+  public void validateService_cachesEnabledService() {
+    mockResolvedService(true);
+
+    for (int i = 0; i < 100; i++) {
+      assertNull(validator.validateService("service"));
+    }
+    assertNull(new DefaultJobValidator(mockContext).validateService("service"));
+
+    verify(packageManagerMock, times(1)).queryIntentServices(any(Intent.class), eq(0));
+  }
+
+  @Test
+  public void validateService_doesNotCacheDisabledService() {
+    mockResolvedService(false);
+
+    validator.validateService("service");
+    validator.validateService("service");
+
+    verify(packageManagerMock, times(2)).queryIntentServices(any(Intent.class), eq(0));
+  }
+
+  @Test
+  public void validateService_packageChangeClearsCache() {
+    mockResolvedService(true);
+    validator.validateService("service");
+    verify(mockContext).registerReceiver(receiverCaptor.capture(), any(IntentFilter.class));
+    BroadcastReceiver receiver = receiverCaptor.getValue();
+
+    // Other packages don't affect this app's services
+    receiver.onReceive(mockContext, packageChangedIntent("other.package"));
+    validator.validateService("service");
+    verify(packageManagerMock, times(1)).queryIntentServices(any(Intent.class), eq(0));
+
+    receiver.onReceive(mockContext, packageChangedIntent("package"));
+    mockResolvedService(false);
+    List<String> errors = validator.validateService("service");
+
+    assertTrue(errors.contains("service is disabled."));
+    verify(packageManagerMock, times(2)).queryIntentServices(any(Intent.class), eq(0));
+  }
+
+  @Test
+  public void estimateBundleSize_unsupportedTypesAreMeasured() {
+    Bundle bundle = new Bundle();
+    bundle.putString("foo", "bar");
+    bundle.putIntArray("array", new int[] {1, 2, 3});
+    bundle.putBundle("bundle", new Bundle());
+
+    assertEquals(
+        DefaultJobValidator.measureBundleSize(bundle),
+        DefaultJobValidator.estimateBundleSize(bundle, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void estimateBundleSize_stopsOnceOverLimit() {
+    Bundle bundle = new Bundle();
+    for (int i = 0; i < 100; i++) {
+      bundle.putString("key" + i, repeat('x', 100));
+    }
+
+    int estimate = DefaultJobValidator.estimateBundleSize(bundle, 1024);
+    assertTrue(estimate > 1024);
+    assertTrue(estimate < DefaultJobValidator.estimateBundleSize(bundle, Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void validate_extrasTooLarge() {
+    Bundle extras = new Bundle();
+    extras.putString("payload", repeat('x', DefaultJobValidator.MAX_EXTRAS_SIZE_BYTES / 2));
+    Job job =
+        TestUtil.getBuilderWithNoopValidator()
+            .setTag("tag")
+            .setService(TestJobService.class)
+            .setExtras(extras)
+            .build();
+
+    List<String> errors = validator.validate(job);
+
+    assertNotNull(errors);
+    assertTrue(errors.get(0), errors.get(0).startsWith("Extras too large"));
+  }
+
+  private static String repeat(char c, int count) {
+    char[] chars = new char[count];
+    Arrays.fill(chars, c);
+    return new String(chars);
+  }
+
+  private void mockResolvedService(boolean enabled) {
+    when(mockContext.getPackageManager()).thenReturn(packageManagerMock);
+    when(mockContext.getPackageName()).thenReturn("package");
+    ResolveInfo resolveInfo = new ResolveInfo();
+    resolveInfo.serviceInfo = new ServiceInfo();
+    resolveInfo.serviceInfo.enabled = enabled;
+
+    when(packageManagerMock.queryIntentServices(any(Intent.class), eq(0)))
+        .thenReturn(Arrays.asList(resolveInfo));
+  }
+
+  private static Intent packageChangedIntent(String packageName) {
+    return new Intent(Intent.ACTION_PACKAGE_CHANGED, Uri.fromParts("package", packageName, null));
+  }
 }
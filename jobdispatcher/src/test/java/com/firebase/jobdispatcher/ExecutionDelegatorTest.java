@@ -22,13 +22,16 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -42,8 +45,14 @@ import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import com.firebase.jobdispatcher.JobService.JobResult;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
@@ -53,8 +62,11 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
 
 /** Tests for the {@link ExecutionDelegator}. */
 @SuppressWarnings("WrongConstant")
@@ -98,6 +110,7 @@ public class ExecutionDelegatorTest {
   @After
   public void tearDown() {
     ExecutionDelegator.cleanServiceConnections();
+    ScheduledJobIndex.clear();
   }
 
   @Test
@@ -134,6 +147,141 @@ public class ExecutionDelegatorTest {
     assertTrue(connection.wasUnbound());
   }
 
+  @Test
+  public void jobFinished_sharedConnection_reportsToStartingDelegator() throws RemoteException {
+    JobInvocation first =
+        new JobInvocation.Builder()
+            .setTag("first")
+            .setService("service")
+            .setTrigger(Trigger.NOW)
+            .build();
+    JobInvocation second =
+        new JobInvocation.Builder()
+            .setTag("second")
+            .setService("service")
+            .setTrigger(Trigger.NOW)
+            .build();
+    TestJobReceiver otherReceiver = new TestJobReceiver();
+    ExecutionDelegator otherDelegator =
+        new ExecutionDelegator(mockContext, otherReceiver, constraintChecker);
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+
+    executionDelegator.executeJob(first);
+    otherDelegator.executeJob(second);
+
+    // both jobs run on the connection the first delegator opened
+    verify(mockContext)
+        .bindService(intentCaptor.capture(), connCaptor.capture(), eq(BIND_AUTO_CREATE));
+    when(iBinderMock.queryLocalInterface(IRemoteJobService.class.getName()))
+        .thenReturn(jobServiceMock);
+    connCaptor.getValue().onServiceConnected(null, iBinderMock);
+    verify(jobServiceMock, times(2)).start(bundleCaptor.capture(), jobCallbackCaptor.capture());
+
+    // pending jobs aren't necessarily started in order
+    int index =
+        "second".equals(
+                GooglePlayReceiver.getJobCoder()
+                    .decodeLazily(bundleCaptor.getAllValues().get(0))
+                    .getTag())
+            ? 0
+            : 1;
+    jobCallbackCaptor
+        .getAllValues()
+        .get(index)
+        .jobFinished(bundleCaptor.getAllValues().get(index), JobService.RESULT_SUCCESS);
+
+    assertEquals(-1, receiver.lastResult);
+    assertEquals(JobService.RESULT_SUCCESS, otherReceiver.lastResult);
+    assertSame(second, otherReceiver.lastInvocation);
+  }
+
+  @Test
+  public void jobFinished_afterStopWithoutResult_isDropped() throws RemoteException {
+    JobInvocation jobInvocation =
+        new JobInvocation.Builder()
+            .setTag("tag")
+            .setService("service")
+            .setTrigger(Trigger.NOW)
+            .build();
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+    executionDelegator.executeJob(jobInvocation);
+    verify(mockContext)
+        .bindService(intentCaptor.capture(), connCaptor.capture(), eq(BIND_AUTO_CREATE));
+    when(iBinderMock.queryLocalInterface(IRemoteJobService.class.getName()))
+        .thenReturn(jobServiceMock);
+    connCaptor.getValue().onServiceConnected(null, iBinderMock);
+    verify(jobServiceMock).start(bundleCaptor.capture(), jobCallbackCaptor.capture());
+
+    ExecutionDelegator.stopJob(jobInvocation, false /* must not send the result */);
+    jobCallbackCaptor
+        .getValue()
+        .jobFinished(bundleCaptor.getValue(), JobService.RESULT_FAIL_NORETRY);
+
+    assertEquals(-1, receiver.lastResult);
+  }
+
+  @Test
+  public void executeJob_indexesJobUntilItsFinished() throws RemoteException {
+    JobInvocation jobInvocation =
+        new JobInvocation.Builder()
+            .setTag("tag")
+            .setService("service")
+            .setTrigger(Trigger.NOW)
+            .build();
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+    executionDelegator.executeJob(jobInvocation);
+    assertEquals(
+        Arrays.asList("tag"), ScheduledJobIndex.findByService(mock(Driver.class), "service"));
+
+    verify(mockContext)
+        .bindService(intentCaptor.capture(), connCaptor.capture(), eq(BIND_AUTO_CREATE));
+    when(iBinderMock.queryLocalInterface(IRemoteJobService.class.getName()))
+        .thenReturn(jobServiceMock);
+    connCaptor.getValue().onServiceConnected(null, iBinderMock);
+    verify(jobServiceMock).start(bundleCaptor.capture(), jobCallbackCaptor.capture());
+    jobCallbackCaptor.getValue().jobFinished(bundleCaptor.getValue(), JobService.RESULT_SUCCESS);
+
+    assertEquals(0, ScheduledJobIndex.size());
+  }
+
+  @Test
+  public void cancelByPrefix_stopsJobsStartedByAnyDriver() throws RemoteException {
+    JobInvocation jobInvocation =
+        new JobInvocation.Builder()
+            .setTag("feature-1")
+            .setService("service")
+            .setTrigger(Trigger.NOW)
+            .build();
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+    executionDelegator.executeJob(jobInvocation);
+    verify(mockContext)
+        .bindService(intentCaptor.capture(), connCaptor.capture(), eq(BIND_AUTO_CREATE));
+    when(iBinderMock.queryLocalInterface(IRemoteJobService.class.getName()))
+        .thenReturn(jobServiceMock);
+    connCaptor.getValue().onServiceConnected(null, iBinderMock);
+    verify(jobServiceMock).start(bundleCaptor.capture(), jobCallbackCaptor.capture());
+
+    Driver driver = mock(Driver.class);
+    when(driver.isAvailable()).thenReturn(true);
+    new FirebaseJobDispatcher(driver).cancelByPrefix("feature-");
+
+    verify(driver).cancel("feature-1");
+    verify(jobServiceMock).stop(any(Bundle.class), eq(false));
+    // the stopped job's result is dropped
+    jobCallbackCaptor
+        .getValue()
+        .jobFinished(bundleCaptor.getValue(), JobService.RESULT_FAIL_NORETRY);
+    assertEquals(-1, receiver.lastResult);
+  }
+
   @Test
   public void testExecuteJob_sendsBroadcastWithJobAndMessage() throws Exception {
     for (JobInvocation input : TestUtil.getJobInvocationCombinations()) {
@@ -410,13 +558,238 @@ public class ExecutionDelegatorTest {
     assertEquals(JobService.RESULT_FAIL_RETRY, receiver.lastResult);
   }
 
+  @Test
+  public void executeJob_tooManyBinds_queuesAndStartsInOrder() {
+    ExecutionDelegator.setMaxConcurrentBinds(2);
+    final List<String> boundServices = new ArrayList<>();
+    final List<ServiceConnection> connections = new ArrayList<>();
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenAnswer(
+            new Answer<Boolean>() {
+              @Override
+              public Boolean answer(InvocationOnMock invocation) {
+                Intent intent = (Intent) invocation.getArguments()[0];
+                boundServices.add(intent.getComponent().getClassName());
+                connections.add((ServiceConnection) invocation.getArguments()[1]);
+                return true;
+              }
+            });
+
+    for (int i = 0; i < 5; i++) {
+      executionDelegator.executeJob(newJobForService("service" + i));
+    }
+
+    assertThat(boundServices).containsExactly("service0", "service1").inOrder();
+    assertThat(ExecutionDelegator.getInFlightBindCount()).isEqualTo(2);
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(3);
+
+    // Each completed bind should let exactly one more through, in the order they were requested
+    for (int i = 0; i < 5; i++) {
+      connections.get(i).onServiceConnected(null, noopBinder);
+      assertThat(boundServices).hasSize(Math.min(5, i + 3));
+    }
+
+    assertThat(boundServices)
+        .containsExactly("service0", "service1", "service2", "service3", "service4")
+        .inOrder();
+    assertThat(ExecutionDelegator.getInFlightBindCount()).isEqualTo(0);
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void executeJob_failedBind_startsNextQueuedBind() {
+    ExecutionDelegator.setMaxConcurrentBinds(1);
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(false);
+
+    executionDelegator.executeJob(newJobForService("service0"));
+    executionDelegator.executeJob(newJobForService("service1"));
+
+    // Both binds failed straight away, so neither should be holding on to the only slot
+    verify(mockContext, times(2))
+        .bindService(any(Intent.class), connCaptor.capture(), eq(BIND_AUTO_CREATE));
+    assertThat(ExecutionDelegator.getInFlightBindCount()).isEqualTo(0);
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(0);
+    assertEquals(JobService.RESULT_FAIL_RETRY, receiver.lastResult);
+  }
+
+  @Test
+  public void executeJob_bindNeverConnects_timesOutAndStartsNextQueuedBind() {
+    ExecutionDelegator.setMaxConcurrentBinds(1);
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+
+    executionDelegator.executeJob(newJobForService("service0"));
+    executionDelegator.executeJob(newJobForService("service1"));
+    verify(mockContext).bindService(any(Intent.class), connCaptor.capture(), anyInt());
+    JobServiceConnection hungConnection = connCaptor.getValue();
+
+    ShadowLooper.idleMainLooper(ExecutionDelegator.BIND_TIMEOUT_MILLIS - 1, TimeUnit.MILLISECONDS);
+    assertFalse(hungConnection.wasUnbound());
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(1);
+
+    ShadowLooper.idleMainLooper(1, TimeUnit.MILLISECONDS);
+
+    // The hung bind should've been dropped and its job retried, making room for the next one
+    assertTrue(hungConnection.wasUnbound());
+    verify(mockContext).unbindService(hungConnection);
+    assertNull(ExecutionDelegator.getJobServiceConnection("service0"));
+    assertEquals(JobService.RESULT_FAIL_RETRY, receiver.lastResult);
+    verify(mockContext, times(2))
+        .bindService(any(Intent.class), any(ServiceConnection.class), anyInt());
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(0);
+    assertThat(ExecutionDelegator.getInFlightBindCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void executeJob_connectedBind_doesNotTimeOut() {
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+
+    executionDelegator.executeJob(newJobForService("service0"));
+    verify(mockContext).bindService(any(Intent.class), connCaptor.capture(), anyInt());
+    connCaptor.getValue().onServiceConnected(null, noopBinder);
+
+    ShadowLooper.idleMainLooper(ExecutionDelegator.BIND_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+    assertFalse(connCaptor.getValue().wasUnbound());
+    verify(mockContext, never()).unbindService(any(ServiceConnection.class));
+  }
+
+  @Test
+  public void executeJob_nullBinding_startsNextQueuedBind() {
+    ExecutionDelegator.setMaxConcurrentBinds(1);
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+
+    executionDelegator.executeJob(newJobForService("service0"));
+    executionDelegator.executeJob(newJobForService("service1"));
+    verify(mockContext).bindService(any(Intent.class), connCaptor.capture(), anyInt());
+
+    connCaptor.getValue().onNullBinding(null);
+
+    assertEquals(JobService.RESULT_FAIL_RETRY, receiver.lastResult);
+    verify(mockContext, times(2))
+        .bindService(any(Intent.class), any(ServiceConnection.class), anyInt());
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void stopJob_queuedBind_isDroppedFromQueue() {
+    ExecutionDelegator.setMaxConcurrentBinds(1);
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+
+    JobInvocation first = newJobForService("service0");
+    JobInvocation second = newJobForService("service1");
+    executionDelegator.executeJob(first);
+    executionDelegator.executeJob(second);
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(1);
+
+    ExecutionDelegator.stopJob(second, /* needToSendResult= */ false);
+
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(0);
+    verify(mockContext).bindService(intentCaptor.capture(), connCaptor.capture(), anyInt());
+    assertEquals("service0", intentCaptor.getValue().getComponent().getClassName());
+
+    // Finishing the first bind shouldn't start the dropped one
+    connCaptor.getValue().onServiceConnected(null, noopBinder);
+    verify(mockContext).bindService(any(Intent.class), any(ServiceConnection.class), anyInt());
+    assertThat(ExecutionDelegator.getInFlightBindCount()).isEqualTo(0);
+  }
+
+  @Test
+  public void executeJob_manyServicesConcurrently_peakConcurrentBindsBounded() throws Exception {
+    final int serviceCount = 50;
+    final int maxConcurrentBinds = 3;
+    ExecutionDelegator.setMaxConcurrentBinds(maxConcurrentBinds);
+
+    final AtomicInteger inFlight = new AtomicInteger();
+    final AtomicInteger peakInFlight = new AtomicInteger();
+    final CountDownLatch allConnected = new CountDownLatch(serviceCount);
+    final ExecutorService binderThread = Executors.newSingleThreadExecutor();
+    when(mockContext.bindService(
+            any(Intent.class), any(ServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenAnswer(
+            new Answer<Boolean>() {
+              @Override
+              public Boolean answer(InvocationOnMock invocation) {
+                final ServiceConnection connection =
+                    (ServiceConnection) invocation.getArguments()[1];
+                int current = inFlight.incrementAndGet();
+                while (true) {
+                  int peak = peakInFlight.get();
+                  if (current <= peak || peakInFlight.compareAndSet(peak, current)) {
+                    break;
+                  }
+                }
+                // Services come up asynchronously, like they would on a device
+                binderThread.execute(
+                    new Runnable() {
+                      @Override
+                      public void run() {
+                        inFlight.decrementAndGet();
+                        connection.onServiceConnected(null, noopBinder);
+                        allConnected.countDown();
+                      }
+                    });
+                return true;
+              }
+            });
+
+    List<Thread> schedulers = new ArrayList<>();
+    for (int t = 0; t < 5; t++) {
+      final int offset = t;
+      Thread thread =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int i = offset; i < serviceCount; i += 5) {
+                    executionDelegator.executeJob(newJobForService("service" + i));
+                  }
+                }
+              });
+      schedulers.add(thread);
+      thread.start();
+    }
+    for (Thread thread : schedulers) {
+      thread.join();
+    }
+
+    try {
+      assertTrue(allConnected.await(10, TimeUnit.SECONDS));
+    } finally {
+      binderThread.shutdownNow();
+    }
+    assertThat(peakInFlight.get()).isAtMost(maxConcurrentBinds);
+    assertThat(ExecutionDelegator.getInFlightBindCount()).isEqualTo(0);
+    assertThat(ExecutionDelegator.getPendingBindCount()).isEqualTo(0);
+  }
+
+  private static JobInvocation newJobForService(String service) {
+    return new JobInvocation.Builder()
+        .setTag("tag")
+        .setService(service)
+        .setTrigger(Trigger.NOW)
+        .build();
+  }
+
   private static final class TestJobReceiver implements ExecutionDelegator.JobFinishedCallback {
+    JobInvocation lastInvocation;
     int lastResult = -1;
 
     private CountDownLatch latch;
 
     @Override
     public void onJobFinished(@NonNull JobInvocation js, @JobResult int result) {
+      lastInvocation = js;
       lastResult = result;
 
       if (latch != null) {
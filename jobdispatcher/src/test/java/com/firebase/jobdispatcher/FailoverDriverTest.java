@@ -0,0 +1,402 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/** Tests for the {@link FailoverDriver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class FailoverDriverTest {
+
+  @Mock private Driver primary;
+  @Mock private Driver secondary;
+  @Mock private JobValidator validator;
+  @Mock private JobValidator secondaryValidator;
+
+  private FailoverDriver driver;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    ShadowLooper.pauseMainLooper();
+
+    setUpDriver(primary);
+    setUpDriver(secondary);
+    when(primary.getValidator()).thenReturn(validator);
+    when(secondary.getValidator()).thenReturn(secondaryValidator);
+    driver = new FailoverDriver(RuntimeEnvironment.application, primary, secondary);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_requiresDriver() {
+    new FailoverDriver(RuntimeEnvironment.application);
+  }
+
+  @Test
+  public void isAvailable_ifAnyDriverIs() {
+    when(primary.isAvailable()).thenReturn(false);
+    assertTrue(driver.isAvailable());
+
+    when(secondary.isAvailable()).thenReturn(false);
+    assertFalse(driver.isAvailable());
+  }
+
+  @Test
+  public void getValidator_acceptsWhatAnyDriverAccepts() {
+    Job job = newJob("tag");
+    when(validator.validate(job)).thenReturn(Collections.singletonList("primary error"));
+
+    assertNull(driver.getValidator().validate(job));
+
+    when(secondaryValidator.validate(job))
+        .thenReturn(Collections.singletonList("secondary error"));
+    assertEquals(
+        Collections.singletonList("primary error"), driver.getValidator().validate(job));
+  }
+
+  @Test
+  public void schedule_rejectedByValidator_fallsBack() {
+    Job job = newJob("tag");
+    when(validator.validate(job)).thenReturn(Collections.singletonList("error"));
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(job));
+
+    verify(primary, never()).schedule(any(Job.class));
+    verify(secondary).schedule(job);
+    assertSame(secondary, driver.getOwner("tag"));
+  }
+
+  @Test
+  public void schedule_rejectedByAllValidators() {
+    Job job = newJob("tag");
+    when(validator.validate(job)).thenReturn(Collections.singletonList("error"));
+    when(secondaryValidator.validate(job)).thenReturn(Collections.singletonList("error"));
+    when(secondaryValidator.validate(job.getTrigger()))
+        .thenReturn(Collections.singletonList("error"));
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER, driver.schedule(job));
+
+    verify(primary, never()).schedule(any(Job.class));
+    verify(secondary, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_prefersFirstDriver() {
+    Job job = newJob("tag");
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(job));
+
+    verify(primary).schedule(job);
+    verify(secondary, never()).schedule(any(Job.class));
+    assertSame(primary, driver.getOwner("tag"));
+  }
+
+  @Test
+  public void schedule_failure_fallsBack() {
+    Job job = newJob("tag");
+    when(primary.schedule(job)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(job));
+
+    verify(secondary).schedule(job);
+    assertSame(secondary, driver.getOwner("tag"));
+  }
+
+  @Test
+  public void schedule_exception_fallsBack() {
+    Job job = newJob("tag");
+    when(primary.schedule(job)).thenThrow(new IllegalStateException("boom"));
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(job));
+
+    verify(secondary).schedule(job);
+  }
+
+  @Test
+  public void schedule_unavailableDriver_isSkipped() {
+    when(primary.isAvailable()).thenReturn(false);
+    Job job = newJob("tag");
+
+    driver.schedule(job);
+
+    verify(primary, never()).schedule(any(Job.class));
+    verify(secondary).schedule(job);
+  }
+
+  @Test
+  public void schedule_allFail_returnsLastResult() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    when(secondary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE);
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE, driver.schedule(newJob("tag")));
+    assertNull(driver.getOwner("tag"));
+  }
+
+  @Test
+  public void schedule_noDriverAvailable() {
+    when(primary.isAvailable()).thenReturn(false);
+    when(secondary.isAvailable()).thenReturn(false);
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE, driver.schedule(newJob("tag")));
+  }
+
+  @Test
+  public void schedule_repeatedFailures_skipDriverUntilProbe() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    for (int i = 0; i < FailoverDriver.MAX_CONSECUTIVE_FAILURES; i++) {
+      driver.schedule(newJob("tag"));
+    }
+    verify(primary, times(FailoverDriver.MAX_CONSECUTIVE_FAILURES)).schedule(any(Job.class));
+
+    // unhealthy, so skipped
+    driver.schedule(newJob("tag"));
+    verify(primary, times(FailoverDriver.MAX_CONSECUTIVE_FAILURES)).schedule(any(Job.class));
+
+    // probed once the interval has passed, and healthy again if that works
+    ShadowLooper.idleMainLooper(FailoverDriver.UNHEALTHY_PROBE_INTERVAL_MILLIS, MILLISECONDS);
+    reset(primary);
+    setUpDriver(primary);
+    when(primary.getValidator()).thenReturn(validator);
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("tag"));
+    verify(primary, times(2)).schedule(any(Job.class));
+    assertSame(primary, driver.getOwner("tag"));
+  }
+
+  @Test
+  public void schedule_failedProbe_keepsSkippingDriver() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    for (int i = 0; i < FailoverDriver.MAX_CONSECUTIVE_FAILURES; i++) {
+      driver.schedule(newJob("tag"));
+    }
+
+    ShadowLooper.idleMainLooper(FailoverDriver.UNHEALTHY_PROBE_INTERVAL_MILLIS, MILLISECONDS);
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("tag"));
+
+    verify(primary, times(FailoverDriver.MAX_CONSECUTIVE_FAILURES + 1)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_jobSpecificFailures_dontAffectHealth() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER);
+    int attempts = FailoverDriver.MAX_CONSECUTIVE_FAILURES + 2;
+    for (int i = 0; i < attempts; i++) {
+      assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(newJob("tag")));
+    }
+
+    verify(primary, times(attempts)).schedule(any(Job.class));
+  }
+
+  @Test
+  public void schedule_newOwner_cancelsOnPreviousOwner() {
+    driver.schedule(newJob("tag"));
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    driver.schedule(newJob("tag"));
+
+    verify(primary).cancel("tag");
+    assertSame(secondary, driver.getOwner("tag"));
+  }
+
+  @Test
+  public void schedule_unknownOwner_isNotCancelledElsewhere() {
+    driver.schedule(newJob("tag"));
+    driver.schedule(newJob("tag"));
+
+    verify(primary, never()).cancel(anyString());
+    verify(secondary, never()).cancel(anyString());
+  }
+
+  @Test
+  public void schedule_unknownOwnerFailingOver_cancelsOnFirstDriver() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    driver.schedule(newJob("tag"));
+
+    verify(primary).cancel("tag");
+    verify(secondary, never()).cancel(anyString());
+  }
+
+  @Test
+  public void schedule_failedOverBeforeRestart_cancelsOnFallback() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    driver.schedule(newJob("tag"));
+    setUpDriver(primary);
+
+    FailoverDriver restarted =
+        new FailoverDriver(RuntimeEnvironment.application, primary, secondary);
+    restarted.schedule(newJob("tag"));
+    restarted.schedule(newJob("tag"));
+
+    verify(secondary, times(1)).cancel("tag");
+    assertSame(primary, restarted.getOwner("tag"));
+  }
+
+  @Test
+  public void cancel_failedOverBeforeRestart_onlyCancelsOnFallback() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    driver.schedule(newJob("tag"));
+    clearInvocations(primary, secondary);
+
+    new FailoverDriver(RuntimeEnvironment.application, primary, secondary).cancel("tag");
+
+    verify(primary, never()).cancel(anyString());
+    verify(secondary).cancel("tag");
+  }
+
+  @Test
+  public void schedule_validatedJob_isOnlyRevalidatedOnFallbacks() {
+    Job job =
+        new Job.Builder(new ValidationEnforcer(driver.getValidator()))
+            .setTag("tag")
+            .setService(TestJobService.class)
+            .setTrigger(Trigger.NOW)
+            .build();
+    verify(validator).validate(any(JobParameters.class));
+    when(primary.schedule(job)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    driver.schedule(job);
+
+    verify(validator, times(1)).validate(any(JobParameters.class));
+    verify(secondaryValidator).validate(job);
+    verify(secondary).schedule(job);
+  }
+
+  @Test
+  public void cancel_knownTag_onlyCancelsOnOwner() {
+    driver.schedule(newJob("tag"));
+    clearInvocations(primary, secondary);
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancel("tag"));
+
+    verify(primary).cancel("tag");
+    verify(secondary, never()).cancel(anyString());
+    assertNull(driver.getOwner("tag"));
+  }
+
+  @Test
+  public void cancel_unknownTag_cancelsEverywhere() {
+    when(secondary.cancel("tag")).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR);
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR, driver.cancel("tag"));
+
+    verify(primary).cancel("tag");
+    verify(secondary).cancel("tag");
+  }
+
+  @Test
+  public void cancelAll_cancelsEverywhere() {
+    driver.schedule(newJob("tag"));
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancelAll());
+
+    verify(primary).cancelAll();
+    verify(secondary).cancelAll();
+    assertNull(driver.getOwner("tag"));
+  }
+
+  @Test
+  public void scheduleAll_onlyFailedJobsFallBack() {
+    Job first = newJob("first");
+    Job second = newJob("second");
+    when(primary.schedule(second)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    int[] results = driver.scheduleAll(Arrays.asList(first, second));
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[0]);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[1]);
+    verify(secondary, never()).schedule(first);
+    verify(secondary).schedule(second);
+    assertSame(primary, driver.getOwner("first"));
+    assertSame(secondary, driver.getOwner("second"));
+  }
+
+  @Test
+  public void cancelAllTags_routesTagsToOwners() {
+    when(primary.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS)
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    driver.schedule(newJob("first"));
+    driver.schedule(newJob("second"));
+    clearInvocations(primary, secondary);
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS,
+        driver.cancelAll(Arrays.asList("first", "second", "unknown")));
+
+    verify(primary).cancel("first");
+    verify(primary, never()).cancel("second");
+    verify(primary).cancel("unknown");
+    verify(secondary, never()).cancel("first");
+    verify(secondary).cancel("second");
+    verify(secondary).cancel("unknown");
+    assertNull(driver.getOwner("first"));
+    assertNull(driver.getOwner("second"));
+  }
+
+  private static void setUpDriver(Driver driver) {
+    when(driver.isAvailable()).thenReturn(true);
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    when(driver.cancel(anyString())).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+    when(driver.cancelAll()).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+  }
+
+  private static Job newJob(String tag) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.NOW)
+        .build();
+  }
+}
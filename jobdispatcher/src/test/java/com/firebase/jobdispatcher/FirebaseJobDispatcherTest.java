@@ -16,22 +16,38 @@
 
 package com.firebase.jobdispatcher;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.firebase.jobdispatcher.FirebaseJobDispatcher.ScheduleFailedException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
@@ -62,6 +78,11 @@ public class FirebaseJobDispatcherTest {
     setDriverAvailability(true);
   }
 
+  @After
+  public void tearDown() {
+    ScheduledJobIndex.clear();
+  }
+
   @Test
   public void testSchedule_passThrough() throws Exception {
     final int[] possibleResults = {
@@ -88,6 +109,50 @@ public class FirebaseJobDispatcherTest {
     verify(driver, never()).schedule(null);
   }
 
+  @Test
+  public void scheduleAll_schedulesEachJob() throws Exception {
+    Job first = newJob("first");
+    Job second = newJob("second");
+    when(driver.schedule(first)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    when(driver.schedule(second)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE);
+
+    assertArrayEquals(
+        new int[] {
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+          FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE
+        },
+        dispatcher.scheduleAll(Arrays.asList(first, second)));
+  }
+
+  @Test
+  public void scheduleAll_batchDriver_passThrough() throws Exception {
+    BatchDriver batchDriver = mock(BatchDriver.class);
+    when(batchDriver.getValidator()).thenReturn(validator);
+    when(batchDriver.isAvailable()).thenReturn(true);
+    List<Job> jobs = Arrays.asList(newJob("first"), newJob("second"));
+    int[] results = {
+      FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+      FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR
+    };
+    when(batchDriver.scheduleAll(jobs)).thenReturn(results);
+
+    assertArrayEquals(results, new FirebaseJobDispatcher(batchDriver).scheduleAll(jobs));
+    verify(batchDriver, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void scheduleAll_unavailable() throws Exception {
+    setDriverAvailability(false);
+
+    assertArrayEquals(
+        new int[] {
+          FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE,
+          FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE
+        },
+        dispatcher.scheduleAll(Arrays.asList(newJob("first"), newJob("second"))));
+    verify(driver, never()).schedule(any(Job.class));
+  }
+
   @Test
   public void testCancelJob() throws Exception {
     final String tag = "foo";
@@ -131,6 +196,243 @@ public class FirebaseJobDispatcherTest {
     verify(driver, never()).cancelAll();
   }
 
+  @Test
+  public void cancelByPrefix_cancelsMatchingScheduledJobs() throws Exception {
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    when(driver.cancel(any(String.class))).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+    dispatcher.schedule(newJob("feature-1"));
+    dispatcher.scheduleAll(Arrays.asList(newJob("feature-2"), newJob("other")));
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, dispatcher.cancelByPrefix("feature-"));
+
+    verify(driver).cancel("feature-1");
+    verify(driver).cancel("feature-2");
+    verify(driver, never()).cancel("other");
+
+    // cancelled jobs are forgotten
+    dispatcher.cancelByPrefix("feature-");
+    verify(driver, times(1)).cancel("feature-1");
+  }
+
+  @Test
+  public void cancelByPrefix_skipsFailedAndCancelledJobs() throws Exception {
+    when(driver.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+    dispatcher.schedule(newJob("failed"));
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    dispatcher.schedule(newJob("cancelled"));
+    dispatcher.cancel("cancelled");
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, dispatcher.cancelByPrefix(""));
+
+    verify(driver, never()).cancel("failed");
+    verify(driver, times(1)).cancel("cancelled");
+  }
+
+  @Test
+  public void cancelByPrefix_returnsFirstFailure() throws Exception {
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    when(driver.cancel(any(String.class)))
+        .thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR);
+    dispatcher.schedule(newJob("first"));
+    dispatcher.schedule(newJob("second"));
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR, dispatcher.cancelByPrefix(""));
+    verify(driver).cancel("first");
+    verify(driver).cancel("second");
+  }
+
+  @Test
+  public void cancelByPrefix_batchDriver_singleCall() throws Exception {
+    BatchDriver batchDriver = mock(BatchDriver.class);
+    when(batchDriver.getValidator()).thenReturn(validator);
+    when(batchDriver.isAvailable()).thenReturn(true);
+    when(batchDriver.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    when(batchDriver.cancelAll(Arrays.asList("feature-1", "feature-2")))
+        .thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR);
+    FirebaseJobDispatcher batchDispatcher = new FirebaseJobDispatcher(batchDriver);
+    batchDispatcher.schedule(newJob("feature-1"));
+    batchDispatcher.schedule(newJob("feature-2"));
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR,
+        batchDispatcher.cancelByPrefix("feature-"));
+    verify(batchDriver, never()).cancel(any(String.class));
+  }
+
+  @Test
+  public void cancelByPrefix_unavailable() throws Exception {
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    dispatcher.schedule(newJob("feature-1"));
+    setDriverAvailability(false);
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_NO_DRIVER_AVAILABLE,
+        dispatcher.cancelByPrefix("feature-"));
+    verify(driver, never()).cancel(any(String.class));
+  }
+
+  @Test
+  public void cancelByService_cancelsMatchingScheduledJobs() throws Exception {
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    dispatcher.schedule(newJob("first"));
+    dispatcher.schedule(
+        TestUtil.getBuilderWithNoopValidator()
+            .setTag("second")
+            .setService(WorkerProcessTestJobService.class)
+            .setTrigger(Trigger.NOW)
+            .build());
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS,
+        dispatcher.cancelByService(TestJobService.class));
+
+    verify(driver).cancel("first");
+    verify(driver, never()).cancel("second");
+  }
+
+  @Test
+  public void cancelByPrefix_onlyCancelsJobsOfOwnDriver() throws Exception {
+    BatchDriver otherDriver = mock(BatchDriver.class);
+    when(otherDriver.getValidator()).thenReturn(validator);
+    when(otherDriver.isAvailable()).thenReturn(true);
+    when(otherDriver.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    FirebaseJobDispatcher otherDispatcher = new FirebaseJobDispatcher(otherDriver);
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    dispatcher.schedule(newJob("feature-1"));
+    otherDispatcher.schedule(newJob("feature-2"));
+
+    dispatcher.cancelByPrefix("feature-");
+    dispatcher.cancelAll();
+
+    verify(driver).cancel("feature-1");
+    verify(driver, never()).cancel("feature-2");
+    assertEquals(Arrays.asList("feature-2"), ScheduledJobIndex.findByPrefix(otherDriver, ""));
+
+    otherDispatcher.cancelByService(TestJobService.class);
+
+    verify(otherDriver).cancelAll(Arrays.asList("feature-2"));
+    assertEquals(0, ScheduledJobIndex.size());
+  }
+
+  @Test
+  public void cancelAll_forgetsScheduledJobs() throws Exception {
+    when(driver.schedule(any(Job.class))).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    dispatcher.schedule(newJob("first"));
+    dispatcher.cancelAll();
+
+    dispatcher.cancelByService(TestJobService.class);
+
+    verify(driver, never()).cancel(any(String.class));
+  }
+
+  @Test
+  public void scheduleAsync_deferredToExecutor() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    dispatcher = new FirebaseJobDispatcher(driver, executor);
+    Job job = newJob("foo");
+    when(driver.schedule(job)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE);
+
+    Future<Integer> result = dispatcher.scheduleAsync(job);
+    assertFalse(result.isDone());
+    verify(driver, never()).schedule(any(Job.class));
+
+    executor.runAll();
+    assertTrue(result.isDone());
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE, (int) result.get());
+  }
+
+  @Test
+  public void scheduleAsync_unavailable() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    dispatcher = new FirebaseJobDispatcher(driver, executor);
+    setDriverAvailability(false);
+
+    Future<Integer> result = dispatcher.scheduleAsync(newJob("foo"));
+    executor.runAll();
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_NO_DRIVER_AVAILABLE, (int) result.get());
+    verify(driver, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void scheduleAsync_driverThrows_failsFuture() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    dispatcher = new FirebaseJobDispatcher(driver, executor);
+    Job job = newJob("foo");
+    IllegalArgumentException error = new IllegalArgumentException("bad job");
+    when(driver.schedule(job)).thenThrow(error);
+
+    Future<Integer> result = dispatcher.scheduleAsync(job);
+    executor.runAll();
+
+    try {
+      result.get();
+      fail("Expected the Future to fail");
+    } catch (ExecutionException expected) {
+      assertSame(error, expected.getCause());
+    }
+  }
+
+  @Test
+  public void asyncRequests_preserveSubmissionOrder() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    dispatcher = new FirebaseJobDispatcher(driver, executor);
+    Job job = newJob("foo");
+
+    Future<Integer> schedule = dispatcher.scheduleAsync(job);
+    Future<Integer> cancel = dispatcher.cancelAsync("foo");
+    Future<Integer> reschedule = dispatcher.scheduleAsync(job);
+    Future<Integer> cancelAll = dispatcher.cancelAllAsync();
+    executor.runAll();
+
+    InOrder inOrder = inOrder(driver);
+    inOrder.verify(driver).schedule(job);
+    inOrder.verify(driver).cancel("foo");
+    inOrder.verify(driver).schedule(job);
+    inOrder.verify(driver).cancelAll();
+    assertTrue(schedule.isDone() && cancel.isDone() && reschedule.isDone() && cancelAll.isDone());
+  }
+
+  @Test
+  public void cancelAsync_passThrough() throws Exception {
+    QueueExecutor executor = new QueueExecutor();
+    dispatcher = new FirebaseJobDispatcher(driver, executor);
+    when(driver.cancel("foo")).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR);
+    when(driver.cancelAll()).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+
+    Future<Integer> cancel = dispatcher.cancelAsync("foo");
+    Future<Integer> cancelAll = dispatcher.cancelAllAsync();
+    executor.runAll();
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR, (int) cancel.get());
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, (int) cancelAll.get());
+  }
+
+  @Test
+  public void scheduleAsync_defaultExecutor_runsOffCallerThread() throws Exception {
+    final Job job = newJob("foo");
+    final AtomicReference<Thread> schedulingThread = new AtomicReference<>();
+    when(driver.schedule(job))
+        .thenAnswer(
+            new Answer<Integer>() {
+              @Override
+              public Integer answer(InvocationOnMock invocation) {
+                schedulingThread.set(Thread.currentThread());
+                return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+              }
+            });
+
+    Future<Integer> result = dispatcher.scheduleAsync(job);
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, (int) result.get(5, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), schedulingThread.get());
+  }
+
   @Test
   public void testMustSchedule_success() throws Exception {
     when(driver.schedule(null)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
@@ -203,4 +505,29 @@ public class FirebaseJobDispatcherTest {
   public void setDriverAvailability(boolean driverAvailability) {
     when(driver.isAvailable()).thenReturn(driverAvailability);
   }
+
+  /** Holds on to submitted tasks until {@link #runAll()} is called. */
+  private static final class QueueExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+
+  private static Job newJob(String tag) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.NOW)
+        .build();
+  }
 }
@@ -17,9 +17,12 @@
 package com.firebase.jobdispatcher;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Parcel;
@@ -28,6 +31,8 @@ import android.util.Pair;
 import com.firebase.jobdispatcher.GooglePlayCallbackExtractorTest.ExtendedShadowParcel;
 import com.firebase.jobdispatcher.TestUtil.InspectableBinder;
 import com.firebase.jobdispatcher.TestUtil.TransactionArguments;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -128,6 +133,8 @@ public final class GooglePlayCallbackExtractorTest {
     TransactionArguments args = binder.getArguments().get(0);
     // Should have set the transaction code:
     assertEquals("transaction code", IBinder.FIRST_CALL_TRANSACTION + 1, args.code);
+    // Nothing waits for the reply
+    assertEquals("flags", IBinder.FLAG_ONEWAY, args.flags);
 
     // strong mode bit
     args.data.readInt();
@@ -153,6 +160,58 @@ public final class GooglePlayCallbackExtractorTest {
         extraction.second.keySet().size());
   }
 
+  @Test
+  public void testExtractCallback_keepsOtherValues() {
+    Bundle extras = new Bundle();
+    extras.putString("nested", "value");
+    Bundle validBundle = new Bundle();
+    validBundle.putString("foo", "bar");
+    validBundle.putLong("long", 42L);
+    validBundle.putBoolean("boolean", true);
+    validBundle.putStringArrayList("list", new ArrayList<>(Arrays.asList("a", "b")));
+    validBundle.putBundle("extras", extras);
+    validBundle.putParcelable("callback", new InspectableBinder().toPendingCallback());
+    validBundle.putInt("int", 3);
+
+    Pair<JobCallback, Bundle> extraction = extractCallback(toParcelledBundle(validBundle));
+    assertNotNull(extraction);
+    Bundle cleanBundle = extraction.second;
+    assertEquals(6, cleanBundle.size());
+    assertFalse(cleanBundle.containsKey("callback"));
+    assertEquals("bar", cleanBundle.getString("foo"));
+    assertEquals(42L, cleanBundle.getLong("long"));
+    assertTrue(cleanBundle.getBoolean("boolean"));
+    assertEquals(Arrays.asList("a", "b"), cleanBundle.getStringArrayList("list"));
+    assertEquals("value", cleanBundle.getBundle("extras").getString("nested"));
+    assertEquals(3, cleanBundle.getInt("int"));
+  }
+
+  @Test
+  public void testShouldReadKeysAsStrings_decidedBySdkLevel() {
+    assertFalse(
+        GooglePlayCallbackExtractor.shouldReadKeysAsStrings(Build.VERSION_CODES.JELLY_BEAN));
+    assertTrue(GooglePlayCallbackExtractor.shouldReadKeysAsStrings(Build.VERSION_CODES.LOLLIPOP));
+    assertTrue(GooglePlayCallbackExtractor.shouldReadKeysAsStrings(Build.VERSION_CODES.M));
+  }
+
+  @Test
+  public void testShouldReadKeysAsStrings_probesOnKitKat() {
+    // The probe uses the runtime's own Parcel, which writes keys as Strings
+    assertTrue(GooglePlayCallbackExtractor.shouldReadKeysAsStrings(Build.VERSION_CODES.KITKAT));
+  }
+
+  /** Returns a copy of the provided Bundle that is still parcelled, like a received one. */
+  private static Bundle toParcelledBundle(Bundle bundle) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      bundle.writeToParcel(parcel, 0);
+      parcel.setDataPosition(0);
+      return parcel.readBundle();
+    } finally {
+      parcel.recycle();
+    }
+  }
+
   private Pair<JobCallback, Bundle> extractCallback(Bundle bundle) {
     return extractor.extractCallback(bundle);
   }
@@ -17,15 +17,20 @@
 package com.firebase.jobdispatcher;
 
 import static android.content.Context.BIND_AUTO_CREATE;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
 import android.app.PendingIntent;
@@ -39,7 +44,9 @@ import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import com.firebase.jobdispatcher.ExecutionDelegator.JobFinishedCallback;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -82,6 +89,47 @@ public class GooglePlayDriverTest {
   public void tearDown() {
     GooglePlayReceiver.clearCallbacks();
     ExecutionDelegator.cleanServiceConnections();
+    GooglePlayDriver.clearSharedResources();
+    ScheduledJobIndex.clear();
+  }
+
+  @Test
+  public void constructor_doesNotCreateToken() {
+    Context context = mock(Context.class);
+
+    new GooglePlayDriver(context);
+
+    verify(context).getApplicationContext();
+    verifyNoMoreInteractions(context);
+  }
+
+  @Test
+  public void resources_areSharedWithinApplication() {
+    Context appContext = mock(Context.class);
+    Context first = mock(Context.class);
+    Context second = mock(Context.class);
+    when(first.getApplicationContext()).thenReturn(appContext);
+    when(second.getApplicationContext()).thenReturn(appContext);
+
+    assertSame(
+        new GooglePlayDriver(first).getValidator(), new GooglePlayDriver(second).getValidator());
+    assertNotSame(
+        new GooglePlayDriver(first).getValidator(),
+        new GooglePlayDriver(mock(Context.class)).getValidator());
+  }
+
+  @Test
+  public void requests_reuseToken() {
+    googlePlayDriver.cancel("foo");
+    googlePlayDriver.cancel("bar");
+    new GooglePlayDriver(mMockContext).cancelAll();
+
+    ArgumentCaptor<Intent> captor = ArgumentCaptor.forClass(Intent.class);
+    verify(mMockContext, times(3)).sendBroadcast(captor.capture());
+    Parcelable token = captor.getAllValues().get(0).getParcelableExtra("app");
+    assertNotNull(token);
+    assertSame(token, captor.getAllValues().get(1).getParcelableExtra("app"));
+    assertSame(token, captor.getAllValues().get(2).getParcelableExtra("app"));
   }
 
   @Test
@@ -193,6 +241,75 @@ public class GooglePlayDriverTest {
         ExecutionDelegator.getJobServiceConnection(invocation.getService()));
   }
 
+  @Test
+  public void scheduleAll_sendsBroadcastPerJob() {
+    List<Job> jobs = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      jobs.add(
+          TestUtil.getBuilderWithNoopValidator()
+              .setService(TestJobService.class)
+              .setTrigger(Trigger.executionWindow(0, 60))
+              .setTag("job" + i)
+              .build());
+    }
+
+    int[] results = googlePlayDriver.scheduleAll(jobs);
+
+    assertArrayEquals(
+        new int[] {
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+          FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS
+        },
+        results);
+    ArgumentCaptor<Intent> captor = ArgumentCaptor.forClass(Intent.class);
+    verify(mMockContext, times(3)).sendBroadcast(captor.capture());
+    for (int i = 0; i < 3; i++) {
+      Intent broadcast = captor.getAllValues().get(i);
+      assertEquals("SCHEDULE_TASK", broadcast.getStringExtra("scheduler_action"));
+      assertEquals("job" + i, broadcast.getStringExtra("tag"));
+    }
+  }
+
+  @Test
+  public void scheduleAll_whenRunning_onStopIsCalled() {
+    // simulate running job
+    Bundle bundle = TestUtil.getBundleForContentJobExecution();
+
+    JobCoder prefixedCoder = new JobCoder(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX);
+    JobInvocation invocation = prefixedCoder.decodeIntentBundle(bundle);
+    googlePlayReceiver.prepareJob(jobCallbackMock, bundle);
+
+    when(mMockContext.bindService(
+            any(Intent.class), serviceConnectionCaptor.capture(), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+    new ExecutionDelegator(mMockContext, callbackMock, constraintCheckerMock)
+        .executeJob(invocation);
+
+    Job running =
+        TestUtil.getBuilderWithNoopValidator()
+            .setService(TestJobService.class)
+            .setTrigger(invocation.getTrigger())
+            .setTag(invocation.getTag())
+            .build();
+    Job notRunning =
+        TestUtil.getBuilderWithNoopValidator()
+            .setService(TestJobService.class)
+            .setTrigger(Trigger.NOW)
+            .setTag("not running")
+            .build();
+
+    // reschedule request during the execution
+    googlePlayDriver.scheduleAll(Arrays.asList(notRunning, running));
+
+    verify(mMockContext, times(2)).sendBroadcast(any(Intent.class));
+
+    assertTrue(serviceConnectionCaptor.getValue().wasUnbound());
+    assertNull(
+        "JobServiceConnection should be removed.",
+        ExecutionDelegator.getJobServiceConnection(invocation.getService()));
+  }
+
   private ArgumentCaptor<Intent> mockPackageManagerInfo() {
     PackageManager packageManager = mock(PackageManager.class);
     when(mMockContext.getPackageManager()).thenReturn(packageManager);
@@ -222,6 +339,90 @@ public class GooglePlayDriverTest {
     assertEquals("foobar", broadcast.getStringExtra("tag"));
   }
 
+  @Test
+  public void cancelAll_sendsBroadcastPerTag() {
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS,
+        googlePlayDriver.cancelAll(Arrays.asList("foo", "bar")));
+
+    ArgumentCaptor<Intent> captor = ArgumentCaptor.forClass(Intent.class);
+    verify(mMockContext, times(2)).sendBroadcast(captor.capture());
+    List<Intent> broadcasts = captor.getAllValues();
+    assertEquals("foo", broadcasts.get(0).getStringExtra("tag"));
+    assertEquals("bar", broadcasts.get(1).getStringExtra("tag"));
+    for (Intent broadcast : broadcasts) {
+      assertEquals("CANCEL_TASK", broadcast.getStringExtra("scheduler_action"));
+      assertNotNull(broadcast.getParcelableExtra("component"));
+      assertNotNull(broadcast.getParcelableExtra("app"));
+    }
+  }
+
+  @Test
+  public void schedule_recurringContentUriJob_reusesRequest() {
+    googlePlayDriver.schedule(newRecurringContentUriJob("value"));
+    googlePlayDriver.schedule(newRecurringContentUriJob("value"));
+
+    List<Intent> broadcasts = captureBroadcasts(2);
+    assertSame(
+        broadcasts.get(0).getBundleExtra("extras"), broadcasts.get(1).getBundleExtra("extras"));
+    assertEquals("tag", broadcasts.get(1).getStringExtra("tag"));
+    assertEquals("SCHEDULE_TASK", broadcasts.get(1).getStringExtra("scheduler_action"));
+    assertNotNull(broadcasts.get(1).getParcelableExtra("app"));
+  }
+
+  @Test
+  public void schedule_changedContentUriJob_writesNewRequest() {
+    googlePlayDriver.schedule(newRecurringContentUriJob("value"));
+    googlePlayDriver.schedule(newRecurringContentUriJob("other value"));
+
+    List<Intent> broadcasts = captureBroadcasts(2);
+    Bundle extras = broadcasts.get(1).getBundleExtra("extras");
+    assertNotSame(broadcasts.get(0).getBundleExtra("extras"), extras);
+    assertEquals("other value", extras.getString("key"));
+  }
+
+  @Test
+  public void schedule_cachedRequest_unaffectedByChangesToTheExtras() {
+    Job job = newRecurringContentUriJob("value");
+    googlePlayDriver.schedule(job);
+    job.getExtras().putString("key", "changed");
+    googlePlayDriver.schedule(newRecurringContentUriJob("value"));
+
+    List<Intent> broadcasts = captureBroadcasts(2);
+    Bundle extras = broadcasts.get(1).getBundleExtra("extras");
+    assertSame(broadcasts.get(0).getBundleExtra("extras"), extras);
+    assertEquals("value", extras.getString("key"));
+  }
+
+  @Test
+  public void cancel_forgetsRequest() {
+    googlePlayDriver.schedule(newRecurringContentUriJob("value"));
+    googlePlayDriver.cancel("tag");
+    googlePlayDriver.schedule(newRecurringContentUriJob("value"));
+
+    List<Intent> broadcasts = captureBroadcasts(3);
+    assertNotSame(
+        broadcasts.get(0).getBundleExtra("extras"), broadcasts.get(2).getBundleExtra("extras"));
+  }
+
+  private List<Intent> captureBroadcasts(int count) {
+    ArgumentCaptor<Intent> captor = ArgumentCaptor.forClass(Intent.class);
+    verify(mMockContext, times(count)).sendBroadcast(captor.capture());
+    return captor.getAllValues();
+  }
+
+  private static Job newRecurringContentUriJob(String extra) {
+    Bundle extras = new Bundle();
+    extras.putString("key", extra);
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag("tag")
+        .setService(TestJobService.class)
+        .setTrigger(TestUtil.getContentUriTrigger())
+        .setRecurring(true)
+        .setExtras(extras)
+        .build();
+  }
+
   private void markBackendUnavailable() {
     driver.available = false;
   }
@@ -26,12 +26,15 @@ import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.app.AppOpsManager;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.Looper;
@@ -65,6 +68,7 @@ public class GooglePlayMessageHandlerTest {
 
   @Captor private ArgumentCaptor<IJobCallback> jobCallbackCaptor;
   @Captor private ArgumentCaptor<Bundle> bundleCaptor;
+  @Captor private ArgumentCaptor<BroadcastReceiver> receiverCaptor;
   @Mock private IRemoteJobService jobServiceMock;
   @Mock private IBinder iBinderMock;
   @Mock private ConstraintChecker constraintCheckerMock;
@@ -76,6 +80,7 @@ public class GooglePlayMessageHandlerTest {
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
+    GooglePlayMessageHandler.clearVerifiedSenders();
     handler = new GooglePlayMessageHandler(looper, receiverMock);
 
     when(constraintCheckerMock.areConstraintsSatisfied(any(JobInvocation.class))).thenReturn(true);
@@ -200,4 +205,57 @@ public class GooglePlayMessageHandlerTest {
 
     handler.handleMessage(message);
   }
+
+  @Test
+  public void handleMessage_cachesSenderVerification() throws Exception {
+    handler.handleMessage(newStopMessage(1000));
+    handler.handleMessage(newStopMessage(1000));
+    handler.handleMessage(newStopMessage(2000));
+
+    verify(appOpsManager, times(1)).checkPackage(1000, GooglePlayDriver.BACKEND_PACKAGE);
+    verify(appOpsManager, times(1)).checkPackage(2000, GooglePlayDriver.BACKEND_PACKAGE);
+  }
+
+  @Test
+  public void handleMessage_cachesRejectedSender() throws Exception {
+    doThrow(new SecurityException())
+        .when(appOpsManager)
+        .checkPackage(1000, GooglePlayDriver.BACKEND_PACKAGE);
+    handler.handleMessage(newStartMessage(1000));
+    handler.handleMessage(newStartMessage(1000));
+
+    verify(appOpsManager, times(1)).checkPackage(1000, GooglePlayDriver.BACKEND_PACKAGE);
+    verify(receiverMock, never())
+        .prepareJob(any(GooglePlayMessengerCallback.class), any(Bundle.class));
+  }
+
+  @Test
+  public void handleMessage_packageChangeClearsVerifiedSenders() throws Exception {
+    handler.handleMessage(newStopMessage(1000));
+    verify(contextMock).registerReceiver(receiverCaptor.capture(), any(IntentFilter.class));
+
+    receiverCaptor.getValue().onReceive(contextMock, new Intent(Intent.ACTION_PACKAGE_REPLACED));
+    handler.handleMessage(newStopMessage(1000));
+
+    verify(appOpsManager, times(2)).checkPackage(1000, GooglePlayDriver.BACKEND_PACKAGE);
+  }
+
+  private Message newStopMessage(int sendingUid) {
+    Message message = Message.obtain();
+    message.what = GooglePlayMessageHandler.MSG_STOP_EXEC;
+    message.replyTo = messengerMock;
+    message.sendingUid = sendingUid;
+    return message;
+  }
+
+  private Message newStartMessage(int sendingUid) {
+    Message message = Message.obtain();
+    message.what = GooglePlayMessageHandler.MSG_START_EXEC;
+    Bundle data = new Bundle();
+    data.putString(REQUEST_PARAM_TAG, "TAG");
+    message.setData(data);
+    message.replyTo = messengerMock;
+    message.sendingUid = sendingUid;
+    return message;
+  }
 }
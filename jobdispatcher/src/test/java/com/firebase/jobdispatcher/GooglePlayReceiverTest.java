@@ -17,6 +17,7 @@
 package com.firebase.jobdispatcher;
 
 import static android.content.Context.BIND_AUTO_CREATE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static com.firebase.jobdispatcher.TestUtil.encodeContentUriJob;
 import static com.firebase.jobdispatcher.TestUtil.encodeRecurringContentUriJob;
 import static com.firebase.jobdispatcher.TestUtil.getContentUriTrigger;
@@ -31,6 +32,7 @@ import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
@@ -56,6 +58,7 @@ import com.firebase.jobdispatcher.TestUtil.InspectableBinder;
 import com.google.android.gms.gcm.PendingCallback;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -67,8 +70,10 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 import org.robolectric.annotation.Implements;
+import org.robolectric.shadows.ShadowLooper;
 
 /** Tests for the {@link GooglePlayReceiver} class. */
 @RunWith(RobolectricTestRunner.class)
@@ -88,6 +93,14 @@ public class GooglePlayReceiverTest {
   @Implements(Messenger.class)
   public static class ShadowMessenger {}
 
+  private static final Executor DIRECT_EXECUTOR =
+      new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          command.run();
+        }
+      };
+
   private GooglePlayReceiver receiver;
 
   @Mock private Messenger messengerMock;
@@ -111,6 +124,10 @@ public class GooglePlayReceiverTest {
   @Before
   public void setUp() throws Exception {
     MockitoAnnotations.initMocks(this);
+    // Most tests check when the service stops itself, the idle delay is tested separately
+    GooglePlayReceiver.setIdleLingerMillis(0);
+    // Results are checked right after the calls that produce them
+    GooglePlayReceiver.setResultExecutor(DIRECT_EXECUTOR);
 
     receiver = spy(Robolectric.buildService(GooglePlayReceiver.class).create().get());
     when(contraintCheckerMock.areConstraintsSatisfied(any(JobInvocation.class))).thenReturn(true);
@@ -124,6 +141,9 @@ public class GooglePlayReceiverTest {
   public void tearDown() {
     GooglePlayReceiver.clearCallbacks();
     ExecutionDelegator.cleanServiceConnections();
+    ScheduledJobIndex.clear();
+    GooglePlayReceiver.setIdleLingerMillis(GooglePlayReceiver.DEFAULT_IDLE_LINGER_MILLIS);
+    GooglePlayReceiver.setResultExecutor(null);
   }
 
   @Test
@@ -184,6 +204,53 @@ public class GooglePlayReceiverTest {
         ExecutionDelegator.getJobServiceConnection(invocation.getService()));
   }
 
+  @Test
+  public void onCancel_stopJobAndSendResult() {
+    Bundle bundle = TestUtil.getBundleForContentJobExecution();
+    JobCoder prefixedCoder = new JobCoder(BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX);
+    JobInvocation invocation = prefixedCoder.decodeIntentBundle(bundle);
+
+    receiver.prepareJob(jobCallbackMock, bundle);
+    when(contextMock.bindService(
+            any(Intent.class), any(JobServiceConnection.class), eq(BIND_AUTO_CREATE)))
+        .thenReturn(true);
+    new ExecutionDelegator(contextMock, mock(JobFinishedCallback.class), contraintCheckerMock)
+        .executeJob(invocation);
+    verify(contextMock)
+        .bindService(any(Intent.class), jobServiceConnectionCaptor.capture(), eq(BIND_AUTO_CREATE));
+
+    GooglePlayReceiver.onCancel(Arrays.asList("other", invocation.getTag()));
+
+    assertFalse(jobServiceConnectionCaptor.getValue().hasJobInvocation(invocation));
+    verify(jobCallbackMock).jobFinished(JobService.RESULT_SUCCESS);
+
+    // The job's own result is no longer forwarded
+    receiver.onJobFinished(invocation, JobService.RESULT_FAIL_RETRY);
+    verify(jobCallbackMock, never()).jobFinished(JobService.RESULT_FAIL_RETRY);
+  }
+
+  @Test
+  public void onCancel_notRunning_noException() {
+    receiver.prepareJob(jobCallbackMock, TestUtil.getBundleForContentJobExecution());
+
+    GooglePlayReceiver.onCancel(Arrays.asList("other"));
+
+    verifyZeroInteractions(jobCallbackMock);
+  }
+
+  @Test
+  public void prepareJob_addsToIndex_untilFinished() {
+    JobInvocation jobInvocation =
+        receiver.prepareJob(callbackMock, TestUtil.getBundleForContentJobExecution());
+    assertEquals(
+        Arrays.asList(jobInvocation.getTag()),
+        ScheduledJobIndex.findByService(mock(Driver.class), jobInvocation.getService()));
+
+    receiver.onJobFinished(jobInvocation, JobService.RESULT_SUCCESS);
+
+    assertEquals(0, ScheduledJobIndex.size());
+  }
+
   @Test
   public void onJobFinished_unknownJobCallbackIsNotPresent_ignoreNoException() {
     receiver.onJobFinished(jobInvocationBuilder.build(), JobService.RESULT_SUCCESS);
@@ -222,6 +289,38 @@ public class GooglePlayReceiverTest {
     TestUtil.assertJobsEqual(jobInvocation, rescheduledJob);
   }
 
+  @Test
+  public void onJobFinished_successRecurringContentJob_rescheduleWithoutValidation() {
+    JobValidator validator = mock(JobValidator.class);
+    when(validator.validate(any(JobParameters.class))).thenReturn(Arrays.asList("invalid"));
+    receiver.setValidationEnforcer(new ValidationEnforcer(validator));
+    JobInvocation jobInvocation =
+        receiver.prepareJob(callbackMock, getBundleForContentJobExecutionRecurring());
+
+    receiver.onJobFinished(jobInvocation, JobService.RESULT_SUCCESS);
+
+    verify(driverMock).schedule(jobArgumentCaptor.capture());
+    assertTrue(jobArgumentCaptor.getValue().shouldReplaceCurrent());
+    verify(validator, never()).validate(any(JobParameters.class));
+  }
+
+  @Test
+  public void onJobFinished_undecodableRecurringContentJob_sendResult() {
+    receiver.prepareJob(callbackMock, getBundleForContentJobExecutionRecurring());
+    Bundle broken = encodeRecurringContentUriJob(getContentUriTrigger(), TestUtil.JOB_CODER);
+    broken.putIntArray(
+        BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX
+            + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY,
+        new int[1]);
+    JobInvocation finished = GooglePlayReceiver.getJobCoder().decodeLazily(broken);
+
+    receiver.onJobFinished(finished, JobService.RESULT_SUCCESS);
+
+    // Can't reschedule a job that can't be decoded, so the result is passed on instead
+    verify(callbackMock).jobFinished(JobService.RESULT_SUCCESS);
+    verifyZeroInteractions(driverMock);
+  }
+
   @Test
   public void onJobFinished_failWithRetryRecurringContentJob_sendResult() {
     JobInvocation jobInvocation =
@@ -326,6 +425,27 @@ public class GooglePlayReceiverTest {
     verify(receiver).stopSelf(101);
   }
 
+  @Test
+  public void onStartCommand_initAction_clearsScheduleCache() {
+    Driver backend = mock(Driver.class);
+    DeduplicatingDriver deduplicatingDriver =
+        new DeduplicatingDriver(RuntimeEnvironment.application, backend);
+    Job job =
+        TestUtil.getBuilderWithNoopValidator()
+            .setTag("tag")
+            .setService(TestJobService.class)
+            .setTrigger(Trigger.executionWindow(0, 60))
+            .setRecurring(true)
+            .build();
+    deduplicatingDriver.schedule(job);
+
+    receiver.onStartCommand(
+        new Intent("com.google.android.gms.gcm.SERVICE_ACTION_INITIALIZE"), 0, 101);
+    deduplicatingDriver.schedule(job);
+
+    verify(backend, times(2)).schedule(job);
+  }
+
   @Test
   public void onStartCommand_unknownAction() {
     Intent unknownIntent = new Intent("com.example.foo.bar");
@@ -375,6 +495,76 @@ public class GooglePlayReceiverTest {
     verify(receiver).stopSelf(101);
   }
 
+  @Test
+  public void onStartCommand_idle_stopsAfterLingerDelay() {
+    GooglePlayReceiver.setIdleLingerMillis(500);
+
+    receiver.onStartCommand(null, 0, 101);
+    ShadowLooper.idleMainLooper(499, MILLISECONDS);
+    verify(receiver, never()).stopSelf(anyInt());
+
+    ShadowLooper.idleMainLooper(1, MILLISECONDS);
+    verify(receiver).stopSelf(101);
+  }
+
+  @Test
+  public void onStartCommand_newWorkWhileLingering_cancelsStop() {
+    GooglePlayReceiver.setIdleLingerMillis(500);
+    receiver.onStartCommand(null, 0, 101);
+    ShadowLooper.idleMainLooper(400, MILLISECONDS);
+
+    JobInvocation job =
+        receiver.prepareJob(callbackMock, TestUtil.getBundleForContentJobExecution());
+    ShadowLooper.idleMainLooper(500, MILLISECONDS);
+    verify(receiver, never()).stopSelf(anyInt());
+
+    receiver.onJobFinished(job, JobService.RESULT_SUCCESS);
+    receiver.onStartCommand(null, 0, 102);
+    ShadowLooper.idleMainLooper(400, MILLISECONDS);
+    verify(receiver, never()).stopSelf(anyInt());
+
+    ShadowLooper.idleMainLooper(100, MILLISECONDS);
+    verify(receiver).stopSelf(102);
+  }
+
+  @Test
+  public void onJobFinished_stopsOnceResultIsSent() {
+    final ArrayList<Runnable> senderTasks = new ArrayList<>();
+    GooglePlayReceiver.setResultExecutor(
+        new Executor() {
+          @Override
+          public void execute(Runnable command) {
+            senderTasks.add(command);
+          }
+        });
+    JobInvocation job =
+        receiver.prepareJob(callbackMock, TestUtil.getBundleForContentJobExecution());
+
+    receiver.onJobFinished(job, JobService.RESULT_SUCCESS);
+    verify(receiver, never()).stopSelf(anyInt());
+
+    senderTasks.get(0).run();
+    InOrder inOrder = inOrder(callbackMock, receiver);
+    inOrder.verify(callbackMock).jobFinished(JobService.RESULT_SUCCESS);
+    inOrder.verify(receiver).stopSelf(anyInt());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void setIdleLingerMillis_negative() {
+    GooglePlayReceiver.setIdleLingerMillis(-1);
+  }
+
+  @Test
+  public void lifecycle_isCounted() {
+    int created = GooglePlayReceiver.getCreateCount();
+    int destroyed = GooglePlayReceiver.getDestroyCount();
+
+    Robolectric.buildService(GooglePlayReceiver.class).create().destroy();
+
+    assertEquals(created + 1, GooglePlayReceiver.getCreateCount());
+    assertEquals(destroyed + 1, GooglePlayReceiver.getDestroyCount());
+  }
+
   private static void assertResultWasStartNotSticky(int result) {
     assertEquals(
         "Result for onStartCommand wasn't START_NOT_STICKY", Service.START_NOT_STICKY, result);
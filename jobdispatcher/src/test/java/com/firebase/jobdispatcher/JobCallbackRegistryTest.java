@@ -0,0 +1,158 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for the {@link JobCallbackRegistry} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class JobCallbackRegistryTest {
+
+  private static final int CONCURRENT_CALLBACKS = 5000;
+  private static final int THREADS = 4;
+
+  @Mock private JobCallback callback;
+  @Mock private JobCallback otherCallback;
+
+  private final JobCallbackRegistry registry = new JobCallbackRegistry();
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Test
+  public void putAndRemove() {
+    assertTrue(registry.isEmpty());
+
+    registry.put("service", "tag", callback);
+
+    assertEquals(1, registry.size());
+    assertTrue(registry.contains("service", "tag"));
+    assertFalse(registry.contains("service", "other"));
+    assertFalse(registry.contains("other", "tag"));
+    assertSame(callback, registry.remove("service", "tag"));
+    assertNull(registry.remove("service", "tag"));
+    assertTrue(registry.isEmpty());
+  }
+
+  @Test
+  public void put_replacesExistingCallback() {
+    registry.put("service", "tag", callback);
+    registry.put("service", "tag", otherCallback);
+
+    assertEquals(1, registry.size());
+    assertSame(otherCallback, registry.remove("service", "tag"));
+    assertTrue(registry.isEmpty());
+  }
+
+  @Test
+  public void removeTags_matchesAllServices() {
+    registry.put("first", "tag", callback);
+    registry.put("second", "tag", otherCallback);
+    registry.put("first", "other", callback);
+
+    List<JobCallbackRegistry.Key> keys = new ArrayList<>();
+    List<JobCallback> callbacks = new ArrayList<>();
+    registry.removeTags(Arrays.asList("tag", "unknown"), keys, callbacks);
+
+    assertEquals(2, keys.size());
+    assertEquals(2, callbacks.size());
+    for (int i = 0; i < keys.size(); i++) {
+      assertEquals("tag", keys.get(i).tag);
+      assertSame(keys.get(i).service.equals("first") ? callback : otherCallback, callbacks.get(i));
+    }
+    assertEquals(1, registry.size());
+    assertTrue(registry.contains("first", "other"));
+  }
+
+  @Test
+  public void clear() {
+    registry.put("service", "tag", callback);
+    registry.put("service", "other", callback);
+
+    registry.clear();
+
+    assertTrue(registry.isEmpty());
+    assertFalse(registry.contains("service", "tag"));
+  }
+
+  @Test
+  public void concurrentCallbacks_areCountedCorrectly() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Callable<Void>> putAll = new ArrayList<>(THREADS);
+      List<Callable<Void>> removeAll = new ArrayList<>(THREADS);
+      for (int t = 0; t < THREADS; t++) {
+        final String service = "service" + t;
+        putAll.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() {
+                for (int i = 0; i < CONCURRENT_CALLBACKS / THREADS; i++) {
+                  registry.put(service, "tag" + i, callback);
+                }
+                return null;
+              }
+            });
+        removeAll.add(
+            new Callable<Void>() {
+              @Override
+              public Void call() {
+                for (int i = 0; i < CONCURRENT_CALLBACKS / THREADS; i++) {
+                  assertSame(callback, registry.remove(service, "tag" + i));
+                }
+                return null;
+              }
+            });
+      }
+
+      for (Future<Void> future : executor.invokeAll(putAll, 10, SECONDS)) {
+        future.get();
+      }
+      assertEquals(CONCURRENT_CALLBACKS, registry.size());
+
+      for (Future<Void> future : executor.invokeAll(removeAll, 10, SECONDS)) {
+        future.get();
+      }
+      assertTrue(registry.isEmpty());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
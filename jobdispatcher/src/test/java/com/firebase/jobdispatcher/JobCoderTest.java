@@ -19,16 +19,26 @@ package com.firebase.jobdispatcher;
 import static com.firebase.jobdispatcher.TestUtil.assertBundlesEqual;
 import static com.firebase.jobdispatcher.TestUtil.encodeContentUriJob;
 import static com.firebase.jobdispatcher.TestUtil.getContentUriTrigger;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Parcel;
 import android.provider.ContactsContract;
 import android.provider.MediaStore.Images.Media;
 import com.firebase.jobdispatcher.Job.Builder;
 import com.firebase.jobdispatcher.JobTrigger.ContentUriTrigger;
+import com.firebase.jobdispatcher.JobTrigger.ExecutionWindowTrigger;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import org.junit.Before;
 import org.junit.Test;
@@ -41,6 +51,7 @@ import org.robolectric.annotation.Config;
 @Config(manifest = Config.NONE, sdk = 23)
 public class JobCoderTest {
   private final JobCoder coder = new JobCoder(PREFIX);
+  private final JobCoder compactCoder = new JobCoder(PREFIX, JobCoder.FORMAT_COMPACT);
   private static final String PREFIX = "prefix";
   private Builder builder;
 
@@ -123,11 +134,52 @@ public class JobCoderTest {
     int triggerType = encode.getInt(PREFIX + BundleProtocol.PACKED_PARAM_TRIGGER_TYPE);
     assertEquals("Trigger type", BundleProtocol.TRIGGER_TYPE_CONTENT_URI, triggerType);
 
-    String json = encode.getString(PREFIX + BundleProtocol.PACKED_PARAM_OBSERVED_URI);
-    String expectedJson =
+    assertArrayEquals(
+        "Flags",
+        new int[] {ObservedUri.Flags.FLAG_NOTIFY_FOR_DESCENDANTS, 0},
+        encode.getIntArray(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY));
+    assertArrayEquals(
+        "URIs",
+        new String[] {
+          ContactsContract.AUTHORITY_URI.toString(), Media.EXTERNAL_CONTENT_URI.toString()
+        },
+        encode.getStringArray(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_ARRAY));
+    assertNull("Json trigger", encode.getString(PREFIX + BundleProtocol.PACKED_PARAM_OBSERVED_URI));
+  }
+
+  @Test
+  public void decode_legacyJsonContentUriTrigger() {
+    ContentUriTrigger contentUriTrigger = TestUtil.getContentUriTrigger();
+    Bundle bundle = TestUtil.encodeContentUriJob(contentUriTrigger, coder);
+    bundle.remove(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY);
+    bundle.remove(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_ARRAY);
+    bundle.putString(
+        PREFIX + BundleProtocol.PACKED_PARAM_OBSERVED_URI,
         "{\"uri_flags\":[1,0],\"uris\":[\"content:\\/\\/com.android.contacts"
-            + "\",\"content:\\/\\/media\\/external\\/images\\/media\"]}";
-    assertEquals("Json trigger", expectedJson, json);
+            + "\",\"content:\\/\\/media\\/external\\/images\\/media\"]}");
+
+    JobInvocation decode = coder.decode(bundle).build();
+
+    ContentUriTrigger trigger = (ContentUriTrigger) decode.getTrigger();
+    assertEquals(contentUriTrigger.getUris(), trigger.getUris());
+  }
+
+  @Test
+  public void decode_malformedLegacyJsonContentUriTriggerFails() {
+    Bundle bundle = TestUtil.encodeContentUriJob(TestUtil.getContentUriTrigger(), coder);
+    bundle.remove(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY);
+    bundle.remove(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_ARRAY);
+    bundle.putString(PREFIX + BundleProtocol.PACKED_PARAM_OBSERVED_URI, "{\"uri_flags\":[1,0]}");
+
+    assertNull(coder.decode(bundle));
+  }
+
+  @Test
+  public void decode_mismatchedContentUriArraysFails() {
+    Bundle bundle = TestUtil.encodeContentUriJob(TestUtil.getContentUriTrigger(), coder);
+    bundle.putIntArray(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY, new int[1]);
+
+    assertNull(coder.decode(bundle));
   }
 
   @Test
@@ -171,4 +223,281 @@ public class JobCoderTest {
         RetryStrategy.DEFAULT_EXPONENTIAL.getPolicy(),
         jobInvocation.getRetryStrategy().getPolicy());
   }
+
+  @Test
+  public void compact_codingIsLossless() {
+    for (JobParameters input : TestUtil.getJobCombinations(builder)) {
+      TestUtil.assertJobsEqual(
+          input, compactCoder.decode(compactCoder.encode(input, new Bundle())).build());
+    }
+  }
+
+  @Test
+  public void compact_writesSingleKey() {
+    Bundle extras = new Bundle();
+    extras.putString("foo", "bar");
+    builder.setExtras(extras);
+
+    Bundle encoded = compactCoder.encode(setValidBuilderDefaults(builder).build(), new Bundle());
+
+    assertEquals(2, encoded.size());
+    assertNotNull(encoded.getByteArray(PREFIX + BundleProtocol.PACKED_PARAM_COMPACT_SPEC));
+    assertEquals("bar", encoded.getString("foo"));
+  }
+
+  @Test
+  public void compact_codingForExtras() {
+    Bundle extras = new Bundle();
+    extras.putString("foo", "bar");
+    builder.setExtras(extras);
+
+    Bundle deserializedExtras =
+        compactCoder
+            .decode(compactCoder.encode(setValidBuilderDefaults(builder).build(), new Bundle()))
+            .build()
+            .getExtras();
+
+    assertBundlesEqual(extras, deserializedExtras);
+  }
+
+  @Test
+  public void compact_contentUriTrigger() {
+    ContentUriTrigger contentUriTrigger = TestUtil.getContentUriTrigger();
+    Bundle bundle = TestUtil.encodeContentUriJob(contentUriTrigger, compactCoder);
+    JobInvocation decode = compactCoder.decode(bundle).build();
+    ContentUriTrigger trigger = (ContentUriTrigger) decode.getTrigger();
+    assertEquals(contentUriTrigger.getUris(), trigger.getUris());
+  }
+
+  @Test
+  public void compact_failsWhenMissingFields() {
+    assertNull(
+        "Expected null tag to cause decoding to fail",
+        compactCoder.decode(
+            compactCoder.encode(
+                setValidBuilderDefaults(builder).setTag(null).build(), new Bundle())));
+
+    assertNull(
+        "Expected null service to cause decoding to fail",
+        compactCoder.decode(
+            compactCoder.encode(
+                setValidBuilderDefaults(builder).setService(null).build(), new Bundle())));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void compact_failsUnsupportedTrigger() {
+    compactCoder.encode(setValidBuilderDefaults(builder).setTrigger(null).build(), new Bundle());
+  }
+
+  @Test
+  public void compact_ignoresMissingRetryStrategy() {
+    JobInvocation decoded =
+        compactCoder
+            .decode(
+                compactCoder.encode(
+                    setValidBuilderDefaults(builder).setRetryStrategy(null).build(), new Bundle()))
+            .build();
+
+    TestUtil.assertRetryStrategiesEqual(
+        RetryStrategy.DEFAULT_EXPONENTIAL, decoded.getRetryStrategy());
+  }
+
+  @Test
+  public void compact_unknownVersionFailsDecoding() {
+    Bundle encoded = compactCoder.encode(setValidBuilderDefaults(builder).build(), new Bundle());
+    byte[] spec = encoded.getByteArray(PREFIX + BundleProtocol.PACKED_PARAM_COMPACT_SPEC);
+    spec[0] = (byte) (CompactJobCodec.VERSION + 1);
+
+    assertNull(compactCoder.decode(encoded));
+  }
+
+  @Test
+  public void compact_decodesVersionOne() {
+    // Written by version 1 of the codec. Must stay decodable after VERSION is bumped, since
+    // JobScheduler and Google Play services persist encoded jobs across app updates.
+    byte[] spec = {
+      1, 13, 2, 0, 0, 0, 2, 0, 3, 116, 97, 103, 0, 7, 115, 101, 114, 118, 105, 99, 101, 1, 0, 0, 0,
+      0, 0, 0, 0, 60, 1, 0, 0, 0, 30, 0, 0, 14, 16
+    };
+
+    JobInvocation job = CompactJobCodec.decode(spec).build();
+
+    assertEquals("tag", job.getTag());
+    assertEquals("service", job.getService());
+    assertTrue(job.isRecurring());
+    assertFalse(job.shouldReplaceCurrent());
+    assertEquals(Lifetime.FOREVER, job.getLifetime());
+    assertArrayEquals(new int[] {Constraint.ON_ANY_NETWORK}, job.getConstraints());
+    ExecutionWindowTrigger trigger = (ExecutionWindowTrigger) job.getTrigger();
+    assertEquals(0, trigger.getWindowStart());
+    assertEquals(60, trigger.getWindowEnd());
+    assertEquals(RetryStrategy.RETRY_POLICY_EXPONENTIAL, job.getRetryStrategy().getPolicy());
+    assertEquals(30, job.getRetryStrategy().getInitialBackoff());
+    assertEquals(3600, job.getRetryStrategy().getMaximumBackoff());
+    assertTrue(CompactJobCodec.decodeRecurring(spec));
+  }
+
+  @Test
+  public void compact_truncatedDataFailsDecoding() {
+    Bundle encoded = compactCoder.encode(setValidBuilderDefaults(builder).build(), new Bundle());
+    byte[] spec = encoded.getByteArray(PREFIX + BundleProtocol.PACKED_PARAM_COMPACT_SPEC);
+    byte[] truncated = new byte[spec.length / 2];
+    System.arraycopy(spec, 0, truncated, 0, truncated.length);
+    encoded.putByteArray(PREFIX + BundleProtocol.PACKED_PARAM_COMPACT_SPEC, truncated);
+
+    assertNull(compactCoder.decode(encoded));
+  }
+
+  @Test
+  public void compact_invalidWindowFailsDecoding() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = writeCompactHeader(bytes);
+    out.writeByte(BundleProtocol.TRIGGER_TYPE_EXECUTION_WINDOW);
+    out.writeInt(10);
+    out.writeInt(5);
+    writeCompactRetryStrategy(out);
+
+    assertNull(CompactJobCodec.decode(bytes.toByteArray()));
+  }
+
+  @Test
+  public void compact_invalidUriCountFailsDecoding() throws IOException {
+    for (int count : new int[] {-1, 0, Integer.MAX_VALUE}) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = writeCompactHeader(bytes);
+      out.writeByte(BundleProtocol.TRIGGER_TYPE_CONTENT_URI);
+      out.writeInt(count);
+      writeCompactRetryStrategy(out);
+
+      assertNull("count " + count, CompactJobCodec.decode(bytes.toByteArray()));
+    }
+  }
+
+  @Test
+  public void decode_readsEitherFormat() {
+    for (JobParameters input : TestUtil.getJobCombinations(builder)) {
+      TestUtil.assertJobsEqual(
+          input, coder.decode(compactCoder.encode(input, new Bundle())).build());
+      TestUtil.assertJobsEqual(
+          input, compactCoder.decode(coder.encode(input, new Bundle())).build());
+    }
+  }
+
+  @Test
+  public void compact_isSmallerWhenParceled() {
+    JobParameters job =
+        setValidBuilderDefaults(builder)
+            .setTrigger(TestUtil.getContentUriTrigger())
+            .setRecurring(true)
+            .setConstraints(Constraint.ON_UNMETERED_NETWORK, Constraint.DEVICE_CHARGING)
+            .build();
+
+    int legacySize = parceledSize(coder.encode(job, new Bundle()));
+    int compactSize = parceledSize(compactCoder.encode(job, new Bundle()));
+
+    assertTrue(
+        "Expected compact (" + compactSize + ") < legacy (" + legacySize + ")",
+        compactSize < legacySize);
+  }
+
+  @Test
+  public void decodeLazily_isLossless() {
+    for (JobCoder jobCoder : new JobCoder[] {coder, compactCoder}) {
+      for (JobParameters input : TestUtil.getJobCombinations(builder)) {
+        TestUtil.assertJobsEqual(
+            input, jobCoder.decodeLazily(jobCoder.encode(input, new Bundle())));
+      }
+    }
+  }
+
+  @Test
+  public void decodeLazily_onlyDecodesTagAndServiceUpFront() {
+    Bundle encoded = TestUtil.encodeContentUriJob(TestUtil.getContentUriTrigger(), coder);
+    encoded.putIntArray(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY, new int[1]);
+
+    JobInvocation invocation = coder.decodeLazily(encoded);
+
+    assertEquals("TAG", invocation.getTag());
+    assertEquals(TestJobService.class.getName(), invocation.getService());
+    // The broken trigger is only noticed (and logged) on access
+    assertFalse(invocation.isDecodable());
+    assertSame(Trigger.NOW, invocation.getTrigger());
+    assertSame(RetryStrategy.DEFAULT_EXPONENTIAL, invocation.getRetryStrategy());
+  }
+
+  @Test
+  public void decodeLazily_readsRecurringAndTriggerTypeWithoutDecoding() {
+    Bundle encoded = TestUtil.encodeRecurringContentUriJob(TestUtil.getContentUriTrigger(), coder);
+    encoded.putIntArray(PREFIX + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY, new int[1]);
+
+    JobInvocation invocation = coder.decodeLazily(encoded);
+
+    assertTrue(invocation.isRecurring());
+    assertTrue(invocation.hasContentUriTrigger());
+    assertFalse(invocation.isDecodable());
+  }
+
+  @Test
+  public void decodeRecurringAndTriggerType_matchFullDecode() {
+    for (JobCoder jobCoder : new JobCoder[] {coder, compactCoder}) {
+      for (JobParameters input : TestUtil.getJobCombinations(builder)) {
+        JobInvocation invocation = jobCoder.decodeLazily(jobCoder.encode(input, new Bundle()));
+
+        assertEquals(input.isRecurring(), invocation.isRecurring());
+        assertEquals(
+            input.getTrigger() instanceof ContentUriTrigger, invocation.hasContentUriTrigger());
+      }
+    }
+  }
+
+  @Test
+  public void decodeLazily_failsWhenMissingFields() {
+    for (JobCoder jobCoder : new JobCoder[] {coder, compactCoder}) {
+      assertNull(
+          "Expected null tag to cause decoding to fail",
+          jobCoder.decodeLazily(
+              jobCoder.encode(
+                  setValidBuilderDefaults(builder).setTag(null).build(), new Bundle())));
+
+      assertNull(
+          "Expected null service to cause decoding to fail",
+          jobCoder.decodeLazily(
+              jobCoder.encode(
+                  setValidBuilderDefaults(builder).setService(null).build(), new Bundle())));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void decodeLazily_throwsOnNullBundle() {
+    coder.decodeLazily(null);
+  }
+
+  /** Writes the fields of a compact job that come before its trigger. */
+  private static DataOutputStream writeCompactHeader(ByteArrayOutputStream bytes)
+      throws IOException {
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(CompactJobCodec.VERSION);
+    out.writeByte(1 << 2 | 1 << 3); // has tag, has service
+    out.writeByte(Lifetime.UNTIL_NEXT_BOOT);
+    out.writeInt(0); // constraints
+    out.writeUTF("tag");
+    out.writeUTF("service");
+    return out;
+  }
+
+  private static void writeCompactRetryStrategy(DataOutputStream out) throws IOException {
+    out.writeByte(RetryStrategy.RETRY_POLICY_EXPONENTIAL);
+    out.writeInt(30);
+    out.writeInt(3600);
+  }
+
+  private static int parceledSize(Bundle bundle) {
+    Parcel parcel = Parcel.obtain();
+    try {
+      parcel.writeBundle(bundle);
+      return parcel.dataSize();
+    } finally {
+      parcel.recycle();
+    }
+  }
 }
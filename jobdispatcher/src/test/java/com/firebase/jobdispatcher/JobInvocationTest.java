@@ -20,6 +20,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import android.os.Bundle;
@@ -67,6 +68,45 @@ public class JobInvocationTest {
     assertEquals(1L, extras.getLong("test"));
   }
 
+  @Test
+  public void createLazily_equalsEagerlyDecoded() {
+    JobCoder coder = GooglePlayReceiver.getJobCoder();
+    JobInvocation eager = builder.build();
+    JobInvocation lazy =
+        JobInvocation.createLazily(
+            eager.getTag(), eager.getService(), coder.encode(eager, new Bundle()), coder);
+
+    assertEquals(eager, lazy);
+    assertEquals(eager.hashCode(), lazy.hashCode());
+    assertEquals(eager.getTrigger(), lazy.getTrigger());
+  }
+
+  @Test
+  public void createLazily_undecodable_returnsDefaults() {
+    Bundle data = new Bundle();
+    data.putString("unrelated", "value");
+    JobInvocation lazy =
+        JobInvocation.createLazily("tag", "service", data, GooglePlayReceiver.getJobCoder());
+
+    assertFalse(lazy.isDecodable());
+    assertSame(Trigger.NOW, lazy.getTrigger());
+    assertSame(RetryStrategy.DEFAULT_EXPONENTIAL, lazy.getRetryStrategy());
+    assertEquals(0, lazy.getConstraints().length);
+    assertNotNull(lazy.getExtras());
+  }
+
+  @Test
+  public void createLazily_decodesRecurringOnce() {
+    JobCoder coder = GooglePlayReceiver.getJobCoder();
+    Bundle data = coder.encode(builder.setRecurring(true).build(), new Bundle());
+    JobInvocation lazy = JobInvocation.createLazily("tag", "service", data, coder);
+    assertTrue(lazy.isRecurring());
+
+    // Not read again, so it doesn't matter that the data is gone
+    data.clear();
+    assertTrue(lazy.isRecurring());
+  }
+
   @Test
   public void contract_hashCode_equals() {
     JobInvocation jobInvocation = builder.build();
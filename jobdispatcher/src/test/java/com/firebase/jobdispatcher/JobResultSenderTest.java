@@ -0,0 +1,156 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for the {@link JobResultSender} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class JobResultSenderTest {
+
+  @Mock private JobCallback callback;
+  @Mock private JobCallback otherCallback;
+  @Mock private Runnable task;
+
+  private final QueueExecutor executor = new QueueExecutor();
+  private final JobResultSender sender = new JobResultSender(executor);
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+  }
+
+  @Test
+  public void send_isDeferredToExecutor() {
+    sender.send(callback, JobService.RESULT_SUCCESS);
+
+    verifyZeroInteractions(callback);
+    executor.runAll();
+    verify(callback).jobFinished(JobService.RESULT_SUCCESS);
+  }
+
+  @Test
+  public void send_burstIsFlushedInOneTaskInOrder() {
+    sender.send(callback, JobService.RESULT_SUCCESS);
+    sender.send(otherCallback, JobService.RESULT_FAIL_RETRY);
+    sender.send(callback, JobService.RESULT_FAIL_NORETRY);
+
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+
+    InOrder inOrder = inOrder(callback, otherCallback);
+    inOrder.verify(callback).jobFinished(JobService.RESULT_SUCCESS);
+    inOrder.verify(otherCallback).jobFinished(JobService.RESULT_FAIL_RETRY);
+    inOrder.verify(callback).jobFinished(JobService.RESULT_FAIL_NORETRY);
+  }
+
+  @Test
+  public void send_afterFlushSchedulesAnotherFlush() {
+    sender.send(callback, JobService.RESULT_SUCCESS);
+    executor.runAll();
+
+    sender.send(otherCallback, JobService.RESULT_SUCCESS);
+    assertEquals(1, executor.tasks.size());
+    executor.runAll();
+    verify(otherCallback).jobFinished(JobService.RESULT_SUCCESS);
+  }
+
+  @Test
+  public void send_failingCallbackDoesNotBlockOthers() {
+    doThrow(new RuntimeException("remote died"))
+        .when(callback)
+        .jobFinished(JobService.RESULT_SUCCESS);
+
+    sender.send(callback, JobService.RESULT_SUCCESS);
+    sender.send(otherCallback, JobService.RESULT_SUCCESS);
+    executor.runAll();
+
+    verify(otherCallback).jobFinished(JobService.RESULT_SUCCESS);
+  }
+
+  @Test
+  public void runWhenSent_runsAfterQueuedResults() {
+    sender.send(callback, JobService.RESULT_SUCCESS);
+    sender.runWhenSent(task);
+
+    verifyZeroInteractions(task);
+    executor.runAll();
+
+    InOrder inOrder = inOrder(callback, task);
+    inOrder.verify(callback).jobFinished(JobService.RESULT_SUCCESS);
+    inOrder.verify(task).run();
+  }
+
+  @Test
+  public void create_sendsOffCallerThread() throws Exception {
+    final AtomicReference<Thread> senderThread = new AtomicReference<>();
+    final CountDownLatch sent = new CountDownLatch(1);
+
+    JobResultSender.create()
+        .send(
+            new JobCallback() {
+              @Override
+              public void jobFinished(int status) {
+                senderThread.set(Thread.currentThread());
+                sent.countDown();
+              }
+            },
+            JobService.RESULT_SUCCESS);
+
+    assertTrue(sent.await(5, TimeUnit.SECONDS));
+    assertNotSame(Thread.currentThread(), senderThread.get());
+  }
+
+  /** Holds on to submitted tasks until {@link #runAll()} is called. */
+  private static final class QueueExecutor implements Executor {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public void execute(Runnable task) {
+      tasks.add(task);
+    }
+
+    void runAll() {
+      Runnable task;
+      while ((task = tasks.poll()) != null) {
+        task.run();
+      }
+    }
+  }
+}
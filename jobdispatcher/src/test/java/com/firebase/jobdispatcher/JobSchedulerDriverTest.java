@@ -0,0 +1,389 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+/** Tests for the {@link JobSchedulerDriver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class JobSchedulerDriverTest {
+
+  private JobScheduler scheduler;
+  private JobSchedulerDriver driver;
+
+  @Before
+  public void setUp() {
+    Context context = RuntimeEnvironment.application;
+    scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    driver = new JobSchedulerDriver(context);
+  }
+
+  @Test
+  public void isAvailable() {
+    assertTrue(driver.isAvailable());
+  }
+
+  @Test
+  public void schedule_now_runsWithoutDelay() {
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+        driver.schedule(newBuilder("tag", Trigger.NOW).build()));
+
+    JobInfo jobInfo = getPendingJob("tag");
+    assertEquals(
+        new ComponentName(RuntimeEnvironment.application, JobSchedulerReceiver.class),
+        jobInfo.getService());
+    assertTrue(jobInfo.hasLateConstraint());
+    assertEquals(0, jobInfo.getMaxExecutionDelayMillis());
+    assertFalse(jobInfo.isPeriodic());
+  }
+
+  @Test
+  public void schedule_nowWithConstraints_waitsForConstraints() {
+    driver.schedule(
+        newBuilder("tag", Trigger.NOW).setConstraints(Constraint.ON_ANY_NETWORK).build());
+
+    JobInfo jobInfo = getPendingJob("tag");
+    assertFalse(jobInfo.hasLateConstraint());
+    assertEquals(JobInfo.NETWORK_TYPE_ANY, jobInfo.getNetworkType());
+  }
+
+  @Test
+  public void schedule_oneOffWindow() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(10, 30)).build());
+
+    JobInfo jobInfo = getPendingJob("tag");
+    assertFalse(jobInfo.isPeriodic());
+    assertEquals(10_000, jobInfo.getMinLatencyMillis());
+    assertEquals(30_000, jobInfo.getMaxExecutionDelayMillis());
+  }
+
+  @Test
+  public void schedule_recurringWindow() {
+    driver.schedule(
+        newBuilder("tag", Trigger.executionWindow(3000, 3600)).setRecurring(true).build());
+
+    JobInfo jobInfo = getPendingJob("tag");
+    assertTrue(jobInfo.isPeriodic());
+    assertEquals(3_600_000, jobInfo.getIntervalMillis());
+  }
+
+  @Test
+  public void schedule_constraints() {
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+        driver.schedule(
+            newBuilder("tag", Trigger.NOW)
+                .setConstraints(
+                    Constraint.ON_UNMETERED_NETWORK,
+                    Constraint.DEVICE_CHARGING,
+                    Constraint.DEVICE_IDLE)
+                .build()));
+
+    JobInfo jobInfo = getPendingJob("tag");
+    assertEquals(JobInfo.NETWORK_TYPE_UNMETERED, jobInfo.getNetworkType());
+    assertTrue(jobInfo.isRequireCharging());
+    assertTrue(jobInfo.isRequireDeviceIdle());
+  }
+
+  @Test
+  public void schedule_retryStrategyAndLifetime() {
+    driver.schedule(
+        newBuilder("tag", Trigger.NOW)
+            .setRetryStrategy(new RetryStrategy(RetryStrategy.RETRY_POLICY_LINEAR, 45, 300))
+            .setLifetime(Lifetime.FOREVER)
+            .build());
+
+    JobInfo jobInfo = getPendingJob("tag");
+    assertEquals(JobInfo.BACKOFF_POLICY_LINEAR, jobInfo.getBackoffPolicy());
+    assertEquals(45_000, jobInfo.getInitialBackoffMillis());
+    assertTrue(jobInfo.isPersisted());
+  }
+
+  @Test
+  public void schedule_contentUriTrigger_unsupportedBeforeN() {
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER,
+        driver.schedule(newBuilder("tag", newContentUriTrigger()).build()));
+    assertNull(findPendingJob("tag"));
+  }
+
+  @Test
+  @Config(sdk = 24)
+  public void schedule_contentUriTrigger() {
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+        driver.schedule(newBuilder("tag", newContentUriTrigger()).build()));
+
+    JobInfo.TriggerContentUri[] uris = getPendingJob("tag").getTriggerContentUris();
+    assertEquals(1, uris.length);
+    assertEquals(Uri.parse("content://foo"), uris[0].getUri());
+    assertEquals(JobInfo.TriggerContentUri.FLAG_NOTIFY_FOR_DESCENDANTS, uris[0].getFlags());
+  }
+
+  @Test
+  public void schedule_unsupportedExtras_fails() {
+    Bundle extras = new Bundle();
+    extras.putParcelable("uri", Uri.parse("content://foo"));
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR,
+        driver.schedule(newBuilder("tag", Trigger.NOW).setExtras(extras).build()));
+    assertNull(findPendingJob("tag"));
+  }
+
+  @Test
+  public void schedule_withoutReplaceCurrent_keepsExistingJob() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(10, 30)).build());
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(60, 90)).build());
+
+    assertEquals(10_000, getPendingJob("tag").getMinLatencyMillis());
+  }
+
+  @Test
+  public void schedule_withReplaceCurrent_replacesExistingJob() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(10, 30)).build());
+    driver.schedule(
+        newBuilder("tag", Trigger.executionWindow(60, 90)).setReplaceCurrent(true).build());
+
+    assertEquals(60_000, getPendingJob("tag").getMinLatencyMillis());
+  }
+
+  @Test
+  public void schedule_roundTripsThroughReceiver() {
+    Bundle extras = new Bundle();
+    extras.putString("foo", "bar");
+    extras.putIntArray("ints", new int[] {1, 2});
+    Job job =
+        newBuilder("tag", Trigger.executionWindow(10, 30))
+            .setConstraints(Constraint.DEVICE_CHARGING)
+            .setExtras(extras)
+            .build();
+    driver.schedule(job);
+
+    JobInvocation invocation =
+        JobSchedulerReceiver.decode(JobSchedulerReceiverTest.newParams(getPendingJob("tag")));
+
+    assertNotNull(invocation);
+    assertEquals(job.getTag(), invocation.getTag());
+    assertEquals(job.getService(), invocation.getService());
+    JobTrigger.ExecutionWindowTrigger trigger =
+        (JobTrigger.ExecutionWindowTrigger) invocation.getTrigger();
+    assertEquals(10, trigger.getWindowStart());
+    assertEquals(30, trigger.getWindowEnd());
+    assertArrayEquals(job.getConstraints(), invocation.getConstraints());
+    TestUtil.assertBundlesEqual(extras, invocation.getExtras());
+  }
+
+  @Test
+  public void cancel() {
+    driver.schedule(newBuilder("tag", Trigger.NOW).build());
+    driver.schedule(newBuilder("other", Trigger.NOW).build());
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancel("tag"));
+
+    assertNull(findPendingJob("tag"));
+    assertNotNull(findPendingJob("other"));
+  }
+
+  @Test
+  public void scheduleAll_withoutReplaceCurrent_keepsPendingJobs() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(10, 30)).build());
+
+    int[] results =
+        driver.scheduleAll(
+            Arrays.asList(
+                newBuilder("tag", Trigger.NOW).setReplaceCurrent(false).build(),
+                newBuilder("other", Trigger.NOW).build()));
+
+    assertEquals(2, results.length);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[0]);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[1]);
+    assertEquals(10_000, getPendingJob("tag").getMinLatencyMillis());
+    assertNotNull(findPendingJob("other"));
+  }
+
+  @Test
+  public void cancelAll_tags() {
+    driver.schedule(newBuilder("tag", Trigger.NOW).build());
+    driver.schedule(newBuilder("other", Trigger.NOW).build());
+    driver.schedule(newBuilder("kept", Trigger.NOW).build());
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS,
+        driver.cancelAll(Arrays.asList("tag", "other")));
+
+    assertNull(findPendingJob("tag"));
+    assertNull(findPendingJob("other"));
+    assertNotNull(findPendingJob("kept"));
+  }
+
+  @Test
+  public void cancelAll_onlyCancelsOwnJobs() {
+    driver.schedule(newBuilder("tag", Trigger.NOW).build());
+    JobInfo foreign =
+        new JobInfo.Builder(1, new ComponentName(RuntimeEnvironment.application, "com.foo.Bar"))
+            .setOverrideDeadline(0)
+            .build();
+    scheduler.schedule(foreign);
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancelAll());
+
+    List<JobInfo> pendingJobs = scheduler.getAllPendingJobs();
+    assertEquals(1, pendingJobs.size());
+    assertEquals(1, pendingJobs.get(0).getId());
+  }
+
+  @Test
+  public void schedule_persistedContentUri_isUnsupported() {
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER,
+        driver.schedule(
+            newBuilder("tag", newContentUriTrigger()).setLifetime(Lifetime.FOREVER).build()));
+
+    assertNull(findPendingJob("tag"));
+  }
+
+  @Test
+  public void jobIds_areAssignedFromRange() {
+    driver = new JobSchedulerDriver(RuntimeEnvironment.application, 100, 101);
+    driver.schedule(newBuilder("tag", Trigger.NOW).build());
+    driver.schedule(newBuilder("other", Trigger.NOW).build());
+
+    assertEquals(100, getPendingJob("tag").getId());
+    assertEquals(101, getPendingJob("other").getId());
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR,
+        driver.schedule(newBuilder("third", Trigger.NOW).build()));
+  }
+
+  @Test
+  public void jobIds_arePersisted() {
+    driver.schedule(newBuilder("tag", Trigger.NOW).build());
+    int jobId = getPendingJob("tag").getId();
+
+    driver = new JobSchedulerDriver(RuntimeEnvironment.application);
+    driver.schedule(newBuilder("other", Trigger.NOW).build());
+    driver.schedule(newBuilder("tag", Trigger.NOW).build());
+
+    assertEquals(jobId, driver.findJobId("tag"));
+    assertNotEquals(jobId, driver.findJobId("other"));
+    assertEquals(2, scheduler.getAllPendingJobs().size());
+  }
+
+  @Test
+  public void jobIds_areReusedOnceNoLongerPending() {
+    driver = new JobSchedulerDriver(RuntimeEnvironment.application, 100, 101);
+    driver.schedule(newBuilder("cancelled", Trigger.NOW).build());
+    driver.schedule(newBuilder("finished", Trigger.NOW).build());
+    driver.cancel("cancelled");
+    // JobScheduler drops jobs once they've finished
+    scheduler.cancel(driver.findJobId("finished"));
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+        driver.schedule(newBuilder("first", Trigger.NOW).build()));
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS,
+        driver.schedule(newBuilder("second", Trigger.NOW).build()));
+
+    assertEquals(100, getPendingJob("first").getId());
+    assertEquals(101, getPendingJob("second").getId());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructor_invalidRange_throws() {
+    new JobSchedulerDriver(RuntimeEnvironment.application, 2, 1);
+  }
+
+  @Test
+  public void toPersistableBundle() {
+    Bundle bundle = new Bundle();
+    bundle.putString("string", "foo");
+    bundle.putInt("int", 1);
+    bundle.putLong("long", 2L);
+    bundle.putDouble("double", 3.0);
+    bundle.putBoolean("boolean", true);
+    bundle.putStringArray("strings", new String[] {"a", "b"});
+    bundle.putLongArray("longs", new long[] {4L});
+
+    PersistableBundle persistable = JobSchedulerDriver.toPersistableBundle(bundle);
+
+    assertNotNull(persistable);
+    TestUtil.assertBundlesEqual(bundle, new Bundle(persistable));
+  }
+
+  @Test
+  public void toPersistableBundle_unsupportedType() {
+    Bundle bundle = new Bundle();
+    bundle.putFloat("float", 1f);
+
+    assertNull(JobSchedulerDriver.toPersistableBundle(bundle));
+  }
+
+  private JobInfo getPendingJob(String tag) {
+    JobInfo jobInfo = findPendingJob(tag);
+    assertNotNull("expected a pending job for " + tag, jobInfo);
+    return jobInfo;
+  }
+
+  private JobInfo findPendingJob(String tag) {
+    for (JobInfo jobInfo : scheduler.getAllPendingJobs()) {
+      if (jobInfo.getId() == driver.findJobId(tag)) {
+        return jobInfo;
+      }
+    }
+    return null;
+  }
+
+  private static JobTrigger newContentUriTrigger() {
+    return Trigger.contentUriTrigger(
+        Arrays.asList(
+            new ObservedUri(
+                Uri.parse("content://foo"), ObservedUri.Flags.FLAG_NOTIFY_FOR_DESCENDANTS)));
+  }
+
+  private static Job.Builder newBuilder(String tag, JobTrigger trigger) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(trigger);
+  }
+}
@@ -0,0 +1,232 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.Context;
+import android.net.Uri;
+import android.os.PersistableBundle;
+import android.util.Base64;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/** Tests for the {@link JobSchedulerReceiver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class JobSchedulerReceiverTest {
+
+  @Mock private ExecutionDelegator executionDelegator;
+  @Mock private Driver driver;
+
+  private JobSchedulerReceiver receiver;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    // jobFinished results are delivered on the main thread, which would need a real binder
+    ShadowLooper.pauseMainLooper();
+
+    when(driver.getValidator()).thenReturn(new NoopJobValidator());
+    receiver = Robolectric.buildService(JobSchedulerReceiver.class).create().get();
+    receiver.setExecutionDelegator(executionDelegator);
+    receiver.setDriver(driver);
+  }
+
+  @After
+  public void tearDown() {
+    ExecutionDelegator.cleanServiceConnections();
+  }
+
+  @Test
+  public void onStartJob_executesDecodedJob() {
+    Job job = newBuilder("tag", Trigger.NOW).build();
+
+    assertTrue(receiver.onStartJob(newParams(1, job)));
+
+    ArgumentCaptor<JobInvocation> captor = ArgumentCaptor.forClass(JobInvocation.class);
+    verify(executionDelegator).executeJob(captor.capture());
+    assertEquals("tag", captor.getValue().getTag());
+    assertEquals(job.getService(), captor.getValue().getService());
+  }
+
+  @Test
+  public void onStartJob_undecodable_isDropped() {
+    android.app.job.JobParameters params = mock(android.app.job.JobParameters.class);
+    when(params.getExtras()).thenReturn(new PersistableBundle());
+
+    assertFalse(receiver.onStartJob(params));
+    verify(executionDelegator, never()).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onStopJob_onlyStopsRunningJobs() {
+    android.app.job.JobParameters params = newParams(1, newBuilder("tag", Trigger.NOW).build());
+
+    assertFalse(receiver.onStopJob(params));
+
+    receiver.onStartJob(params);
+    assertTrue(receiver.onStopJob(params));
+    assertFalse(receiver.onStopJob(params));
+  }
+
+  @Test
+  public void onJobFinished_recurringContentUri_isRescheduled() {
+    Job job =
+        newBuilder(
+                "tag",
+                Trigger.contentUriTrigger(
+                    Arrays.asList(new ObservedUri(Uri.parse("content://foo"), 0))))
+            .setRecurring(true)
+            .build();
+    receiver.onStartJob(newParams(1, job));
+    JobInvocation invocation = getExecutedJob();
+
+    receiver.onJobFinished(invocation, JobService.RESULT_SUCCESS);
+
+    ArgumentCaptor<Job> captor = ArgumentCaptor.forClass(Job.class);
+    verify(driver).schedule(captor.capture());
+    assertEquals("tag", captor.getValue().getTag());
+    assertTrue(captor.getValue().shouldReplaceCurrent());
+  }
+
+  @Test
+  @Config(sdk = 24)
+  public void onJobFinished_reschedulesWithinScheduledRange() {
+    Context context = RuntimeEnvironment.application;
+    JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    Job job =
+        newBuilder(
+                "tag",
+                Trigger.contentUriTrigger(
+                    Arrays.asList(new ObservedUri(Uri.parse("content://foo"), 0))))
+            .setRecurring(true)
+            .build();
+    new JobSchedulerDriver(context, 100, 101).schedule(job);
+    receiver.setDriver(null);
+    receiver.onStartJob(newParams(scheduler.getAllPendingJobs().get(0)));
+    // Forget the assigned id, so rescheduling has to pick a new one
+    scheduler.cancelAll();
+    context
+        .getSharedPreferences(JobSchedulerDriver.PREFERENCES_NAME, Context.MODE_PRIVATE)
+        .edit()
+        .clear()
+        .commit();
+
+    receiver.onJobFinished(getExecutedJob(), JobService.RESULT_SUCCESS);
+
+    List<JobInfo> pendingJobs = scheduler.getAllPendingJobs();
+    assertEquals(1, pendingJobs.size());
+    assertTrue(pendingJobs.get(0).getId() == 100 || pendingJobs.get(0).getId() == 101);
+  }
+
+  @Test
+  public void onJobFinished_oneOff_isNotRescheduled() {
+    receiver.onStartJob(newParams(1, newBuilder("tag", Trigger.NOW).build()));
+
+    receiver.onJobFinished(getExecutedJob(), JobService.RESULT_SUCCESS);
+
+    verify(driver, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void onJobFinished_unknownJob_isIgnored() {
+    JobInvocation invocation =
+        new JobInvocation.Builder()
+            .setTag("tag")
+            .setService(TestJobService.class.getName())
+            .setTrigger(Trigger.NOW)
+            .build();
+
+    receiver.onJobFinished(invocation, JobService.RESULT_SUCCESS);
+
+    verify(driver, never()).schedule(any(Job.class));
+  }
+
+  @Test
+  public void onJobFinished_earlierRun_isIgnored() {
+    Job job =
+        newBuilder(
+                "tag",
+                Trigger.contentUriTrigger(
+                    Arrays.asList(new ObservedUri(Uri.parse("content://foo"), 0))))
+            .setRecurring(true)
+            .build();
+    receiver.onStartJob(newParams(1, job));
+    JobInvocation earlier = getExecutedJob();
+    receiver.onStopJob(newParams(1, job));
+    receiver.onStartJob(newParams(2, job));
+
+    receiver.onJobFinished(earlier, JobService.RESULT_SUCCESS);
+
+    verify(driver, never()).schedule(any(Job.class));
+  }
+
+  private JobInvocation getExecutedJob() {
+    ArgumentCaptor<JobInvocation> captor = ArgumentCaptor.forClass(JobInvocation.class);
+    verify(executionDelegator).executeJob(captor.capture());
+    return captor.getValue();
+  }
+
+  /** Returns parameters like the ones JobScheduler passes in when it runs the provided job. */
+  static android.app.job.JobParameters newParams(JobInfo jobInfo) {
+    android.app.job.JobParameters params = mock(android.app.job.JobParameters.class);
+    when(params.getJobId()).thenReturn(jobInfo.getId());
+    when(params.getExtras()).thenReturn(jobInfo.getExtras());
+    return params;
+  }
+
+  private static android.app.job.JobParameters newParams(int jobId, Job job) {
+    PersistableBundle extras = new PersistableBundle();
+    extras.putString(
+        JobSchedulerDriver.EXTRA_SPEC,
+        Base64.encodeToString(CompactJobCodec.encode(job), Base64.NO_WRAP));
+
+    android.app.job.JobParameters params = mock(android.app.job.JobParameters.class);
+    when(params.getJobId()).thenReturn(jobId);
+    when(params.getExtras()).thenReturn(extras);
+    return params;
+  }
+
+  private static Job.Builder newBuilder(String tag, JobTrigger trigger) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(trigger);
+  }
+}
@@ -22,6 +22,7 @@ import static com.google.common.truth.Truth.assertThat;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.mockito.Mockito.doThrow;
@@ -33,11 +34,13 @@ import android.content.Context;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.support.annotation.NonNull;
 import android.support.v4.util.Pair;
 import com.firebase.jobdispatcher.JobInvocation.Builder;
 import com.google.common.base.Optional;
 import java.util.ArrayDeque;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -296,4 +299,107 @@ public class JobServiceConnectionTest {
     assertBundlesEqual(jobData, result.first);
     assertThat(result.second).isEqualTo(Integer.valueOf(JobService.RESULT_FAIL_RETRY));
   }
+
+  @Test
+  public void onStop_lazilyDecodedJob_passesEncodedDataThrough() throws Exception {
+    connection.onServiceConnected(null, binderMock);
+    // Re-encoding would need the trigger, which can't be decoded from this
+    Bundle stopData =
+        getJobCoder()
+            .encode(
+                new Builder()
+                    .setTag(job.getTag())
+                    .setService(job.getService())
+                    .setTrigger(TestUtil.getContentUriTrigger())
+                    .build(),
+                new Bundle());
+    stopData.putIntArray(
+        BundleProtocol.PACKED_PARAM_BUNDLE_PREFIX
+            + BundleProtocol.PACKED_PARAM_CONTENT_URI_FLAGS_ARRAY,
+        new int[1]);
+
+    connection.onStop(getJobCoder().decodeLazily(stopData), true);
+
+    binderMock.verifyStopArguments(stopData, true);
+    assertNotSame(stopData, binderMock.stopArguments.first);
+  }
+
+  @Test
+  public void onBindingDied_unbindsAndReleasesBind() throws Exception {
+    TestBindCompletedCallback bindCompletedCallback = new TestBindCompletedCallback();
+    connection = new JobServiceConnection(noopCallback, contextMock, bindCompletedCallback);
+    connection.startJob(job);
+
+    connection.onBindingDied(null);
+
+    assertTrue(connection.wasUnbound());
+    verify(contextMock).unbindService(connection);
+    assertThat(bindCompletedCallback.count.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void onNullBinding_unbindsAndReleasesBind() throws Exception {
+    TestBindCompletedCallback bindCompletedCallback = new TestBindCompletedCallback();
+    connection = new JobServiceConnection(noopCallback, contextMock, bindCompletedCallback);
+    connection.startJob(job);
+
+    connection.onNullBinding(null);
+
+    assertTrue(connection.wasUnbound());
+    verify(contextMock).unbindService(connection);
+    assertThat(bindCompletedCallback.count.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void unbindIfNotConnected() throws Exception {
+    assertTrue(connection.unbindIfNotConnected());
+    assertTrue(connection.wasUnbound());
+
+    connection = new JobServiceConnection(noopCallback, contextMock);
+    connection.startJob(job);
+    connection.onServiceConnected(null, binderMock);
+
+    assertFalse(connection.unbindIfNotConnected());
+    assertFalse(connection.wasUnbound());
+  }
+
+  @Test
+  public void unbind_callsOutWithoutHoldingLock() throws Exception {
+    final AtomicInteger callsUnderLock = new AtomicInteger();
+    noopCallback =
+        new IJobCallback.Stub() {
+          @Override
+          public void jobFinished(Bundle invocationData, @JobService.JobResult int result) {
+            if (Thread.holdsLock(connection)) {
+              callsUnderLock.incrementAndGet();
+            }
+          }
+        };
+    TestBindCompletedCallback bindCompletedCallback = new TestBindCompletedCallback();
+    connection = new JobServiceConnection(noopCallback, contextMock, bindCompletedCallback);
+    connection.startJob(job);
+    binderMock.setStartException(new RemoteException("something bad happened"));
+
+    // Unbinds from inside startPendingJobs, which holds the lock
+    connection.onServiceConnected(null, binderMock);
+
+    assertTrue(connection.wasUnbound());
+    assertThat(bindCompletedCallback.count.get()).isEqualTo(1);
+    assertThat(bindCompletedCallback.callsUnderLock.get()).isEqualTo(0);
+    assertThat(callsUnderLock.get()).isEqualTo(0);
+  }
+
+  private final class TestBindCompletedCallback
+      implements JobServiceConnection.BindCompletedCallback {
+    final AtomicInteger count = new AtomicInteger();
+    final AtomicInteger callsUnderLock = new AtomicInteger();
+
+    @Override
+    public void onBindCompleted(@NonNull JobServiceConnection completed) {
+      count.incrementAndGet();
+      if (Thread.holdsLock(completed)) {
+        callsUnderLock.incrementAndGet();
+      }
+    }
+  }
 }
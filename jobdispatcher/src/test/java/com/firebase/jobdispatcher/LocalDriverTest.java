@@ -0,0 +1,359 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.net.Uri;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+/** Tests for the {@link LocalDriver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LocalDriverTest {
+
+  @Mock private ExecutionDelegator executionDelegator;
+
+  private LocalDriver driver;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    ShadowLooper.pauseMainLooper();
+
+    driver = new LocalDriver(RuntimeEnvironment.application);
+    driver.setExecutionDelegator(executionDelegator);
+  }
+
+  @After
+  public void tearDown() {
+    ExecutionDelegator.cleanServiceConnections();
+  }
+
+  @Test
+  public void isAvailable() {
+    assertTrue(driver.isAvailable());
+  }
+
+  @Test
+  public void schedule_now_runsOnNextLoop() {
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, driver.schedule(newJob("tag", Trigger.NOW)));
+    verify(executionDelegator, never()).executeJob(any(JobInvocation.class));
+
+    ShadowLooper.idleMainLooper();
+
+    assertEquals("tag", getExecutedJob().getTag());
+  }
+
+  @Test
+  public void schedule_executionWindow_runsAtWindowStart() {
+    driver.schedule(newJob("tag", Trigger.executionWindow(1, 30)));
+
+    ShadowLooper.idleMainLooper(999, MILLISECONDS);
+    verify(executionDelegator, never()).executeJob(any(JobInvocation.class));
+
+    ShadowLooper.idleMainLooper(1, MILLISECONDS);
+    assertEquals("tag", getExecutedJob().getTag());
+  }
+
+  @Test
+  public void schedule_runsJobsInDueOrder() {
+    driver.schedule(newJob("late", Trigger.executionWindow(20, 30)));
+    driver.schedule(newJob("early", Trigger.executionWindow(10, 30)));
+    driver.schedule(newJob("now", Trigger.NOW));
+
+    ShadowLooper.idleMainLooper(20, SECONDS);
+
+    ArgumentCaptor<JobInvocation> captor = ArgumentCaptor.forClass(JobInvocation.class);
+    verify(executionDelegator, times(3)).executeJob(captor.capture());
+    List<JobInvocation> executed = captor.getAllValues();
+    assertEquals("now", executed.get(0).getTag());
+    assertEquals("early", executed.get(1).getTag());
+    assertEquals("late", executed.get(2).getTag());
+  }
+
+  @Test
+  public void schedule_contentUriTrigger_isUnsupported() {
+    Job job =
+        newJob(
+            "tag",
+            Trigger.contentUriTrigger(
+                Arrays.asList(new ObservedUri(Uri.parse("content://foo"), 0))));
+
+    assertEquals(
+        FirebaseJobDispatcher.SCHEDULE_RESULT_UNSUPPORTED_TRIGGER, driver.schedule(job));
+  }
+
+  @Test
+  public void schedule_withoutReplaceCurrent_keepsExistingJob() {
+    driver.schedule(newJob("tag", Trigger.executionWindow(10, 30)));
+    driver.schedule(newJob("tag", Trigger.NOW));
+
+    ShadowLooper.idleMainLooper();
+    verify(executionDelegator, never()).executeJob(any(JobInvocation.class));
+
+    ShadowLooper.idleMainLooper(10, SECONDS);
+    assertEquals(Trigger.executionWindow(10, 30).getWindowStart(), getExecutedWindowStart());
+  }
+
+  @Test
+  public void schedule_withReplaceCurrent_replacesExistingJob() {
+    driver.schedule(newJob("tag", Trigger.executionWindow(10, 30)));
+    driver.schedule(newBuilder("tag", Trigger.NOW).setReplaceCurrent(true).build());
+
+    ShadowLooper.idleMainLooper(10, SECONDS);
+
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+    assertEquals(Trigger.NOW, getExecutedJob().getTrigger());
+  }
+
+  @Test
+  public void cancel_preventsExecution() {
+    driver.schedule(newJob("tag", Trigger.executionWindow(1, 30)));
+    driver.schedule(newJob("other", Trigger.executionWindow(1, 30)));
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancel("tag"));
+    ShadowLooper.idleMainLooper(1, SECONDS);
+
+    assertEquals("other", getExecutedJob().getTag());
+  }
+
+  @Test
+  public void cancelAll_preventsExecution() {
+    driver.schedule(newJob("tag", Trigger.NOW));
+    driver.schedule(newJob("other", Trigger.executionWindow(1, 30)));
+
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancelAll());
+    ShadowLooper.idleMainLooper(1, SECONDS);
+
+    verify(executionDelegator, never()).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void scheduleAll_runsEveryJob() {
+    int[] results =
+        driver.scheduleAll(
+            Arrays.asList(
+                newJob("tag", Trigger.NOW), newJob("other", Trigger.executionWindow(1, 30))));
+
+    assertEquals(2, results.length);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[0]);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[1]);
+    ShadowLooper.idleMainLooper(1, SECONDS);
+
+    verify(executionDelegator, times(2)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void cancelAll_tags_preventsExecution() {
+    driver.schedule(newJob("tag", Trigger.NOW));
+    driver.schedule(newJob("other", Trigger.NOW));
+    driver.schedule(newJob("kept", Trigger.executionWindow(1, 30)));
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS,
+        driver.cancelAll(Arrays.asList("tag", "other")));
+    ShadowLooper.idleMainLooper(1, SECONDS);
+
+    assertEquals("kept", getExecutedJob().getTag());
+  }
+
+  @Test
+  public void onJobFinished_retry_requeuesWithBackoff() {
+    Job job =
+        newBuilder("tag", Trigger.NOW)
+            .setRetryStrategy(new RetryStrategy(RetryStrategy.RETRY_POLICY_LINEAR, 30, 3600))
+            .build();
+    driver.schedule(job);
+    ShadowLooper.idleMainLooper();
+    JobInvocation invocation = getExecutedJob();
+
+    driver.onJobFinished(invocation, JobService.RESULT_FAIL_RETRY);
+    ShadowLooper.idleMainLooper(29, SECONDS);
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+
+    ShadowLooper.idleMainLooper(1, SECONDS);
+    verify(executionDelegator, times(2)).executeJob(any(JobInvocation.class));
+
+    // the second retry in a row waits twice as long
+    driver.onJobFinished(getLastExecutedJob(), JobService.RESULT_FAIL_RETRY);
+    ShadowLooper.idleMainLooper(59, SECONDS);
+    verify(executionDelegator, times(2)).executeJob(any(JobInvocation.class));
+    ShadowLooper.idleMainLooper(1, SECONDS);
+    verify(executionDelegator, times(3)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onJobFinished_success_oneOff_isNotRequeued() {
+    driver.schedule(newJob("tag", Trigger.NOW));
+    ShadowLooper.idleMainLooper();
+
+    driver.onJobFinished(getExecutedJob(), JobService.RESULT_SUCCESS);
+    ShadowLooper.idleMainLooper(1, SECONDS);
+
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onJobFinished_success_recurring_isRequeuedAfterPeriod() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(5, 30)).setRecurring(true).build());
+    ShadowLooper.idleMainLooper(5, SECONDS);
+    JobInvocation invocation = getExecutedJob();
+
+    driver.onJobFinished(invocation, JobService.RESULT_SUCCESS);
+    ShadowLooper.idleMainLooper(29, SECONDS);
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+
+    ShadowLooper.idleMainLooper(1, SECONDS);
+    verify(executionDelegator, times(2)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onJobFinished_success_recurringFromZero_doesNotRunBackToBack() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(0, 60)).setRecurring(true).build());
+    ShadowLooper.idleMainLooper();
+
+    driver.onJobFinished(getExecutedJob(), JobService.RESULT_SUCCESS);
+    ShadowLooper.idleMainLooper(59, SECONDS);
+
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onJobFinished_olderRun_isIgnored() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(0, 60)).setRecurring(true).build());
+    ShadowLooper.idleMainLooper();
+    JobInvocation first = getExecutedJob();
+
+    // the same Job is replaced and started again before the first run reports back
+    driver.schedule(
+        newBuilder("tag", Trigger.executionWindow(0, 60))
+            .setRecurring(true)
+            .setReplaceCurrent(true)
+            .build());
+    ShadowLooper.idleMainLooper();
+    driver.onJobFinished(first, JobService.RESULT_FAIL_RETRY);
+    driver.onJobFinished(getLastExecutedJob(), JobService.RESULT_SUCCESS);
+
+    // the late result mustn't have requeued the second run with a backoff
+    ShadowLooper.idleMainLooper(59, SECONDS);
+    verify(executionDelegator, times(2)).executeJob(any(JobInvocation.class));
+    ShadowLooper.idleMainLooper(1, SECONDS);
+    verify(executionDelegator, times(3)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onJobFinished_afterCancel_isIgnored() {
+    driver.schedule(newBuilder("tag", Trigger.executionWindow(5, 30)).setRecurring(true).build());
+    ShadowLooper.idleMainLooper(5, SECONDS);
+    JobInvocation invocation = getExecutedJob();
+
+    driver.cancel("tag");
+    driver.onJobFinished(invocation, JobService.RESULT_FAIL_RETRY);
+    ShadowLooper.idleMainLooper(1, HOURS);
+
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void onJobFinished_afterReplace_keepsNewJob() {
+    driver.schedule(newJob("tag", Trigger.NOW));
+    ShadowLooper.idleMainLooper();
+    JobInvocation invocation = getExecutedJob();
+
+    Job replacement =
+        newBuilder("tag", Trigger.executionWindow(10, 30)).setReplaceCurrent(true).build();
+    driver.schedule(replacement);
+    driver.onJobFinished(invocation, JobService.RESULT_FAIL_RETRY);
+
+    // the stale result mustn't requeue the old job with its backoff
+    ShadowLooper.idleMainLooper(9, SECONDS);
+    verify(executionDelegator, times(1)).executeJob(any(JobInvocation.class));
+    ShadowLooper.idleMainLooper(1, SECONDS);
+    verify(executionDelegator, times(2)).executeJob(any(JobInvocation.class));
+  }
+
+  @Test
+  public void getBackoffMillis_exponential() {
+    RetryStrategy strategy = new RetryStrategy(RetryStrategy.RETRY_POLICY_EXPONENTIAL, 30, 200);
+
+    assertEquals(30_000, LocalDriver.getBackoffMillis(strategy, 1));
+    assertEquals(60_000, LocalDriver.getBackoffMillis(strategy, 2));
+    assertEquals(120_000, LocalDriver.getBackoffMillis(strategy, 3));
+    assertEquals(200_000, LocalDriver.getBackoffMillis(strategy, 4));
+    assertEquals(200_000, LocalDriver.getBackoffMillis(strategy, 1000));
+  }
+
+  @Test
+  public void getBackoffMillis_linear() {
+    RetryStrategy strategy = new RetryStrategy(RetryStrategy.RETRY_POLICY_LINEAR, 30, 100);
+
+    assertEquals(30_000, LocalDriver.getBackoffMillis(strategy, 1));
+    assertEquals(60_000, LocalDriver.getBackoffMillis(strategy, 2));
+    assertEquals(90_000, LocalDriver.getBackoffMillis(strategy, 3));
+    assertEquals(100_000, LocalDriver.getBackoffMillis(strategy, 4));
+  }
+
+  private JobInvocation getExecutedJob() {
+    ArgumentCaptor<JobInvocation> captor = ArgumentCaptor.forClass(JobInvocation.class);
+    verify(executionDelegator).executeJob(captor.capture());
+    return captor.getValue();
+  }
+
+  private JobInvocation getLastExecutedJob() {
+    ArgumentCaptor<JobInvocation> captor = ArgumentCaptor.forClass(JobInvocation.class);
+    verify(executionDelegator, atLeastOnce()).executeJob(captor.capture());
+    return captor.getValue();
+  }
+
+  private int getExecutedWindowStart() {
+    return ((JobTrigger.ExecutionWindowTrigger) getExecutedJob().getTrigger()).getWindowStart();
+  }
+
+  private static Job newJob(String tag, JobTrigger trigger) {
+    return newBuilder(tag, trigger).build();
+  }
+
+  private static Job.Builder newBuilder(String tag, JobTrigger trigger) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(trigger);
+  }
+}
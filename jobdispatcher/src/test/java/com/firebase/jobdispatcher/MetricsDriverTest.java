@@ -0,0 +1,319 @@
+// Copyright 2018 Google, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+////////////////////////////////////////////////////////////////////////////////
+
+package com.firebase.jobdispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.os.Bundle;
+import com.firebase.jobdispatcher.MetricsDriver.Counts;
+import com.firebase.jobdispatcher.MetricsDriver.Snapshot;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+/** Tests for the {@link MetricsDriver} class. */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class MetricsDriverTest {
+
+  @Mock private Driver driverMock;
+  @Mock private JobValidator validatorMock;
+
+  private MetricsDriver driver;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+
+    when(driverMock.getValidator()).thenReturn(validatorMock);
+    when(driverMock.isAvailable()).thenReturn(true);
+    when(driverMock.schedule(any(Job.class)))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS);
+    driver = new MetricsDriver(driverMock);
+  }
+
+  @Test
+  public void passesThrough() {
+    Job job = newJob("tag", null);
+    when(driverMock.schedule(job)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE);
+    when(driverMock.cancel("tag")).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR);
+    when(driverMock.cancelAll()).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+
+    assertTrue(driver.isAvailable());
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_BAD_SERVICE, driver.schedule(job));
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_UNKNOWN_ERROR, driver.cancel("tag"));
+    assertEquals(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS, driver.cancelAll());
+    verify(driverMock).schedule(job);
+    verify(driverMock).cancel("tag");
+    verify(driverMock).cancelAll();
+  }
+
+  @Test
+  public void schedule_countsPerTagAndService() {
+    driver.schedule(newJob("first", null));
+    driver.schedule(newJob("first", null));
+    driver.schedule(newJob("second", null));
+
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(3, snapshot.getTotals().getScheduleCount());
+    assertEquals(2, snapshot.getTagCounts().get("first").getScheduleCount());
+    assertEquals(1, snapshot.getTagCounts().get("second").getScheduleCount());
+    assertEquals(
+        3, snapshot.getServiceCounts().get(TestJobService.class.getName()).getScheduleCount());
+  }
+
+  @Test
+  public void schedule_countsFailures() {
+    Job job = newJob("tag", null);
+    when(driverMock.schedule(job)).thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    driver.schedule(job);
+    driver.schedule(newJob("tag", null));
+
+    Counts counts = driver.getSnapshot().getTagCounts().get("tag");
+    assertEquals(2, counts.getScheduleCount());
+    assertEquals(1, counts.getScheduleFailureCount());
+  }
+
+  @Test
+  public void schedule_recordsPayloadSize() {
+    Bundle small = new Bundle();
+    small.putString("foo", "bar");
+    Bundle large = new Bundle();
+    large.putString("foo", "a much longer value than the other one");
+
+    driver.schedule(newJob("small", small));
+    driver.schedule(newJob("large", large));
+    driver.schedule(newJob("none", null));
+
+    Snapshot snapshot = driver.getSnapshot();
+    int smallSize = DefaultJobValidator.estimateBundleSize(small, Integer.MAX_VALUE);
+    int largeSize = DefaultJobValidator.estimateBundleSize(large, Integer.MAX_VALUE);
+    assertEquals(smallSize, snapshot.getTagCounts().get("small").getMaxPayloadBytes());
+    assertEquals(0, snapshot.getTagCounts().get("none").getTotalPayloadBytes());
+    assertEquals(largeSize, snapshot.getTotals().getMaxPayloadBytes());
+    assertEquals(smallSize + largeSize, snapshot.getTotals().getTotalPayloadBytes());
+  }
+
+  @Test
+  public void schedule_measuresPayloadBeforeForwarding() {
+    final Bundle extras = new Bundle();
+    extras.putString("foo", "bar");
+    int size = DefaultJobValidator.estimateBundleSize(extras, Integer.MAX_VALUE);
+    when(driverMock.schedule(any(Job.class)))
+        .thenAnswer(
+            new Answer<Integer>() {
+              @Override
+              public Integer answer(InvocationOnMock invocation) {
+                // Drivers may add their own keys while encoding the Job
+                extras.putString("com.google.android.gms.internal", "encoded job");
+                return FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS;
+              }
+            });
+
+    driver.schedule(newJob("tag", extras));
+
+    assertEquals(size, driver.getSnapshot().getTotals().getMaxPayloadBytes());
+  }
+
+  @Test
+  public void schedule_recordsTime() {
+    driver.schedule(newJob("tag", null));
+
+    Counts totals = driver.getSnapshot().getTotals();
+    assertTrue(totals.getTotalScheduleNanos() >= 0);
+    assertEquals(totals.getTotalScheduleNanos(), totals.getMaxScheduleNanos());
+  }
+
+  @Test
+  public void scheduleAll_countsEveryJob() {
+    Job failing = newJob("second", null);
+    when(driverMock.schedule(failing))
+        .thenReturn(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR);
+
+    int[] results = driver.scheduleAll(Arrays.asList(newJob("first", null), failing));
+
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_SUCCESS, results[0]);
+    assertEquals(FirebaseJobDispatcher.SCHEDULE_RESULT_UNKNOWN_ERROR, results[1]);
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(2, snapshot.getTotals().getScheduleCount());
+    assertEquals(1, snapshot.getTotals().getScheduleFailureCount());
+    assertEquals(1, snapshot.getTagCounts().get("first").getScheduleCount());
+    assertEquals(1, snapshot.getTagCounts().get("second").getScheduleFailureCount());
+  }
+
+  @Test
+  public void cancelAllTags_countsEveryTag() {
+    when(driverMock.cancel("tag")).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+    when(driverMock.cancel("other")).thenReturn(FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS);
+
+    assertEquals(
+        FirebaseJobDispatcher.CANCEL_RESULT_SUCCESS,
+        driver.cancelAll(Arrays.asList("tag", "other")));
+
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(2, snapshot.getTotals().getCancelCount());
+    assertEquals(1, snapshot.getTagCounts().get("tag").getCancelCount());
+    assertEquals(1, snapshot.getTagCounts().get("other").getCancelCount());
+    assertEquals(0, snapshot.getCancelAllCount());
+  }
+
+  @Test
+  public void cancel_countsPerTagAndKnownService() {
+    driver.schedule(newJob("tag", null));
+    driver.cancel("tag");
+    driver.cancel("unknown");
+    driver.cancelAll();
+
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(2, snapshot.getTotals().getCancelCount());
+    assertEquals(1, snapshot.getTagCounts().get("tag").getCancelCount());
+    assertEquals(1, snapshot.getTagCounts().get("unknown").getCancelCount());
+    assertEquals(
+        1, snapshot.getServiceCounts().get(TestJobService.class.getName()).getCancelCount());
+    assertEquals(1, snapshot.getCancelAllCount());
+  }
+
+  @Test
+  public void distinctTags_areCappedIntoOther() {
+    for (int i = 0; i < MetricsDriver.MAX_TAGS + 10; i++) {
+      driver.schedule(newJob("tag" + i, null));
+    }
+    driver.cancel("tag0");
+    driver.cancel("late");
+
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(MetricsDriver.MAX_TAGS + 1, snapshot.getTagCounts().size());
+    assertEquals(1, snapshot.getTagCounts().get("tag0").getCancelCount());
+    Counts other = snapshot.getTagCounts().get(MetricsDriver.OTHER_TAGS);
+    assertEquals(10, other.getScheduleCount());
+    assertEquals(1, other.getCancelCount());
+    assertEquals(
+        MetricsDriver.MAX_TAGS + 10,
+        snapshot.getServiceCounts().get(TestJobService.class.getName()).getScheduleCount());
+  }
+
+  @Test
+  public void validator_countsFailuresPerCategoryAndService() {
+    when(validatorMock.validate(any(JobParameters.class)))
+        .thenReturn(Arrays.asList("bad backoff", "bad service"));
+    when(validatorMock.validate(any(RetryStrategy.class)))
+        .thenReturn(Collections.singletonList("bad backoff"));
+    FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
+
+    try {
+      dispatcher
+          .newJobBuilder()
+          .setTag("tag")
+          .setService(TestJobService.class)
+          .setTrigger(Trigger.NOW)
+          .build();
+      fail("Expected the validation to fail");
+    } catch (ValidationEnforcer.ValidationException expected) {
+      // expected
+    }
+    try {
+      dispatcher.newRetryStrategy(RetryStrategy.RETRY_POLICY_LINEAR, 30, 60);
+      fail("Expected the validation to fail");
+    } catch (ValidationEnforcer.ValidationException expected) {
+      // expected
+    }
+
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(
+        2,
+        (int)
+            snapshot
+                .getValidationFailures()
+                .get(MetricsDriver.VALIDATION_FAILURE_RETRY_STRATEGY));
+    assertEquals(
+        1, (int) snapshot.getValidationFailures().get(MetricsDriver.VALIDATION_FAILURE_JOB));
+    assertFalse(
+        snapshot.getValidationFailures().containsKey(MetricsDriver.VALIDATION_FAILURE_TRIGGER));
+    assertEquals(2, snapshot.getTotals().getValidationFailureCount());
+    assertEquals(
+        1,
+        snapshot
+            .getServiceCounts()
+            .get(TestJobService.class.getName())
+            .getValidationFailureCount());
+  }
+
+  @Test
+  public void validator_distinctMessages_shareCategory() {
+    for (int i = 0; i < 10; i++) {
+      when(validatorMock.validate(any(JobParameters.class)))
+          .thenReturn(Collections.singletonList("Extras too large: at least " + i + " bytes"));
+      driver.getValidator().validate(newJob("tag", null));
+    }
+
+    Map<String, Integer> failures = driver.getSnapshot().getValidationFailures();
+    assertEquals(1, failures.size());
+    assertEquals(10, (int) failures.get(MetricsDriver.VALIDATION_FAILURE_JOB));
+  }
+
+  @Test
+  public void snapshot_isNotAffectedByLaterRequests() {
+    driver.schedule(newJob("tag", null));
+    Snapshot snapshot = driver.getSnapshot();
+
+    driver.schedule(newJob("tag", null));
+    driver.schedule(newJob("other", null));
+
+    assertEquals(1, snapshot.getTotals().getScheduleCount());
+    assertEquals(1, snapshot.getTagCounts().get("tag").getScheduleCount());
+    assertFalse(snapshot.getTagCounts().containsKey("other"));
+  }
+
+  @Test
+  public void reset_clearsCounters() {
+    driver.schedule(newJob("tag", null));
+    driver.cancelAll();
+
+    driver.reset();
+
+    Snapshot snapshot = driver.getSnapshot();
+    assertEquals(0, snapshot.getTotals().getScheduleCount());
+    assertNull(snapshot.getTagCounts().get("tag"));
+    assertEquals(0, snapshot.getCancelAllCount());
+  }
+
+  private static Job newJob(String tag, Bundle extras) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.NOW)
+        .setExtras(extras)
+        .build();
+  }
+}
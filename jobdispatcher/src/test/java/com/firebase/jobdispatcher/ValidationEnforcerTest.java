@@ -18,11 +18,16 @@ package com.firebase.jobdispatcher;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import android.os.Bundle;
 import java.util.Collections;
 import java.util.List;
 import org.junit.Before;
@@ -177,4 +182,143 @@ public class ValidationEnforcerTest {
           "Expected ValidationException to have 1 error message", 1, ve.getErrors().size());
     }
   }
+
+  @Test
+  public void cache_disabledByDefault() {
+    Job job = newJob("tag", null);
+
+    enforcer.validate(job);
+    enforcer.validate(job);
+
+    verify(validator, times(2)).validate(job);
+    assertEquals(0, enforcer.getCacheHitCount());
+  }
+
+  @Test
+  public void cache_reusesResultForSameSpec() {
+    when(validator.validate(any(JobParameters.class))).thenReturn(null);
+    enforcer.enableCache(8);
+
+    assertNull(enforcer.validate(newJob("tag", null)));
+    assertNull(enforcer.validate(newJob("tag", null)));
+
+    verify(validator, times(1)).validate(any(JobParameters.class));
+    assertEquals(1, enforcer.getCacheHitCount());
+    assertEquals(1, enforcer.getCacheMissCount());
+  }
+
+  @Test
+  public void cache_returnsCopiesOfErrors() {
+    enforcer.enableCache(8);
+    when(validator.validate(any(JobParameters.class))).thenReturn(ERROR_LIST);
+
+    enforcer.validate(newJob("tag", null));
+    List<String> errors = enforcer.validate(newJob("tag", null));
+    assertEquals(ERROR_LIST, errors);
+    errors.add("error: bar");
+
+    assertEquals(ERROR_LIST, enforcer.validate(newJob("tag", null)));
+    verify(validator, times(1)).validate(any(JobParameters.class));
+  }
+
+  @Test
+  public void cache_onlyConsidersShapeOfExtras() {
+    enforcer.enableCache(8);
+    Bundle extras = new Bundle();
+    extras.putString("string", "foo");
+    extras.putInt("int", 1);
+    Bundle sameShape = new Bundle();
+    sameShape.putString("string", "bar");
+    sameShape.putInt("int", 2);
+    Bundle longerString = new Bundle();
+    longerString.putString("string", "foobar");
+    longerString.putInt("int", 1);
+
+    assertEquals(
+        ValidationEnforcer.fingerprint(newJob("tag", extras)),
+        ValidationEnforcer.fingerprint(newJob("tag", sameShape)));
+    assertNotEquals(
+        ValidationEnforcer.fingerprint(newJob("tag", extras)),
+        ValidationEnforcer.fingerprint(newJob("tag", longerString)));
+    assertNotEquals(
+        ValidationEnforcer.fingerprint(newJob("tag", extras)),
+        ValidationEnforcer.fingerprint(newJob("other", extras)));
+  }
+
+  @Test
+  public void cache_skipsUnsupportedExtras() {
+    when(validator.validate(any(JobParameters.class))).thenReturn(null);
+    enforcer.enableCache(8);
+    Bundle extras = new Bundle();
+    extras.putBundle("bundle", new Bundle());
+
+    assertNull(ValidationEnforcer.fingerprint(newJob("tag", extras)));
+    enforcer.validate(newJob("tag", extras));
+    enforcer.validate(newJob("tag", extras));
+
+    verify(validator, times(2)).validate(any(JobParameters.class));
+    assertEquals(0, enforcer.getCacheMissCount());
+  }
+
+  @Test
+  public void cache_evictsLeastRecentlyUsed() {
+    when(validator.validate(any(JobParameters.class))).thenReturn(null);
+    enforcer.enableCache(2);
+
+    enforcer.validate(newJob("a", null));
+    enforcer.validate(newJob("b", null));
+    enforcer.validate(newJob("a", null));
+    enforcer.validate(newJob("c", null)); // evicts "b"
+    assertEquals(1, enforcer.getCacheHitCount());
+
+    enforcer.validate(newJob("a", null));
+    assertEquals(2, enforcer.getCacheHitCount());
+    enforcer.validate(newJob("b", null));
+    assertEquals(2, enforcer.getCacheHitCount());
+    assertEquals(4, enforcer.getCacheMissCount());
+  }
+
+  @Test
+  public void cache_disable() {
+    when(validator.validate(any(JobParameters.class))).thenReturn(null);
+    enforcer.enableCache(8);
+    enforcer.validate(newJob("tag", null));
+
+    enforcer.disableCache();
+    enforcer.validate(newJob("tag", null));
+
+    verify(validator, times(2)).validate(any(JobParameters.class));
+    assertEquals(0, enforcer.getCacheMissCount());
+  }
+
+  @Test
+  public void cache_packageChange_revalidates() {
+    when(validator.validate(any(JobParameters.class))).thenReturn(null);
+    enforcer.enableCache(8);
+    enforcer.validate(newJob("tag", null));
+
+    // Forgets the resolved services, same as a change to the app's package
+    DefaultJobValidator.clearServiceCache();
+    enforcer.validate(newJob("tag", null));
+    enforcer.validate(newJob("tag", null));
+
+    verify(validator, times(2)).validate(any(JobParameters.class));
+    assertEquals(1, enforcer.getCacheHitCount());
+  }
+
+  @Test
+  public void enableCache_rejectsNonPositiveSize() {
+    expectedException.expect(IllegalArgumentException.class);
+
+    enforcer.enableCache(0);
+  }
+
+  private static Job newJob(String tag, Bundle extras) {
+    return TestUtil.getBuilderWithNoopValidator()
+        .setTag(tag)
+        .setService(TestJobService.class)
+        .setTrigger(Trigger.executionWindow(0, 60))
+        .setExtras(extras)
+        .build();
+  }
 }
@@ -17,6 +17,7 @@
 package com.firebase.jobdispatcher;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
@@ -223,7 +224,14 @@ public class TestUtil {
     final Set<String> inKeys = inExtras.keySet();
     for (String key : inKeys) {
       assertTrue("getExtras().containsKey(\"" + key + "\")", outExtras.containsKey(key));
-      assertEquals("getExtras().get(\"" + key + "\")", inExtras.get(key), outExtras.get(key));
+      Object in = inExtras.get(key);
+      Object out = outExtras.get(key);
+      if (in instanceof byte[] && out instanceof byte[]) {
+        // arrays don't implement equals, compare the contents instead
+        assertArrayEquals("getExtras().get(\"" + key + "\")", (byte[]) in, (byte[]) out);
+      } else {
+        assertEquals("getExtras().get(\"" + key + "\")", in, out);
+      }
     }
   }
 